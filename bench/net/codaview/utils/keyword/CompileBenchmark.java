@@ -0,0 +1,103 @@
+package net.codaview.utils.keyword;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <pre>
+ * 编译耗时的JMH基准测试，比较顺序编译与{@link KeywordFilterBuilder#setCompilePool(ForkJoinPool)}并行编译。
+ *
+ * 每次调用完整地构建一次过滤器(Trie树、失败指针，dat还包括双数组)，以单次执行时间计。
+ * 关键字与{@link KeywordFilterBenchmark}相同，为3~8个常用汉字。
+ * threads为并行编译使用的线程数，0表示顺序编译。100万关键字的TrieTree需要几GB堆内存，默认以-Xmx8g运行。
+ *
+ * 运行方法：
+ *   java -cp ... net.codaview.utils.keyword.CompileBenchmark [-p dictSize=1000000 -p threads=0,8]
+ * </pre>
+ *
+ * @author lianxh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class CompileBenchmark {
+
+	private static final int ALPHABET = 3000;
+
+	@Param({ "trie", "dat" })
+	public String impl;
+
+	@Param({ "100000", "1000000" })
+	public int dictSize;
+
+	@Param({ "0", "2", "4", "8" })
+	public int threads;
+
+	private List<String> keywords;
+
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(20131214L);
+		Set<String> keywords = new LinkedHashSet<String>();
+		while (keywords.size() < dictSize) {
+			int length = 3 + random.nextInt(6);
+			StringBuilder sb = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				sb.append((char) ('一' + random.nextInt(ALPHABET)));
+			}
+			keywords.add(sb.toString());
+		}
+		this.keywords = new ArrayList<String>(keywords);
+		this.pool = threads == 0 ? null : new ForkJoinPool(threads);
+	}
+
+	@Benchmark
+	public KeywordFilter compile() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setCompilePool(pool);
+		if ("trie".equals(impl)) {
+			return builder.build();
+		} else if ("dat".equals(impl)) {
+			return builder.buildDoubleArrayTrie();
+		}
+		throw new IllegalArgumentException("未知的实现: " + impl);
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(CompileBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,207 @@
+package net.codaview.utils.keyword;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * <pre>
+ * 各KeywordFilter实现的JMH基准测试，取代testLargeText中按墙钟计时的循环。
+ *
+ * 词库和文本都由固定的随机种子生成，可重复：
+ * (1) 关键字为3~8个常用汉字，文本由同一组汉字随机组成，因此文本中有大量关键字的前缀；
+ * (2) hitDensity为每个字符处插入一个关键字的概率，0表示不含关键字，是hasKeywords的最坏情况；
+ * (3) skipDensity为每个字符后插入一个跳过字符的概率，为0时过滤器不设跳过字符。
+ *
+ * 运行方法(需要jmh-core和jmh-generator-annprocess)：
+ *   java -cp ... net.codaview.utils.keyword.KeywordFilterBenchmark [JMH参数]
+ * main方法默认附加GC profiler，同时报告吞吐量和每次调用的分配量(gc.alloc.rate.norm)。
+ * 也可以用-p指定参数，比如 -p impl=dat -p dictSize=1000000 -p textSize=10000
+ *
+ * 这里的关键字都不含元字符，正则表达式实现也交给它内部的自动机，测的主要是包装的开销。
+ * </pre>
+ *
+ * @author lianxh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeywordFilterBenchmark {
+
+	/**
+	 * 文本和关键字使用的汉字个数
+	 */
+	private static final int ALPHABET = 3000;
+
+	private static final List<Character> SKIP_CHARS = Arrays.asList('*', ' ', '_', '.');
+
+	@Param({ "trie", "dat", "regex" })
+	public String impl;
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int dictSize;
+
+	@Param({ "100", "10000", "1000000" })
+	public int textSize;
+
+	@Param({ "0", "0.001", "0.01" })
+	public double hitDensity;
+
+	@Param({ "0", "0.05" })
+	public double skipDensity;
+
+	private KeywordFilter filter;
+
+	private String text;
+
+	/**
+	 * count统计的关键字，文本中按hitDensity出现
+	 */
+	private String keyword;
+
+	private final ReplaceStrategy strategy = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keyword) {
+			return "**";
+		}
+	};
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(20131214L);
+		List<String> keywords = keywords(random, dictSize);
+		List<Character> skipChars = skipDensity > 0 ? SKIP_CHARS : new ArrayList<Character>();
+		this.keyword = keywords.get(0);
+		this.text = text(random, keywords, skipChars);
+
+		if ("regex".equals(impl)) {
+			RegexKeywordFilter regex = new RegexKeywordFilter();
+			regex.add(keywords);
+			regex.addSkipChar(skipChars);
+			regex.compile();
+			this.filter = regex;
+			return;
+		}
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(skipChars);
+		if ("trie".equals(impl)) {
+			this.filter = builder.build();
+		} else if ("dat".equals(impl)) {
+			this.filter = builder.buildDoubleArrayTrie();
+		} else {
+			throw new IllegalArgumentException("未知的实现: " + impl);
+		}
+	}
+
+	@Benchmark
+	public boolean hasKeywords() {
+		return filter.hasKeywords(text);
+	}
+
+	@Benchmark
+	public int count() {
+		return filter.count(text, keyword);
+	}
+
+	@Benchmark
+	public String replace() {
+		return filter.replace(text, strategy);
+	}
+
+	@Benchmark
+	public int[] countAll() {
+		return filter.countAll(text);
+	}
+
+	@Benchmark
+	public int matchOverlapping() {
+		final int[] matches = new int[1];
+		filter.match(text, MatchMode.OVERLAPPING, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				matches[0]++;
+				return true;
+			}
+		});
+		return matches[0];
+	}
+
+	private static List<String> keywords(Random random, int size) {
+		Set<String> keywords = new LinkedHashSet<String>();
+		while (keywords.size() < size) {
+			int length = 3 + random.nextInt(6);
+			StringBuilder sb = new StringBuilder(length);
+			for (int i = 0; i < length; i++) {
+				sb.append(randomChar(random));
+			}
+			keywords.add(sb.toString());
+		}
+		return new ArrayList<String>(keywords);
+	}
+
+	/**
+	 * 随机汉字组成的文本，按hitDensity插入关键字(一半是keyword，一半随机)，按skipDensity插入跳过字符
+	 */
+	private String text(Random random, List<String> keywords, List<Character> skipChars) {
+		StringBuilder sb = new StringBuilder(textSize + 16);
+		while (sb.length() < textSize) {
+			if (random.nextDouble() < hitDensity) {
+				String word = random.nextBoolean() ? keyword : keywords.get(random.nextInt(keywords.size()));
+				for (int i = 0; i < word.length(); i++) {
+					if (i > 0 && random.nextDouble() < skipDensity) {
+						sb.append(skipChars.get(random.nextInt(skipChars.size())));
+					}
+					sb.append(word.charAt(i));
+				}
+			} else {
+				sb.append(randomChar(random));
+			}
+			if (random.nextDouble() < skipDensity) {
+				sb.append(skipChars.get(random.nextInt(skipChars.size())));
+			}
+		}
+		sb.setLength(textSize);
+		return sb.toString();
+	}
+
+	private static char randomChar(Random random) {
+		return (char) ('一' + random.nextInt(ALPHABET));
+	}
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.include(KeywordFilterBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,158 @@
+package net.codaview.utils.keyword.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * 对本机的{@link KeywordFilterService}施加压力，报告吞吐量、延迟分位数和被拒绝(503)的比例。
+ *
+ *   java net.codaview.utils.keyword.service.ServiceLoadGenerator 端口 [并发数=64] [秒数=10] [路径=/check] [文本长度=200]
+ *
+ * 每个并发连接循环发送随机生成的汉字文本，收到503时按Retry-After的语义退避10毫秒后继续。
+ * 短文本、高并发时可以在/status中看到batchedRequests/batches明显大于1，即合并处理生效；
+ * 并发数超过服务的maxInFlight时rejected增长，而成功请求的延迟保持稳定。
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class ServiceLoadGenerator {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * 延迟直方图的上限，毫秒，超出的计入最后一格
+	 */
+	private static final int MAX_LATENCY_MILLIS = 10000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("用法: ServiceLoadGenerator 端口 [并发数] [秒数] [路径] [文本长度]");
+			System.exit(1);
+		}
+		final int port = Integer.parseInt(args[0]);
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		final String path = args.length > 3 ? args[3] : "/check";
+		final int textLength = args.length > 4 ? Integer.parseInt(args[4]) : 200;
+
+		// 默认的keep-alive连接池只保留5个空闲连接，并发高时会不断新建连接
+		System.setProperty("http.maxConnections", String.valueOf(clients));
+		final URL url = new URL("http://127.0.0.1:" + port + path);
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		// 每个客户端各自记录按毫秒分格的延迟直方图，结束后合并，避免争用
+		final long[][] histograms = new long[clients][MAX_LATENCY_MILLIS + 1];
+		final AtomicLong ok = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(clients);
+
+		for (int c = 0; c < clients; c++) {
+			final long[] histogram = histograms[c];
+			final Random random = new Random(c);
+			Thread client = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (System.nanoTime() < deadline) {
+							byte[] body = randomText(random, textLength).getBytes(UTF_8);
+							long start = System.nanoTime();
+							int status;
+							try {
+								status = post(url, body);
+							} catch (IOException e) {
+								errors.incrementAndGet();
+								continue;
+							}
+							if (200 == status) {
+								long millis = (System.nanoTime() - start) / 1000000;
+								histogram[(int) Math.min(millis, MAX_LATENCY_MILLIS)]++;
+								ok.incrementAndGet();
+							} else if (503 == status) {
+								rejected.incrementAndGet();
+								sleep(10);
+							} else {
+								errors.incrementAndGet();
+							}
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "load-" + c);
+			client.setDaemon(true);
+			client.start();
+		}
+		done.await();
+
+		long[] merged = new long[MAX_LATENCY_MILLIS + 1];
+		for (long[] histogram : histograms) {
+			for (int i = 0; i < merged.length; i++) {
+				merged[i] += histogram[i];
+			}
+		}
+		System.out.println("clients=" + clients + " path=" + path + " textLength=" + textLength + " seconds=" + seconds);
+		System.out.println("ok=" + ok.get() + " (" + ok.get() / seconds + "/s) rejected=" + rejected.get() + " errors="
+				+ errors.get());
+		System.out.println("latency ms: p50=" + percentile(merged, ok.get(), 0.5) + " p99=" + percentile(merged, ok.get(), 0.99)
+				+ " p999=" + percentile(merged, ok.get(), 0.999) + " max=" + percentile(merged, ok.get(), 1.0));
+	}
+
+	private static int post(URL url, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setFixedLengthStreamingMode(body.length);
+		OutputStream out = connection.getOutputStream();
+		out.write(body);
+		out.close();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		if (null != in) {
+			// 读完响应体，连接才能被keep-alive复用
+			byte[] buffer = new byte[1024];
+			while (in.read(buffer) != -1) {
+			}
+			in.close();
+		}
+		return status;
+	}
+
+	/**
+	 * 常用汉字区间内的随机文本，夹杂少量星号作为跳过字符
+	 */
+	private static String randomText(Random random, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = random.nextInt(20) == 0 ? '*' : (char) (0x4E00 + random.nextInt(2000));
+		}
+		return new String(chars);
+	}
+
+	private static int percentile(long[] histogram, long total, double p) {
+		long target = (long) Math.ceil(total * p);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= target && seen > 0) {
+				return i;
+			}
+		}
+		return 0;
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
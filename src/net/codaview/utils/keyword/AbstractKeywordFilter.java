@@ -0,0 +1,903 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 基于AC自动机的关键字过滤器的公共实现。
+ *
+ * <pre>
+ * 子类只需以int编号描述自动机的状态：
+ * (1) {@link #transition(int, char)} 给出读入一个字符后的下一状态(已包含失败路径的回溯)；
+ * (2) {@link #keywordId(int)} 给出以该状态结尾的关键字编号；
+ * (3) {@link #outputLink(int)} 给出沿失败路径最近的一个带关键字的状态。
+ * 查找、替换、统计等扫描逻辑都在本类中完成，各实现的结果保持一致。
+ *
+ * 允许短语(白名单)与关键字编译在同一个自动机中，编号排在全部关键字之后，即 [keywordCount(), keywordCount() + allowedCount())。
+ * 最左匹配时允许短语与关键字一同参与选择，选中允许短语时不回调、直接从它的结束处继续，
+ * 因此被允许短语完全覆盖的关键字在同一遍扫描中就被略过了，不需要二次处理。
+ * 起点相同时较长的一方胜出，最左优先模式下允许短语也优先于它覆盖的较短关键字。
+ * 重叠匹配和统计报告关键字的全部出现，只是不包括允许短语本身。
+ * </pre>
+ *
+ * @author lianxh
+ */
+abstract class AbstractKeywordFilter implements KeywordFilter {
+
+	/**
+	 * 根节点的状态编号
+	 */
+	static final int ROOT = 0;
+
+	/**
+	 * 表示无关键字、无状态
+	 */
+	static final int NONE = -1;
+
+	/**
+	 * 流式处理时每次读入的字符数
+	 */
+	static final int BUFFER_SIZE = 8192;
+
+	boolean compiled = false;
+
+	Set<Character> skipChars = new HashSet<Character>();
+
+	/**
+	 * 编译时由skipChars生成的位图，每个char占一位，没有跳过字符时为null。
+	 * 扫描时每个字符都要判断一次，用位图代替HashSet可以免去装箱和哈希
+	 */
+	long[] skipTable;
+
+	/**
+	 * 编译时生成的首字符位图，标出能从根节点转移出去的字符，即可能作为关键字开头的字符(包括规范化前的写法)。
+	 * 自动机停在根节点时，不在位图中的字符不会改变状态，可以连续跳过，不必逐个转移
+	 */
+	long[] startTable;
+
+	/**
+	 * 字符规范化表，下标为原字符，没有设置时为null。见{@link CharNormalizer}
+	 */
+	char[] normalTable;
+
+	/**
+	 * 添加跳过字符。编译后过滤器可能正被多个线程使用，不能再修改
+	 */
+	public void addSkipChar(char ch) {
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再添加忽略字符");
+		}
+		this.skipChars.add(ch);
+	}
+
+	public void addSkipChar(Collection<Character> chars) {
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再添加忽略字符");
+		}
+		if (null != chars) {
+			this.skipChars.addAll(chars);
+		}
+	}
+
+	/**
+	 * 设置字符规范化表，关键字和文本中的字符都先规范化再匹配。必须在添加关键字之前设置
+	 */
+	public void setNormalizer(CharNormalizer normalizer) {
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再设置字符规范化");
+		}
+		this.normalTable = null == normalizer ? null : normalizer.table();
+	}
+
+	final char normalize(char ch) {
+		return null == normalTable ? ch : normalTable[ch];
+	}
+
+	final String normalize(String keyword) {
+		if (null == normalTable) {
+			return keyword;
+		}
+		char[] chars = keyword.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = normalTable[chars[i]];
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * 编译完成时调用，生成跳过字符位图和首字符位图，之后跳过字符不能再修改
+	 */
+	final void compileTables() {
+		skipTable = toSkipTable(skipChars, normalTable);
+		startTable = toStartTable();
+		compiled = true;
+	}
+
+	/**
+	 * 首字符位图，逐个字符试探根节点的转移。规范化已包含在transition中
+	 */
+	final long[] toStartTable() {
+		long[] table = new long[(Character.MAX_VALUE + 1) >>> 6];
+		for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+			if (transition(ROOT, (char) ch) != ROOT) {
+				table[ch >>> 6] |= 1L << ch;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * 跳过字符位图。有规范化表时，规范化后为跳过字符的字符也是跳过字符，比如全角的“＊”
+	 */
+	private static long[] toSkipTable(Set<Character> skipChars, char[] normalTable) {
+		if (skipChars.isEmpty()) {
+			return null;
+		}
+		long[] table = new long[(Character.MAX_VALUE + 1) >>> 6];
+		for (char ch : skipChars) {
+			table[ch >>> 6] |= 1L << ch;
+		}
+		if (null != normalTable) {
+			for (int ch = 0; ch < normalTable.length; ch++) {
+				if (isSkip(table, normalTable[ch])) {
+					table[ch >>> 6] |= 1L << ch;
+				}
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * ch是否是跳过字符，扫描循环中先把skipTable读到局部变量再调用
+	 */
+	static boolean isSkip(long[] skipTable, char ch) {
+		return null != skipTable && (skipTable[ch >>> 6] & (1L << ch)) != 0;
+	}
+
+	/**
+	 * 从from开始第一个可能作为关键字开头的字符的下标，没有则返回to
+	 */
+	static int nextStart(CharSequence text, int from, int to, long[] startTable) {
+		int i = from;
+		while (i < to) {
+			char ch = text.charAt(i);
+			if ((startTable[ch >>> 6] & (1L << ch)) != 0) {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * 从state状态读入字符ch后转移到的状态，找不到时沿失败路径回溯，直到根节点。ch尚未规范化
+	 */
+	abstract int transition(int state, char ch);
+
+	/**
+	 * 以state状态结尾的关键字编号，有多个时为最长的一个，没有则返回{@link #NONE}
+	 */
+	abstract int keywordId(int state);
+
+	/**
+	 * 沿失败路径上最近的一个带关键字的状态，即以该状态结尾的其余关键字中最长的一个所在的状态，没有则返回{@link #NONE}
+	 */
+	abstract int outputLink(int state);
+
+	/**
+	 * 状态的深度，即从根节点到该状态的字符数
+	 */
+	abstract int depth(int state);
+
+	/**
+	 * 编号对应的关键字
+	 */
+	abstract String keyword(int keywordId);
+
+	/**
+	 * 编号对应的关键字的长度，扫描时用它计算匹配的起点，不必取出关键字
+	 */
+	abstract int keywordLength(int keywordId);
+
+	/**
+	 * 关键字个数，编号为 [0, keywordCount())
+	 */
+	abstract int keywordCount();
+
+	/**
+	 * 状态编号的上界，状态编号为 [0, stateCount())
+	 */
+	abstract int stateCount();
+
+	/**
+	 * 允许短语个数，编号接在关键字之后
+	 */
+	int allowedCount() {
+		return 0;
+	}
+
+	/**
+	 * 最左匹配找到一个关键字时即停止，用于判断是否包含关键字
+	 */
+	private static final MatchListener STOP = new MatchListener() {
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			return false;
+		}
+	};
+
+	/**
+	 * 是否包含关键字。有允许短语时，自动机上的候选可能只是允许短语，需要从候选处做最左匹配确认
+	 */
+	private boolean containsKeyword(CharSequence text) {
+		int first = firstCandidate(text);
+		if (first == NONE) {
+			return false;
+		}
+		return allowedCount() == 0 || leftmost(text, first, text.length(), true, true, STOP) == NONE;
+	}
+
+	/**
+	 * 按字符逐个转移查找关键字，不考虑跳过字符
+	 * 
+	 * @return 关键字编号，不是关键字时返回{@link #NONE}
+	 */
+	final int find(String keyword) {
+		int state = ROOT;
+		for (int i = 0; i < keyword.length(); i++) {
+			state = transition(state, keyword.charAt(i));
+			// 深度不够说明走了失败路径，keyword[0, i]不是任何关键字的前缀
+			if (depth(state) != i + 1) {
+				return NONE;
+			}
+		}
+		int id = longestKeywordId(state);
+		return id != NONE && id < keywordCount() && keywordLength(id) == keyword.length() ? id : NONE;
+	}
+
+	/**
+	 * state状态上能匹配到的最长关键字编号，没有则返回{@link #NONE}
+	 */
+	final int longestKeywordId(int state) {
+		int id = keywordId(state);
+		if (id != NONE) {
+			return id;
+		}
+		int link = outputLink(state);
+		return link == NONE ? NONE : keywordId(link);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		if (keywordId < 0 || keywordId >= keywordCount()) {
+			throw new IndexOutOfBoundsException("关键字编号越界: " + keywordId);
+		}
+		return keyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return keywordCount();
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+
+		return containsKeyword(text);
+	}
+
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'.");
+
+		BitSet ret = new BitSet(texts.size());
+		int i = 0;
+		for (CharSequence text : texts) {
+			checkNotNull(text, "Null value not allowed for element of 'texts'.");
+			if (containsKeyword(text)) {
+				ret.set(i);
+			}
+			i++;
+		}
+		return ret;
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		checkNotNull(reader, "Null value not allowed for parameter 'reader'.");
+		if (allowedCount() > 0) {
+			return containsKeyword(reader);
+		}
+
+		final long[] skip = skipTable;
+		final long[] start = startTable;
+		char[] buffer = new char[BUFFER_SIZE];
+		// 自动机的状态跨缓冲区延续，因此跨块的关键字也能匹配到
+		int last = ROOT;
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			for (int i = 0; i < n; i++) {
+				char ch = buffer[i];
+				if (last == ROOT && (start[ch >>> 6] & (1L << ch)) == 0) {
+					continue;
+				}
+				if (isSkip(skip, ch)) {
+					continue;
+				}
+				last = transition(last, ch);
+				if (longestKeywordId(last) != NONE) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 与{@link #replace(Reader, Writer, ReplaceStrategy)}一样分块做最左匹配，尚未确定的部分留到下一块
+	 */
+	private boolean containsKeyword(Reader reader) throws IOException {
+		char[] buffer = new char[BUFFER_SIZE];
+		CharBuffer text = CharBuffer.wrap(buffer);
+		int length = 0;
+		while (true) {
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				text = CharBuffer.wrap(buffer);
+			}
+			int n = reader.read(buffer, length, buffer.length - length);
+			boolean endOfInput = n == -1;
+			if (!endOfInput) {
+				length += n;
+			}
+			int consumed = leftmost(text, 0, length, endOfInput, true, STOP);
+			if (consumed == NONE) {
+				return true;
+			}
+			if (endOfInput) {
+				return false;
+			}
+			System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+			length -= consumed;
+		}
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		checkNotNull(mode, "Null value not allowed for parameter 'mode'.");
+		checkNotNull(listener, "Null value not allowed for parameter 'listener'.");
+
+		if (mode == MatchMode.OVERLAPPING) {
+			matchOverlapping(text, listener);
+		} else {
+			leftmost(text, 0, text.length(), true, mode == MatchMode.LEFTMOST_LONGEST, listener);
+		}
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy s) {
+		return replace((CharSequence) text, s).toString();
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy s) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(s, "Null value not allowed for parameter 'strategy'");
+
+		int first = firstCandidate(text);
+		// 不包含关键字时直接返回原文本，不分配任何对象
+		if (first == NONE) {
+			return text;
+		}
+		StringBuilder ret = new StringBuilder(text.length() + 16);
+		replaceQuietly(text, first, ret, s);
+		return ret.toString();
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy s) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(out, "Null value not allowed for parameter 'out'");
+		checkNotNull(s, "Null value not allowed for parameter 'strategy'");
+
+		int first = firstCandidate(text);
+		if (first == NONE) {
+			out.append(text);
+			return false;
+		}
+		replaceQuietly(text, first, out, s);
+		return true;
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy s) throws IOException {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(out, "Null value not allowed for parameter 'out'");
+		checkNotNull(s, "Null value not allowed for parameter 'strategy'");
+
+		int first = firstCandidate(text);
+		if (first == NONE) {
+			out.append(text);
+			return false;
+		}
+		Replacer replacer = new Replacer(text, out, s);
+		replacer.emit(first);
+		leftmost(text, first, text.length(), true, true, replacer);
+		replacer.finish(text.length());
+		return true;
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy s) throws IOException {
+		checkNotNull(reader, "Null value not allowed for parameter 'reader'");
+		checkNotNull(writer, "Null value not allowed for parameter 'writer'");
+		checkNotNull(s, "Null value not allowed for parameter 'strategy'");
+
+		char[] buffer = new char[BUFFER_SIZE];
+		/* 缓冲区中有效字符数，开头部分是上一块末尾尚未确定的字符 */
+		int length = 0;
+		while (true) {
+			// 未确定的匹配(比如夹杂了大量跳过字符)占满了缓冲区，只能扩容
+			if (length == buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			int n = reader.read(buffer, length, buffer.length - length);
+			boolean endOfInput = n == -1;
+			if (!endOfInput) {
+				length += n;
+			}
+			Replacer replacer = new Replacer(CharBuffer.wrap(buffer), writer, s);
+			int consumed = leftmost(replacer.text, 0, length, endOfInput, true, replacer);
+			replacer.finish(consumed);
+			if (endOfInput) {
+				return;
+			}
+			System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+			length -= consumed;
+		}
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy s) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'");
+		checkNotNull(s, "Null value not allowed for parameter 'strategy'");
+
+		List<String> ret = new ArrayList<String>(texts.size());
+		/* 整批共用的缓冲区，只在第一次需要替换时分配 */
+		StringBuilder buffer = null;
+		for (String text : texts) {
+			checkNotNull(text, "Null value not allowed for element of 'texts'");
+			int first = firstCandidate(text);
+			if (first == NONE) {
+				ret.add(text);
+				continue;
+			}
+			if (null == buffer) {
+				buffer = new StringBuilder(text.length() + 16);
+			} else {
+				buffer.setLength(0);
+			}
+			replaceQuietly(text, first, buffer, s);
+			ret.add(buffer.toString());
+		}
+		return ret;
+	}
+
+	private void replaceQuietly(CharSequence text, int from, StringBuilder out, ReplaceStrategy s) {
+		Replacer replacer = new Replacer(text, out, s);
+		try {
+			replacer.emit(from);
+			leftmost(text, from, text.length(), true, true, replacer);
+			replacer.finish(text.length());
+		} catch (IOException e) {
+			// StringBuilder不会抛出IOException
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * 找到第一个关键字时，自动机当前状态对应的字符串的起点。在此之前不可能有匹配开始，
+	 * 替换可以直接从这里开始，前面的文本原样输出。
+	 * 
+	 * @return 起点下标，不包含关键字时返回{@link #NONE}
+	 */
+	private int firstCandidate(CharSequence text) {
+		final long[] skip = skipTable;
+		final long[] start = startTable;
+		int last = ROOT;
+		final int length = text.length();
+		for (int i = 0; i < length; i++) {
+			if (last == ROOT) {
+				// 干净的文本大部分时间停在根节点，用首字符位图直接找到下一个可能的起点。
+				// 跳过字符在根节点上同样不改变状态，一并跳过
+				i = nextStart(text, i, length, start);
+				if (i == length) {
+					return NONE;
+				}
+			}
+			char ch = text.charAt(i);
+			if (isSkip(skip, ch)) {
+				continue;
+			}
+			last = transition(last, ch);
+			if (longestKeywordId(last) != NONE) {
+				return startIndex(text, i, depth(last));
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * 匹配模式串中出现的单词。当我们的模式串在Trie上进行匹配时，如果与当前节点的关键字不能继续匹配的时候，
+	 * 就应该去当前节点的失败指针所指向的节点继续进行匹配。
+	 * 
+	 * <pre>
+	 * 匹配过程如下：
+	 * 从root节点开始，每次根据读入的字符沿着自动机向下移动。 当读入的字符，在分支中不存在时，递归走失败路径。如果走失败路径走到了root节点，
+	 * 则跳过该字符，处理下一个字符。 因为AC自动机是沿着输入文本的最长后缀移动的，所以每到一个状态，
+	 * 沿输出链接依次取出的关键字就是以当前字符结尾的全部关键字。
+	 * </pre>
+	 */
+	private void matchOverlapping(CharSequence text, MatchListener listener) {
+		final long[] skip = skipTable;
+		final long[] start = startTable;
+		final int count = keywordCount();
+		int last = ROOT;
+		for (int i = 0, length = text.length(); i < length; i++) {
+			if (last == ROOT) {
+				i = nextStart(text, i, length, start);
+				if (i == length) {
+					return;
+				}
+			}
+			char ch = text.charAt(i);
+			if (isSkip(skip, ch)) {
+				continue;
+			}
+			last = transition(last, ch);
+			int state = keywordId(last) != NONE ? last : outputLink(last);
+			while (state != NONE) {
+				int id = keywordId(state);
+				if (id >= count) {
+					state = outputLink(state);
+					continue;
+				}
+				if (!listener.onMatch(startIndex(text, i, keywordLength(id)), i + 1, id)) {
+					return;
+				}
+				state = outputLink(state);
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 找出text[from, to)中互不重叠的最左匹配，依次回调listener。
+	 * 
+	 * 在所有匹配中选起始位置最靠左的，起始位置相同时，longest为true选最长的(最左最长)，
+	 * 否则选最先添加的关键字(最左优先)。确定一个匹配后从匹配结束处重新开始匹配，因此各匹配互不重叠。
+	 * 比如关键字为心事、心事重、心事重重时，最左最长匹配到“心事重重”。
+	 * 跳过字符只在匹配内部被忽略，不会出现在匹配的开头和结尾。
+	 * 选中的是允许短语时不回调，同样从它的结束处重新开始。
+	 * 
+	 * 在读入一个字符后，如果当前状态对应的字符串的起点已经越过了候选匹配的起点，
+	 * 就不可能再出现起点更靠左或同起点更优的匹配，此时即可确定候选匹配。
+	 * </pre>
+	 * 
+	 * @param endOfInput
+	 *            为false时表示后面还有文本，末尾尚未确定的匹配不回调，由调用者拼接到下一块的开头重新匹配
+	 * @return text[from, 返回值)中的匹配已全部回调，listener要求停止时返回{@link #NONE}
+	 */
+	final int leftmost(CharSequence text, int from, int to, boolean endOfInput, boolean longest,
+			MatchListener listener) {
+		final long[] skip = skipTable;
+		final long[] first = startTable;
+		final int count = keywordCount();
+		int state = ROOT;
+		/* 自上次重置以来读入的非跳过字符个数，根节点上越过的字符不计 */
+		int ord = 0;
+		/* 候选匹配: 关键字编号、起点序号、最后一个字符的下标 */
+		int matchId = NONE;
+		int matchStart = 0;
+		int matchEnd = 0;
+		int i = from;
+		while (true) {
+			if (state == ROOT && matchId == NONE) {
+				// 没有候选匹配时，在根节点上越过不可能作为关键字开头的字符
+				i = nextStart(text, i, to, first);
+			}
+			if (i == to) {
+				if (matchId == NONE || !endOfInput) {
+					break;
+				}
+			} else {
+				char ch = text.charAt(i);
+				if (isSkip(skip, ch)) {
+					i++;
+					continue;
+				}
+				state = transition(state, ch);
+				ord++;
+				if (matchId == NONE || ord - depth(state) + 1 <= matchStart) {
+					int id = longestKeywordId(state);
+					if (id != NONE) {
+						int start = ord - keywordLength(id) + 1;
+						// 同一起点后找到的一定更长，允许短语总是优先于它覆盖的关键字
+						if (matchId == NONE || start < matchStart
+								|| (start == matchStart && (longest || id < matchId || id >= count))) {
+							matchId = id;
+							matchStart = start;
+							matchEnd = i;
+						}
+					}
+					i++;
+					continue;
+				}
+			}
+
+			// 确定候选匹配，从匹配结束处重新开始
+			if (matchId < count) {
+				int start = startIndex(text, matchEnd, keywordLength(matchId));
+				if (!listener.onMatch(start, matchEnd + 1, matchId)) {
+					return NONE;
+				}
+			}
+			i = matchEnd + 1;
+			state = ROOT;
+			ord = 0;
+			matchId = NONE;
+		}
+
+		int safe = to;
+		if (!endOfInput) {
+			// 候选匹配和当前状态对应的字符串都还可能变化，从两者中靠前的起点开始保留
+			if (depth(state) > 0) {
+				int last = to - 1;
+				while (isSkip(skip, text.charAt(last))) {
+					last--;
+				}
+				safe = startIndex(text, last, depth(state));
+			}
+			if (matchId != NONE) {
+				safe = Math.min(safe, startIndex(text, matchEnd, keywordLength(matchId)));
+			}
+		}
+		return safe;
+	}
+
+	/**
+	 * 从from开始做最左匹配，只回调起点在[from, limit)内的匹配。与{@link #leftmost}的结果相同，
+	 * 但扫描到能确定limit之前不再有匹配开始时即停止，不必扫描到文本末尾。
+	 * 跳过字符可能使一个匹配任意长，因此越过limit的扫描窗口按需倍增。
+	 * 
+	 * @return listener要求停止时返回false
+	 */
+	final boolean leftmostUntil(CharSequence text, int from, final int limit, boolean longest,
+			final MatchListener listener) {
+		final boolean[] stopped = new boolean[1];
+		MatchListener bounded = new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				if (start >= limit) {
+					return false;
+				}
+				if (!listener.onMatch(start, end, keywordId)) {
+					stopped[0] = true;
+					return false;
+				}
+				return true;
+			}
+		};
+		int length = text.length();
+		int pos = from;
+		for (int window = 256; pos < limit; window *= 2) {
+			int to = (int) Math.min(length, (long) limit + window);
+			int safe = leftmost(text, pos, to, to == length, longest, bounded);
+			if (safe == NONE) {
+				return !stopped[0];
+			}
+			if (to == length || safe >= limit) {
+				break;
+			}
+			// text[safe, to)中还有未确定的匹配，从safe处扩大窗口重新匹配
+			pos = safe;
+		}
+		return true;
+	}
+
+	/**
+	 * 从end往前数length个非跳过字符，返回最前一个的下标。length为0时返回end + 1。
+	 */
+	private int startIndex(CharSequence text, int end, int length) {
+		if (length == 0) {
+			return end + 1;
+		}
+		final long[] skip = skipTable;
+		int start = end;
+		for (int n = length - 1; n > 0;) {
+			start--;
+			if (!isSkip(skip, text.charAt(start))) {
+				n--;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * 把匹配替换后输出，匹配之间的文本原样输出
+	 */
+	private final class Replacer implements MatchListener {
+
+		final CharSequence text;
+
+		private final Appendable out;
+
+		private final ReplaceStrategy strategy;
+
+		/* text[0, emitted)已处理 */
+		private int emitted = 0;
+
+		private IOException exception;
+
+		Replacer(CharSequence text, Appendable out, ReplaceStrategy strategy) {
+			this.text = text;
+			this.out = out;
+			this.strategy = strategy;
+		}
+
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			try {
+				emit(start);
+				out.append(strategy.replaceWith(keyword(keywordId)));
+				emitted = end;
+				return true;
+			} catch (IOException e) {
+				exception = e;
+				return false;
+			}
+		}
+
+		/**
+		 * 原样输出text[emitted, to)
+		 */
+		void emit(int to) throws IOException {
+			out.append(text, emitted, to);
+			emitted = to;
+		}
+
+		void finish(int to) throws IOException {
+			if (null != exception) {
+				throw exception;
+			}
+			emit(to);
+		}
+	}
+
+	/**
+	 * 用KMP算法统计，文本只扫描一遍。关键字不必在词库中，同一关键字的多次出现互不重叠。
+	 */
+	@Override
+	public int count(String text, String keyword) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		checkNotNull(keyword, "Null value not allowed for parameter 'keyword'.");
+		if (keyword.isEmpty()) {
+			return 0;
+		}
+
+		final char[] target = normalize(keyword).toCharArray();
+		final int[] next = prefixFunction(target);
+		// 不依赖自动机，编译前也可以统计
+		final long[] skip = compiled ? skipTable : toSkipTable(skipChars, normalTable);
+		final char[] normal = normalTable;
+		int cnt = 0;
+		/* 已匹配的关键字字符数 */
+		int k = 0;
+		for (int i = 0, length = text.length(); i < length; i++) {
+			char raw = text.charAt(i);
+			char ch = null == normal ? raw : normal[raw];
+			// 不匹配又不是跳过字符时，沿前缀函数回退
+			while (k > 0 && ch != target[k] && !isSkip(skip, raw)) {
+				k = next[k - 1];
+			}
+			// 完全匹配，双方比对下一个字符
+			if (ch == target[k]) {
+				k++;
+			}
+			// 不匹配, 但属于跳过字符, 跳过1个字符, 但关键字不跳过
+			else {
+				continue;
+			}
+
+			if (k == target.length) {
+				cnt++;
+				k = 0;
+			}
+		}
+		return cnt;
+	}
+
+	/**
+	 * next[i]为target[0, i]的最长的、既是真前缀又是后缀的子串长度
+	 */
+	private static int[] prefixFunction(char[] target) {
+		int[] next = new int[target.length];
+		for (int i = 1, k = 0; i < target.length; i++) {
+			while (k > 0 && target[i] != target[k]) {
+				k = next[k - 1];
+			}
+			if (target[i] == target[k]) {
+				k++;
+			}
+			next[i] = k;
+		}
+		return next;
+	}
+
+	/**
+	 * 沿自动机扫描一遍文本，每到一个状态沿输出链接取出以当前字符结尾的全部关键字并计数。
+	 * 为与{@link #count(String, String)}一致，同一关键字只有在上次出现的结束位置之后开始时才计数。
+	 */
+	@Override
+	public int[] countAll(String text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+
+		final int[] counts = new int[keywordCount()];
+		/* 每个关键字上次计数时最后一个字符的序号 */
+		int[] lastEnds = null;
+		final long[] skip = skipTable;
+		final long[] start = startTable;
+		int last = ROOT;
+		/* 已读入的非跳过字符个数，根节点上越过的字符不计，只用于比较前后两次出现是否重叠 */
+		int ord = 0;
+		for (int i = 0, length = text.length(); i < length; i++) {
+			if (last == ROOT) {
+				i = nextStart(text, i, length, start);
+				if (i == length) {
+					break;
+				}
+			}
+			char ch = text.charAt(i);
+			if (isSkip(skip, ch)) {
+				continue;
+			}
+			last = transition(last, ch);
+			ord++;
+			int state = keywordId(last) != NONE ? last : outputLink(last);
+			while (state != NONE) {
+				int id = keywordId(state);
+				if (id >= counts.length) {
+					state = outputLink(state);
+					continue;
+				}
+				if (null == lastEnds) {
+					lastEnds = new int[counts.length];
+				}
+				if (ord - keywordLength(id) >= lastEnds[id]) {
+					counts[id]++;
+					lastEnds[id] = ord;
+				}
+				state = outputLink(state);
+			}
+		}
+		return counts;
+	}
+
+	void checkNotNull(Object o, String msg) {
+		if (o == null) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+}
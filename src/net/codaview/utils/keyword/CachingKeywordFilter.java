@@ -0,0 +1,551 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * 缓存hasKeywords、replace结果的过滤器，适合转发、模板通知、垃圾信息等大量重复的文本。
+ *
+ * 缓存以文本内容和词库版本为键，replace还区分ReplaceStrategy对象，命中时直接返回上次的结果。
+ * 被包装的是{@link VersionedKeywordFilter}(比如{@link ReloadableKeywordFilter})时，
+ * 每次调用先取得当前版本，在该版本上查缓存和扫描。版本变化时分配一个递增的代号，
+ * 各段在自己的锁内与调用者的代号比较：遇到更新的代号时清空本段，遇到更旧的代号时不读也不写，
+ * 因此并发的版本切换不会让某一段停留在旧版本上，旧版本的结果也不会再被返回。
+ *
+ * 缓存按权重(文本和结果的字符数之和)限制大小，淘汰策略参照W-TinyLFU：
+ * (1) 缓存分为若干段，按哈希值选段，每段各有一把锁，段之间互不阻塞；
+ * (2) 新结果先进入每段约1%的LRU窗口，被挤出窗口时与主区的LRU末尾比较近期访问频率，频率更高的留下；
+ * (3) 访问频率由每段一个4位计数的Count-Min Sketch估计，计数达到一定次数后全部减半，使旧的热点逐渐冷却。
+ * 因此只出现一次的文本不会把反复出现的文本挤出缓存。
+ *
+ * ReplaceStrategy的结果应只取决于关键字，否则不要使用缓存。其它方法直接转给当前版本，不缓存。
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class CachingKeywordFilter implements KeywordFilter {
+
+	/**
+	 * 默认最多缓存的字符数
+	 */
+	public static final long DEFAULT_MAX_WEIGHT = 16L << 20;
+
+	/**
+	 * 段数，必须是2的幂
+	 */
+	private static final int SEGMENTS = 16;
+
+	/**
+	 * 每个缓存项除文本外的估计开销，折算成字符数
+	 */
+	private static final int ENTRY_WEIGHT = 32;
+
+	/**
+	 * hasKeywords结果的缓存键中代替ReplaceStrategy
+	 */
+	private static final Object HAS_KEYWORDS = new Object();
+
+	private final KeywordFilter filter;
+
+	private final Segment[] segments = new Segment[SEGMENTS];
+
+	/**
+	 * 最近一次调用时的词库版本及其代号
+	 */
+	private final AtomicReference<Generation> generation;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder evictions = new LongAdder();
+
+	public CachingKeywordFilter(KeywordFilter filter) {
+		this(filter, DEFAULT_MAX_WEIGHT);
+	}
+
+	/**
+	 * @param filter
+	 *            被包装的过滤器
+	 * @param maxWeight
+	 *            最多缓存的字符数，包括文本和结果
+	 */
+	public CachingKeywordFilter(KeywordFilter filter, long maxWeight) {
+		if (null == filter) {
+			throw new NullPointerException("请传入被包装的过滤器");
+		}
+		if (maxWeight < SEGMENTS) {
+			throw new IllegalArgumentException("缓存大小过小: " + maxWeight);
+		}
+		this.filter = filter;
+		this.generation = new AtomicReference<Generation>(new Generation(current(), 0));
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(maxWeight / SEGMENTS);
+		}
+	}
+
+	/**
+	 * 当前版本，不涉及缓存的方法直接使用
+	 */
+	private KeywordFilter current() {
+		return filter instanceof VersionedKeywordFilter ? ((VersionedKeywordFilter) filter).current() : filter;
+	}
+
+	/**
+	 * 当前版本及其代号。版本变化时代号加1，各段在下次访问时自行清空
+	 */
+	private Generation generation() {
+		KeywordFilter current = current();
+		for (;;) {
+			Generation last = generation.get();
+			if (last.filter == current) {
+				return last;
+			}
+			Generation next = new Generation(current, last.epoch + 1);
+			if (generation.compareAndSet(last, next)) {
+				return next;
+			}
+			// 其它线程刚换了代号，重新读取当前版本再比较
+			current = current();
+		}
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		return hasKeywords(generation(), text);
+	}
+
+	private boolean hasKeywords(Generation current, String text) {
+		Key key = new Key(HAS_KEYWORDS, text);
+		Segment segment = segmentFor(key);
+		Object cached = segment.get(key, current.epoch);
+		if (null != cached) {
+			hits.increment();
+			return (Boolean) cached;
+		}
+		misses.increment();
+		boolean ret = current.filter.hasKeywords(text);
+		segment.put(key, ret, text.length() + ENTRY_WEIGHT, current.epoch);
+		return ret;
+	}
+
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'.");
+		Generation current = generation();
+		BitSet ret = new BitSet(texts.size());
+		int i = 0;
+		for (CharSequence text : texts) {
+			checkNotNull(text, "Null value not allowed for element of 'texts'.");
+			if (text instanceof String ? hasKeywords(current, (String) text) : current.filter.hasKeywords(text
+					.toString())) {
+				ret.set(i);
+			}
+			i++;
+		}
+		return ret;
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		return replace(generation(), text, strategy);
+	}
+
+	private String replace(Generation current, String text, ReplaceStrategy strategy) {
+		Key key = new Key(strategy, text);
+		Segment segment = segmentFor(key);
+		Object cached = segment.get(key, current.epoch);
+		if (null != cached) {
+			hits.increment();
+			return (String) cached;
+		}
+		misses.increment();
+		String ret = current.filter.replace(text, strategy);
+		// 不包含关键字时结果就是text本身，不再额外占用
+		int weight = text.length() + ENTRY_WEIGHT + (ret == text ? 0 : ret.length());
+		segment.put(key, ret, weight, current.epoch);
+		return ret;
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		if (text instanceof String) {
+			return replace((String) text, strategy);
+		}
+		return current().replace(text, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		return current().replace(text, out, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		return current().replace(text, out, strategy);
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		Generation current = generation();
+		List<String> ret = new ArrayList<String>(texts.size());
+		for (String text : texts) {
+			checkNotNull(text, "Null value not allowed for element of 'texts'");
+			ret.add(replace(current, text, strategy));
+		}
+		return ret;
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
+		current().match(text, mode, listener);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return current().getKeyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return current().getKeywordCount();
+	}
+
+	@Override
+	public int count(String text, String keyword) {
+		return current().count(text, keyword);
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		return current().countAll(text);
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		return current().hasKeywords(reader);
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		current().replace(reader, writer, strategy);
+	}
+
+	/**
+	 * 清空缓存，统计数据不变
+	 */
+	public void invalidateAll() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * 命中次数
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * 未命中次数
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * 命中率，没有调用时为0
+	 */
+	public double getHitRate() {
+		long hits = this.hits.sum();
+		long total = hits + misses.sum();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	/**
+	 * 因容量不足被淘汰或未被接纳的缓存项个数
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	/**
+	 * 当前缓存项个数
+	 */
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * 当前缓存的总权重(字符数)
+	 */
+	public long weight() {
+		long weight = 0;
+		for (Segment segment : segments) {
+			weight += segment.weight();
+		}
+		return weight;
+	}
+
+	private Segment segmentFor(Key key) {
+		// 用哈希值的高位选段，低位留给频率估计
+		return segments[(key.hash * 0x9E3779B9) >>> 28 & (SEGMENTS - 1)];
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 缓存键：文本内容和ReplaceStrategy对象
+	 */
+	private static final class Key {
+
+		final Object strategy;
+
+		final String text;
+
+		final int hash;
+
+		Key(Object strategy, String text) {
+			this.strategy = strategy;
+			this.text = text;
+			this.hash = text.hashCode() * 31 + System.identityHashCode(strategy);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return hash == other.hash && strategy == other.strategy && text.equals(other.text);
+		}
+	}
+
+	/**
+	 * 词库版本和它的代号，代号只增不减
+	 */
+	private static final class Generation {
+
+		final KeywordFilter filter;
+
+		final long epoch;
+
+		Generation(KeywordFilter filter, long epoch) {
+			this.filter = filter;
+			this.epoch = epoch;
+		}
+	}
+
+	private static final class Entry {
+
+		final Object value;
+
+		final int weight;
+
+		Entry(Object value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * 缓存的一段，由自己的锁保护。缓存项都属于同一个词库版本，即代号为epoch的版本
+	 */
+	private final class Segment {
+
+		/**
+		 * 新缓存项先进入的LRU窗口
+		 */
+		private final LinkedHashMap<Key, Entry> window = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+		/**
+		 * 主区，按LRU顺序排列，末尾的缓存项与被挤出窗口的缓存项比较访问频率
+		 */
+		private final LinkedHashMap<Key, Entry> main = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+
+		private final long windowMaxWeight;
+
+		private final long mainMaxWeight;
+
+		private long windowWeight = 0;
+
+		private long mainWeight = 0;
+
+		private final FrequencySketch sketch = new FrequencySketch();
+
+		private long epoch = 0;
+
+		Segment(long maxWeight) {
+			this.windowMaxWeight = Math.max(1, maxWeight / 100);
+			this.mainMaxWeight = maxWeight - windowMaxWeight;
+		}
+
+		synchronized Object get(Key key, long epoch) {
+			sketch.increment(key.hash);
+			if (!adopt(epoch)) {
+				return null;
+			}
+			Entry entry = window.get(key);
+			if (null == entry) {
+				entry = main.get(key);
+			}
+			return null == entry ? null : entry.value;
+		}
+
+		synchronized void put(Key key, Object value, int weight, long epoch) {
+			// 结果来自旧版本，丢弃
+			if (!adopt(epoch) || weight > mainMaxWeight || window.containsKey(key)
+					|| main.containsKey(key)) {
+				return;
+			}
+			window.put(key, new Entry(value, weight));
+			windowWeight += weight;
+			Iterator<Map.Entry<Key, Entry>> it = window.entrySet().iterator();
+			while (windowWeight > windowMaxWeight) {
+				Map.Entry<Key, Entry> eldest = it.next();
+				it.remove();
+				windowWeight -= eldest.getValue().weight;
+				admit(eldest.getKey(), eldest.getValue());
+			}
+		}
+
+		/**
+		 * 被挤出窗口的缓存项进入主区，主区已满时与LRU末尾比较访问频率，淘汰频率低的
+		 */
+		private void admit(Key key, Entry candidate) {
+			Iterator<Map.Entry<Key, Entry>> it = main.entrySet().iterator();
+			while (mainWeight + candidate.weight > mainMaxWeight) {
+				Map.Entry<Key, Entry> victim = it.next();
+				if (sketch.frequency(key.hash) <= sketch.frequency(victim.getKey().hash)) {
+					evictions.increment();
+					return;
+				}
+				it.remove();
+				mainWeight -= victim.getValue().weight;
+				evictions.increment();
+			}
+			main.put(key, candidate);
+			mainWeight += candidate.weight;
+		}
+
+		/**
+		 * 调用者的代号更新时换成新版本，旧版本的缓存项全部丢弃；代号只增不减，迟到的旧代号不会覆盖新版本
+		 *
+		 * @return 调用者的版本是否就是本段缓存项的版本
+		 */
+		private boolean adopt(long epoch) {
+			if (epoch > this.epoch) {
+				this.epoch = epoch;
+				clear();
+			}
+			return epoch == this.epoch;
+		}
+
+		synchronized void clear() {
+			window.clear();
+			main.clear();
+			windowWeight = 0;
+			mainWeight = 0;
+		}
+
+		synchronized int size() {
+			return window.size() + main.size();
+		}
+
+		synchronized long weight() {
+			return windowWeight + mainWeight;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 估计近期访问频率的Count-Min Sketch，每个计数器4位，最大为15。
+	 * 每个哈希值对应4个计数器，频率取其中的最小值；累计计数达到计数器个数的10倍时全部减半。
+	 * </pre>
+	 */
+	private static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97CB3127, 0xB492B66F, 0x9AE16A3B, 0xC2B2AE35 };
+
+		/**
+		 * 每个long存放16个计数器
+		 */
+		private final long[] table = new long[1024];
+
+		private final int mask = table.length * 16 - 1;
+
+		private final int sampleSize = table.length * 16 * 10;
+
+		private int additions = 0;
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				int shift = (index & 15) << 2;
+				long counter = (table[index >>> 4] >>> shift) & 15;
+				if (counter < 15) {
+					table[index >>> 4] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				reset();
+			}
+		}
+
+		int frequency(int hash) {
+			long frequency = 15;
+			for (int i = 0; i < SEEDS.length; i++) {
+				int index = index(hash, i);
+				frequency = Math.min(frequency, (table[index >>> 4] >>> ((index & 15) << 2)) & 15);
+			}
+			return (int) frequency;
+		}
+
+		private int index(int hash, int i) {
+			int h = (hash + SEEDS[i]) * SEEDS[i];
+			return (h ^ (h >>> 16)) & mask;
+		}
+
+		/**
+		 * 全部计数减半
+		 */
+		private void reset() {
+			for (int i = 0; i < table.length; i++) {
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			}
+			additions /= 2;
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package net.codaview.utils.keyword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * <pre>
+ * 字符规范化表，把大小写、全角半角、繁体简体等写法不同的字符映射为同一个字符。
+ *
+ * 设置到过滤器后，关键字和待匹配文本中的每个字符都先经过此表再参与匹配，因此“ＡＢＣ”、“abc”、“Abc”
+ * 都能匹配关键字“abc”，不必在过滤前用toLowerCase、replace等逐遍复制文本。
+ * 规范化只是一个字符到一个字符的映射，文本长度和下标都不变，替换时改写的仍是原文本中对应位置的字符。
+ *
+ * 映射会被连续应用，比如同时设置全角转半角和忽略大小写时，“Ａ”先变为“A”再变为“a”。
+ * </pre>
+ *
+ * <pre>
+ * <code>
+ *   CharNormalizer normalizer = new CharNormalizer();
+ *   normalizer.addFullWidthFolding();
+ *   normalizer.addCaseFolding();
+ *   // 繁简转换表，比如OpenCC的TSCharacters.txt
+ *   normalizer.addMappings(reader);
+ *   builder.setNormalizer(normalizer);
+ * </code>
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class CharNormalizer {
+
+	/**
+	 * 连续应用映射的最大次数，防止映射成环
+	 */
+	private static final int MAX_CHAIN = 16;
+
+	/**
+	 * 下标为原字符，值为映射到的字符
+	 */
+	private final char[] mappings = new char[Character.MAX_VALUE + 1];
+
+	private boolean empty = true;
+
+	public CharNormalizer() {
+		for (int ch = 0; ch < mappings.length; ch++) {
+			mappings[ch] = (char) ch;
+		}
+	}
+
+	/**
+	 * 把from映射为to
+	 */
+	public void addMapping(char from, char to) {
+		mappings[from] = to;
+		empty &= from == to;
+	}
+
+	/**
+	 * 把from中的每个字符映射为to中相同位置的字符
+	 */
+	public void addMapping(String from, String to) {
+		if (null == from || null == to || from.length() != to.length()) {
+			throw new IllegalArgumentException("映射前后的字符个数必须相同");
+		}
+		for (int i = 0; i < from.length(); i++) {
+			addMapping(from.charAt(i), to.charAt(i));
+		}
+	}
+
+	/**
+	 * 忽略大小写，大写字母映射为小写(包括全角、希腊、西里尔等字母)
+	 */
+	public void addCaseFolding() {
+		for (int ch = 0; ch < mappings.length; ch++) {
+			char lower = Character.toLowerCase((char) ch);
+			if (lower != ch) {
+				addMapping((char) ch, lower);
+			}
+		}
+	}
+
+	/**
+	 * 全角字符映射为半角，包括全角空格
+	 */
+	public void addFullWidthFolding() {
+		for (char ch = '！'; ch <= '～'; ch++) {
+			addMapping(ch, (char) (ch - 0xFEE0));
+		}
+		addMapping('　', ' ');
+	}
+
+	/**
+	 * <pre>
+	 * 读入映射表，每行为“原字符 目标字符”，以空白分隔，如繁简转换表“萬	万”。
+	 * 目标有多个时取第一个，原字符或目标不是单个字符的行、空行和#开头的行被忽略。
+	 * 与OpenCC的TSCharacters.txt等字符转换表格式兼容。
+	 * </pre>
+	 *
+	 * @param reader
+	 *            映射表，调用者负责关闭
+	 */
+	public void addMappings(Reader reader) throws IOException {
+		if (null == reader) {
+			throw new NullPointerException("请传入映射表");
+		}
+		BufferedReader in = new BufferedReader(reader);
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			String[] fields = line.split("\\s+");
+			if (fields.length >= 2 && fields[0].length() == 1 && fields[1].length() == 1) {
+				addMapping(fields[0].charAt(0), fields[1].charAt(0));
+			}
+		}
+	}
+
+	/**
+	 * 规范化一个字符
+	 */
+	public char normalize(char ch) {
+		for (int i = 0; i < MAX_CHAIN && mappings[ch] != ch; i++) {
+			ch = mappings[ch];
+		}
+		return ch;
+	}
+
+	/**
+	 * 规范化一个字符串，长度不变
+	 */
+	public String normalize(String text) {
+		char[] chars = text.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = normalize(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * 连续应用映射后的完整映射表，没有任何映射时返回null
+	 */
+	char[] table() {
+		if (empty) {
+			return null;
+		}
+		char[] table = new char[mappings.length];
+		for (int ch = 0; ch < table.length; ch++) {
+			table[ch] = normalize((char) ch);
+		}
+		return table;
+	}
+
+}
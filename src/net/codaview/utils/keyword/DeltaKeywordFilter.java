@@ -0,0 +1,416 @@
+package net.codaview.utils.keyword;
+
+import java.util.BitSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <pre>
+ * 把一个大的已编译自动机(基础词库)和编译后新增的关键字在查询时合并成一个自动机，
+ * 并可删除基础词库中的部分关键字。基础词库不需要重新编译，构造的代价与词库大小无关。
+ *
+ * 新增的关键字放在一棵只增不减的{@link DeltaTrie}中，同一个基础词库的各个版本共用，
+ * 添加一个关键字只需插入它自己的字符；每个版本用自己的位图记录哪些新增关键字有效。
+ * DeltaTrie只有转移没有失败指针，需要时从根节点重新查找后缀，新增的关键字都很短，代价可以忽略。
+ * 后来插入的节点对旧版本没有影响：状态只是多记住了一段更长的后缀，输出时仍只报告旧版本中有效的关键字。
+ *
+ * 合并后的状态是两个状态的组合 (b, d)：
+ * (1) 读入字符时两边各自转移，d为文本的后缀中能在DeltaTrie中走到的最长的一个；
+ * (2) 状态对应的字符串取两者中较长的一个，即深度取最大值；
+ * (3) 以该状态结尾的关键字是两者输出的并集(去掉已删除的)，按长度从长到短排列。
+ *     输出链上的状态也用 (b, d) 表示，b、d分别是两条链上尚未输出的部分，用完时为根节点。
+ * d为根节点时状态编号就是b，扫描大部分时候都在这种状态上；其余的组合在第一次遇到时按需编号，
+ * 编号表属于这个版本，因此状态编号不受两边状态数乘积的限制。
+ * 合并后的关键字编号：基础词库的编号不变，新增关键字按第一次加入DeltaTrie的顺序排在其后。
+ * </pre>
+ *
+ * @author lianxh
+ */
+final class DeltaKeywordFilter extends AbstractKeywordFilter {
+
+	private final AbstractKeywordFilter base;
+
+	private final DeltaTrie trie;
+
+	/**
+	 * 已删除的基础词库关键字编号，构造后不再修改
+	 */
+	private final BitSet removed;
+
+	/**
+	 * 本版本中有效的新增关键字编号，构造后不再修改
+	 */
+	private final BitSet visible;
+
+	/**
+	 * 本版本创建时DeltaTrie中的关键字，之后追加的不属于本版本
+	 */
+	private final String[] deltaKeywords;
+
+	private final int deltaCount;
+
+	private final int baseKeywordCount;
+
+	private final int baseStateCount;
+
+	/**
+	 * d不是根节点的组合 -> 状态编号
+	 */
+	private final ConcurrentHashMap<Long, Integer> pairIds = new ConcurrentHashMap<Long, Integer>();
+
+	/**
+	 * 状态编号 - baseStateCount -> 组合。只在pairIds的锁内追加，扩容时换成新数组
+	 */
+	private volatile Pair[] pairs = new Pair[16];
+
+	private int pairCount = 0;
+
+	/**
+	 * @param base
+	 *            已编译的基础词库
+	 * @param trie
+	 *            新增关键字所在的DeltaTrie，之后还可以继续追加
+	 * @param removed
+	 *            已删除的基础词库关键字编号，之后不能再修改
+	 * @param visible
+	 *            本版本中有效的新增关键字编号，之后不能再修改
+	 */
+	DeltaKeywordFilter(AbstractKeywordFilter base, DeltaTrie trie, BitSet removed, BitSet visible) {
+		this.base = base;
+		this.trie = trie;
+		this.removed = removed;
+		this.visible = visible;
+		this.deltaKeywords = trie.keywords;
+		this.deltaCount = trie.keywordCount;
+		this.baseKeywordCount = base.keywordCount();
+		this.baseStateCount = base.stateCount();
+		// 跳过字符与基础词库一致，编译后不会再被修改，可以共用
+		this.skipChars = base.skipChars;
+		this.skipTable = base.skipTable;
+		this.normalTable = base.normalTable;
+		this.startTable = trie.startTable;
+		this.compiled = true;
+	}
+
+	@Override
+	int transition(int state, char ch) {
+		Pair pair = pair(state);
+		int b = base.transition(null == pair ? state : pair.b, ch);
+		Node d = trie.next(null == pair ? trie.root : pair.d, normalize(ch));
+		return state(b, d);
+	}
+
+	@Override
+	int keywordId(int state) {
+		Pair pair = pair(state);
+		int b = aliveBase(null == pair ? state : pair.b);
+		Node d = null == pair ? trie.root : output(pair);
+		if (b == ROOT && d == trie.root) {
+			return NONE;
+		}
+		return baseFirst(b, d) ? base.keywordId(b) : baseKeywordCount + d.keywordId;
+	}
+
+	@Override
+	int outputLink(int state) {
+		Pair pair = pair(state);
+		int b = aliveBase(null == pair ? state : pair.b);
+		Node d = null == pair ? trie.root : output(pair);
+		if (b == ROOT && d == trie.root) {
+			return NONE;
+		}
+		// 去掉较长的那个关键字，剩下的就是输出链上的下一个状态
+		if (baseFirst(b, d)) {
+			int link = base.outputLink(b);
+			b = link == NONE ? ROOT : aliveBase(link);
+		} else {
+			d = longestVisible(d, 1);
+		}
+		return b == ROOT && d == trie.root ? NONE : state(b, d);
+	}
+
+	/**
+	 * 基础词库中以b结尾的、未删除的最长关键字所在的状态，没有则返回根节点
+	 */
+	private int aliveBase(int b) {
+		int s = base.keywordId(b) != NONE ? b : base.outputLink(b);
+		while (s != NONE && removed.get(base.keywordId(s))) {
+			s = base.outputLink(s);
+		}
+		return s == NONE ? ROOT : s;
+	}
+
+	/**
+	 * 组合中d这一边能输出的最长关键字所在的节点，第一次用到时计算
+	 */
+	private Node output(Pair pair) {
+		Node output = pair.output;
+		if (null == output) {
+			output = longestVisible(pair.d, 0);
+			pair.output = output;
+		}
+		return output;
+	}
+
+	/**
+	 * d的字符串去掉前from个字符后，最长的一个本版本中有效的新增关键字后缀所在的节点，没有则返回根节点
+	 */
+	private Node longestVisible(Node d, int from) {
+		String text = d.text;
+		for (int i = from; i < text.length(); i++) {
+			Node node = trie.walk(text, i);
+			if (null != node && isVisible(node)) {
+				return node;
+			}
+		}
+		return trie.root;
+	}
+
+	private boolean isVisible(Node node) {
+		int id = node.keywordId;
+		return id != NONE && id < deltaCount && visible.get(id);
+	}
+
+	/**
+	 * 两个关键字中较长的是否是基础词库中的那个。两者不会同样长，否则就是同一个关键字
+	 */
+	private boolean baseFirst(int b, Node d) {
+		return d == trie.root || (b != ROOT && base.depth(b) > d.text.length());
+	}
+
+	@Override
+	int depth(int state) {
+		Pair pair = pair(state);
+		return null == pair ? base.depth(state) : Math.max(base.depth(pair.b), pair.d.text.length());
+	}
+
+	/**
+	 * d为根节点时组合就是基础词库的状态，否则查编号表，没有时编一个新号
+	 */
+	private int state(int b, Node d) {
+		if (d == trie.root) {
+			return b;
+		}
+		Long key = ((long) b << 32) | d.serial;
+		Integer id = pairIds.get(key);
+		if (null != id) {
+			return id;
+		}
+		synchronized (pairIds) {
+			id = pairIds.get(key);
+			if (null == id) {
+				Pair[] pairs = this.pairs;
+				if (pairCount == pairs.length) {
+					Pair[] grown = new Pair[pairs.length * 2];
+					System.arraycopy(pairs, 0, grown, 0, pairCount);
+					pairs = grown;
+				}
+				pairs[pairCount] = new Pair(b, d);
+				// 先写入组合再发布编号，其它线程通过pairIds拿到编号后一定能读到组合
+				this.pairs = pairs;
+				id = baseStateCount + pairCount;
+				pairCount++;
+				pairIds.put(key, id);
+			}
+			return id;
+		}
+	}
+
+	/**
+	 * 状态对应的组合，d为根节点的状态返回null
+	 */
+	private Pair pair(int state) {
+		return state < baseStateCount ? null : pairs[state - baseStateCount];
+	}
+
+	@Override
+	String keyword(int keywordId) {
+		return keywordId < baseKeywordCount ? base.keyword(keywordId) : deltaKeywords[keywordId - baseKeywordCount];
+	}
+
+	@Override
+	int keywordLength(int keywordId) {
+		return keywordId < baseKeywordCount ? base.keywordLength(keywordId)
+				: deltaKeywords[keywordId - baseKeywordCount].length();
+	}
+
+	@Override
+	int keywordCount() {
+		return baseKeywordCount + deltaCount;
+	}
+
+	/**
+	 * 组合状态按需编号，没有固定的上界
+	 */
+	@Override
+	int stateCount() {
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * d不是根节点的组合
+	 */
+	private static final class Pair {
+
+		final int b;
+
+		final Node d;
+
+		/**
+		 * d这一边能输出的最长关键字所在的节点，未计算时为null。多个线程重复计算的结果相同
+		 */
+		volatile Node output;
+
+		Pair(int b, Node d) {
+			this.b = b;
+			this.d = d;
+		}
+	}
+
+	/**
+	 * DeltaTrie的节点，text为从根节点到此节点的字符串
+	 */
+	static final class Node {
+
+		final String text;
+
+		/**
+		 * 节点序号，与基础词库的状态一起组成组合的键
+		 */
+		final int serial;
+
+		final ConcurrentHashMap<Character, Node> children = new ConcurrentHashMap<Character, Node>(4);
+
+		/**
+		 * 以此节点结尾的新增关键字编号，没有则为{@link AbstractKeywordFilter#NONE}
+		 */
+		volatile int keywordId = NONE;
+
+		Node(String text, int serial) {
+			this.text = text;
+			this.serial = serial;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 编译后新增的关键字组成的Trie树，只增不减，同一个基础词库的各个版本共用。
+	 * 只能在一个线程(或同一把锁内)追加，可以同时被任意多个线程查询。
+	 * 删除关键字只是不再出现在新版本的有效位图中，节点和编号保留到下次重新编译基础词库。
+	 * </pre>
+	 */
+	static final class DeltaTrie {
+
+		final Node root = new Node("", 0);
+
+		private int nodeCount = 1;
+
+		/**
+		 * 按编号排列的关键字，扩容时换成新数组，已创建的版本继续使用旧数组
+		 */
+		String[] keywords = new String[16];
+
+		int keywordCount = 0;
+
+		/**
+		 * 基础词库与新增关键字的首字符位图的并集，加入新的首字符时换成新数组
+		 */
+		long[] startTable;
+
+		/**
+		 * 新增关键字的首字符位图，同上。扫描时大部分字符都不在其中，不必查根节点的子节点
+		 */
+		private long[] rootTable = new long[(Character.MAX_VALUE + 1) >>> 6];
+
+		DeltaTrie(AbstractKeywordFilter base) {
+			this.startTable = base.startTable;
+		}
+
+		/**
+		 * 加入关键字，代价只与关键字的长度有关
+		 *
+		 * @return 关键字编号，已经加入过的返回原来的编号
+		 */
+		int add(String keyword) {
+			Node node = root;
+			for (int i = 0; i < keyword.length(); i++) {
+				char ch = keyword.charAt(i);
+				Node child = node.children.get(ch);
+				if (null == child) {
+					child = new Node(keyword.substring(0, i + 1), nodeCount++);
+					node.children.put(ch, child);
+				}
+				node = child;
+			}
+			if (node.keywordId == NONE) {
+				if (keywordCount == keywords.length) {
+					String[] grown = new String[keywords.length * 2];
+					System.arraycopy(keywords, 0, grown, 0, keywordCount);
+					keywords = grown;
+				}
+				keywords[keywordCount] = keyword;
+				node.keywordId = keywordCount++;
+			}
+			char first = keyword.charAt(0);
+			if ((startTable[first >>> 6] & (1L << first)) == 0) {
+				startTable = with(startTable, first);
+			}
+			if ((rootTable[first >>> 6] & (1L << first)) == 0) {
+				rootTable = with(rootTable, first);
+			}
+			return node.keywordId;
+		}
+
+		/**
+		 * 已发布的版本可能正在读取旧的位图，复制后再加入
+		 */
+		private static long[] with(long[] table, char ch) {
+			long[] ret = table.clone();
+			ret[ch >>> 6] |= 1L << ch;
+			return ret;
+		}
+
+		/**
+		 * 关键字的编号，没有加入过时返回{@link AbstractKeywordFilter#NONE}
+		 */
+		int find(String keyword) {
+			Node node = walk(keyword, 0);
+			return null == node ? NONE : node.keywordId;
+		}
+
+		/**
+		 * 从根节点沿text[from, text.length())走到的节点，走不通时返回null
+		 */
+		Node walk(String text, int from) {
+			Node node = root;
+			for (int i = from; i < text.length() && null != node; i++) {
+				node = node.children.get(text.charAt(i));
+			}
+			return node;
+		}
+
+		/**
+		 * d的字符串接上ch后，最长的一个能在树中走到的后缀所在的节点
+		 */
+		Node next(Node d, char ch) {
+			if (d == root) {
+				if ((rootTable[ch >>> 6] & (1L << ch)) == 0) {
+					return root;
+				}
+				Node child = root.children.get(ch);
+				return null == child ? root : child;
+			}
+			String text = d.text;
+			for (int i = 0; i <= text.length(); i++) {
+				Node node = walk(text, i);
+				if (null != node) {
+					Node child = node.children.get(ch);
+					if (null != child) {
+						return child;
+					}
+				}
+			}
+			return root;
+		}
+	}
+
+}
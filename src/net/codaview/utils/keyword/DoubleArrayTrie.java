@@ -0,0 +1,704 @@
+package net.codaview.utils.keyword;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * <pre>
+ * 双数组Trie树(Double-Array Trie)实现的AC自动机。
+ *
+ * 与{@link TrieTree}相比，节点不再是对象，所有状态都存放在几个int数组中：
+ * (1) base[s] + code(ch) 为状态s读入字符ch后的候选状态t(base可以为负数)，code按字符在关键字中的出现频率从1开始编码，
+ *     不在关键字中出现的字符编码为0，读入后直接回到根节点；
+ * (2) 当且仅当 check[t] == s 时，转移成立；
+ * (3) fail[s] 为失败指针，keyword[s] 为以s结尾的关键字编号，outputLink[s] 为输出链接，depth[s] 为深度。
+ * 扫描时不再装箱Character、不再查HashMap，内存占用也只有几个数组。
+ * 设置了{@link CharNormalizer}时，规范化直接合并到编码表中：规范化前后的字符编码相同，扫描时没有额外的开销。
+ *
+ * 编译时先用{@link TrieTree}构造Trie树和失败指针，再按广度优先顺序把节点排布到数组中，
+ * 因此两者的匹配结果完全一致。
+ *
+ * 编译结果可以用{@link #writeTo(OutputStream)}保存为二进制快照，启动时用{@link #load(Path)}直接读回数组，
+ * 不必重新插入关键字、构造失败指针。快照格式(大端序)：
+ * int    魔数"KWDA"
+ * int    版本号
+ * int    跳过字符个数n，char[n] 跳过字符
+ * int    规范化映射个数n，char[n] 原字符，int n，char[n] 对应的规范化字符
+ * int    字符表大小n，char[n] 按编码排列的规范化后的字符(编码为下标+1)
+ * int    数组长度n，int[n] base、check、fail、keyword、outputLink、depth 各一段
+ * int    关键字个数n，int[n + 1] 各关键字在字符段中的起点，int 字符总数m，char[m] 关键字字符
+ * int    n个关键字中排在最后的允许短语个数
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class DoubleArrayTrie extends AbstractKeywordFilter {
+
+	/**
+	 * 编译前用于收集关键字，编译后释放
+	 */
+	private TrieTree tree = new TrieTree();
+
+	/**
+	 * 字符编码表，下标为字符
+	 */
+	private char[] codes;
+
+	private int[] base;
+
+	private int[] check;
+
+	private int[] fail;
+
+	private int[] keywordIds;
+
+	private int[] outputLinks;
+
+	private int[] depths;
+
+	private String[] keywords;
+
+	/**
+	 * 编译时使用的空闲槽位链表，freePrev[0]记录链表尾
+	 */
+	private int[] freeNext;
+
+	private int[] freePrev;
+
+	/**
+	 * 编译时每个空闲槽位作为起点放不下子节点的次数
+	 */
+	private int[] trials;
+
+	private int alphabetSize;
+
+	/**
+	 * keywords中排在最后的允许短语个数
+	 */
+	private int allowedCount;
+
+	/**
+	 * 快照文件的魔数，即"KWDA"
+	 */
+	static final int SNAPSHOT_MAGIC = 0x4B574441;
+
+	static final int SNAPSHOT_VERSION = 1;
+
+	/**
+	 * 空闲槽位作为起点放不下子节点的次数达到此值后，移出空闲链表
+	 */
+	private static final int MAX_TRIALS = 64;
+
+	/**
+	 * 添加关键字
+	 *
+	 * @param keyword
+	 *            关键字字符串
+	 */
+	public void add(String keyword) {
+		if (compiled) {
+			throw new IllegalStateException("DoubleArrayTrie编译后不能再添加关键字");
+		}
+		tree.add(keyword);
+	}
+
+	/**
+	 * 添加允许短语，被它完全覆盖的关键字不再报告
+	 *
+	 * @see TrieTree#addAllowedPhrase(String)
+	 */
+	public void addAllowedPhrase(String phrase) {
+		if (compiled) {
+			throw new IllegalStateException("DoubleArrayTrie编译后不能再添加允许短语");
+		}
+		tree.addAllowedPhrase(phrase);
+	}
+
+	/**
+	 * 在pool上并行地添加一批关键字，结果与逐个添加相同
+	 *
+	 * @see TrieTree#addAll(List, ForkJoinPool)
+	 */
+	public void addAll(List<String> keywords, ForkJoinPool pool) {
+		if (compiled) {
+			throw new IllegalStateException("DoubleArrayTrie编译后不能再添加关键字");
+		}
+		tree.addAll(keywords, pool);
+	}
+
+	@Override
+	public void setNormalizer(CharNormalizer normalizer) {
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再设置字符规范化");
+		}
+		tree.setNormalizer(normalizer);
+		super.setNormalizer(normalizer);
+	}
+
+	/**
+	 * 编译双数组
+	 */
+	public void compile() {
+		compile(null);
+	}
+
+	/**
+	 * 编译双数组，pool不为null时并行计算失败指针，双数组本身仍顺序构建
+	 */
+	public void compile(ForkJoinPool pool) {
+		tree.compile(false, pool);
+		encode(tree.keywords());
+		build(tree.states(), tree.keywords());
+		this.allowedCount = tree.allowedCount();
+		foldCodes(codes, normalTable);
+		this.tree = null;
+		compileTables();
+	}
+
+	@Override
+	int transition(int state, char ch) {
+		final int code = codes[ch];
+		if (code == 0) {
+			return ROOT;
+		}
+		while (true) {
+			int t = base[state] + code;
+			if (t >= 0 && t < check.length && check[t] == state) {
+				return t;
+			}
+			if (state == ROOT) {
+				return ROOT;
+			}
+			state = fail[state];
+		}
+	}
+
+	@Override
+	int keywordId(int state) {
+		return keywordIds[state];
+	}
+
+	@Override
+	int outputLink(int state) {
+		return outputLinks[state];
+	}
+
+	@Override
+	int depth(int state) {
+		return depths[state];
+	}
+
+	@Override
+	String keyword(int keywordId) {
+		return keywords[keywordId];
+	}
+
+	@Override
+	int keywordLength(int keywordId) {
+		return keywords[keywordId].length();
+	}
+
+	@Override
+	int keywordCount() {
+		return keywords.length - allowedCount;
+	}
+
+	@Override
+	int allowedCount() {
+		return allowedCount;
+	}
+
+	@Override
+	int stateCount() {
+		return check.length;
+	}
+
+	/**
+	 * 把编译结果以二进制快照的格式写出，不关闭输出流
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (!compiled) {
+			throw new IllegalStateException("DoubleArrayTrie编译后才能保存");
+		}
+		char[] skips = new char[skipChars.size()];
+		int n = 0;
+		for (char ch : skipChars) {
+			skips[n++] = ch;
+		}
+		Arrays.sort(skips);
+		int mappings = 0;
+		for (int ch = 0; null != normalTable && ch < normalTable.length; ch++) {
+			if (normalTable[ch] != ch) {
+				mappings++;
+			}
+		}
+		char[] from = new char[mappings];
+		char[] to = new char[mappings];
+		for (int ch = 0, i = 0; i < mappings; ch++) {
+			if (normalTable[ch] != ch) {
+				from[i] = (char) ch;
+				to[i++] = normalTable[ch];
+			}
+		}
+		char[] alphabet = new char[alphabetSize];
+		for (int ch = 0; ch < codes.length; ch++) {
+			// 规范化前的字符与规范化后的字符编码相同，只记录后者
+			if (codes[ch] != 0 && normalize((char) ch) == ch) {
+				alphabet[codes[ch] - 1] = (char) ch;
+			}
+		}
+		int[] keywordOffsets = new int[keywords.length + 1];
+		for (int i = 0; i < keywords.length; i++) {
+			keywordOffsets[i + 1] = keywordOffsets[i] + keywords[i].length();
+		}
+		char[] keywordChars = new char[keywordOffsets[keywords.length]];
+		for (int i = 0; i < keywords.length; i++) {
+			keywords[i].getChars(0, keywords[i].length(), keywordChars, keywordOffsets[i]);
+		}
+
+		int size = 4 * 10 + 2 * (skips.length + 2 * mappings + alphabet.length + keywordChars.length)
+				+ 4 * (6 * check.length + keywordOffsets.length);
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION);
+		putChars(buffer, skips);
+		putChars(buffer, from);
+		putChars(buffer, to);
+		putChars(buffer, alphabet);
+		buffer.putInt(check.length);
+		for (int[] array : new int[][] { base, check, fail, keywordIds, outputLinks, depths }) {
+			buffer.asIntBuffer().put(array);
+			buffer.position(buffer.position() + 4 * array.length);
+		}
+		buffer.putInt(keywords.length);
+		buffer.asIntBuffer().put(keywordOffsets);
+		buffer.position(buffer.position() + 4 * keywordOffsets.length);
+		putChars(buffer, keywordChars);
+		buffer.putInt(allowedCount);
+		out.write(buffer.array(), 0, buffer.position());
+		out.flush();
+	}
+
+	/**
+	 * 把编译结果保存到文件，文件已存在时覆盖
+	 */
+	public void writeTo(Path path) throws IOException {
+		OutputStream out = Files.newOutputStream(path);
+		try {
+			writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * 从{@link #writeTo(Path)}保存的快照文件加载，加载后即可使用，不能再添加关键字
+	 *
+	 * @throws IOException
+	 *             读取失败或文件不是快照、版本不支持、内容不完整或已损坏
+	 */
+	public static DoubleArrayTrie load(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("快照文件过大: " + path);
+			}
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) == -1) {
+					throw new IOException("快照文件不完整: " + path);
+				}
+			}
+			buffer.flip();
+			return load(buffer);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * 从{@link #writeTo(OutputStream)}写出的快照加载，读到流末尾，不关闭输入流
+	 */
+	public static DoubleArrayTrie load(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+		return load(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	private static DoubleArrayTrie load(ByteBuffer buffer) throws IOException {
+		try {
+			readHeader(buffer);
+			DoubleArrayTrie trie = new DoubleArrayTrie();
+			for (char ch : getChars(buffer)) {
+				trie.skipChars.add(ch);
+			}
+			trie.normalTable = getNormalTable(buffer);
+			char[] alphabet = getChars(buffer);
+			trie.alphabetSize = alphabet.length;
+			trie.codes = new char[65536];
+			for (int i = 0; i < alphabet.length; i++) {
+				trie.codes[alphabet[i]] = (char) (i + 1);
+			}
+			foldCodes(trie.codes, trie.normalTable);
+			int size = buffer.getInt();
+			trie.base = getInts(buffer, size);
+			trie.check = getInts(buffer, size);
+			trie.fail = getInts(buffer, size);
+			trie.keywordIds = getInts(buffer, size);
+			trie.outputLinks = getInts(buffer, size);
+			trie.depths = getInts(buffer, size);
+			int count = buffer.getInt();
+			int[] keywordOffsets = getInts(buffer, count + 1);
+			char[] keywordChars = getChars(buffer);
+			checkOffsets(IntBuffer.wrap(keywordOffsets), keywordChars.length);
+			checkStates(IntBuffer.wrap(trie.check), IntBuffer.wrap(trie.fail), IntBuffer.wrap(trie.keywordIds),
+					IntBuffer.wrap(trie.outputLinks), IntBuffer.wrap(trie.depths), IntBuffer.wrap(keywordOffsets));
+			trie.keywords = new String[count];
+			for (int i = 0; i < count; i++) {
+				trie.keywords[i] = new String(keywordChars, keywordOffsets[i],
+						keywordOffsets[i + 1] - keywordOffsets[i]);
+			}
+			trie.allowedCount = getAllowedCount(buffer, count);
+			trie.tree = null;
+			trie.compileTables();
+			return trie;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("快照文件不完整", e);
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("快照文件已损坏", e);
+		} catch (NegativeArraySizeException e) {
+			throw new IOException("快照文件已损坏", e);
+		}
+	}
+
+	/**
+	 * 读取并校验快照的魔数和版本号
+	 */
+	static void readHeader(ByteBuffer buffer) throws IOException {
+		if (buffer.getInt() != SNAPSHOT_MAGIC) {
+			throw new IOException("不是DoubleArrayTrie快照文件");
+		}
+		int version = buffer.getInt();
+		if (version != SNAPSHOT_VERSION) {
+			throw new IOException("不支持的快照版本: " + version);
+		}
+	}
+
+	/**
+	 * 读取允许短语个数
+	 */
+	static int getAllowedCount(ByteBuffer buffer, int keywordCount) throws IOException {
+		int allowed = buffer.getInt();
+		if (allowed < 0 || allowed > keywordCount) {
+			throw new IOException("快照文件已损坏");
+		}
+		return allowed;
+	}
+
+	/**
+	 * 读取规范化映射，还原为完整的规范化表，没有映射时返回null
+	 */
+	static char[] getNormalTable(ByteBuffer buffer) throws IOException {
+		char[] from = getChars(buffer);
+		char[] to = getChars(buffer);
+		if (from.length != to.length) {
+			throw new IOException("快照文件已损坏");
+		}
+		if (from.length == 0) {
+			return null;
+		}
+		char[] table = new char[65536];
+		for (int ch = 0; ch < table.length; ch++) {
+			table[ch] = (char) ch;
+		}
+		for (int i = 0; i < from.length; i++) {
+			table[from[i]] = to[i];
+		}
+		return table;
+	}
+
+	/**
+	 * 把规范化合并到编码表中，使每个字符的编码与其规范化后的字符相同
+	 */
+	static void foldCodes(char[] codes, char[] normalTable) {
+		if (null == normalTable) {
+			return;
+		}
+		for (int ch = 0; ch < codes.length; ch++) {
+			codes[ch] = codes[normalTable[ch]];
+		}
+	}
+
+	/**
+	 * 校验关键字在字符段中的起点：依次不减，且都在长度为length的字符段内
+	 */
+	static void checkOffsets(IntBuffer offsets, int length) throws IOException {
+		int count = offsets.limit() - 1;
+		if (count < 0 || offsets.get(0) < 0 || offsets.get(count) > length) {
+			throw new IOException("快照文件已损坏");
+		}
+		for (int i = 0; i < count; i++) {
+			if (offsets.get(i) > offsets.get(i + 1)) {
+				throw new IOException("快照文件已损坏");
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 校验各状态之间的引用，保证扫描时不会越界或陷入死循环：
+	 * (1) 父状态、失败指针、输出链接都在数组范围内，关键字编号不超过关键字个数；
+	 * (2) 子状态比父状态深一层，失败指针和输出链接指向更浅的状态，输出链接指向带关键字的状态；
+	 * (3) 关键字的长度等于它所在状态的深度，由此推算出的起点不会越过文本开头。
+	 * 未使用的槽位深度为0，不带关键字和输出链接。
+	 * </pre>
+	 */
+	static void checkStates(IntBuffer check, IntBuffer fail, IntBuffer keywordIds, IntBuffer outputLinks,
+			IntBuffer depths, IntBuffer offsets) throws IOException {
+		int size = check.limit();
+		int count = offsets.limit() - 1;
+		if (size == 0 || depths.get(ROOT) != 0) {
+			throw new IOException("快照文件已损坏");
+		}
+		for (int s = 0; s < size; s++) {
+			int depth = depths.get(s);
+			int parent = check.get(s);
+			boolean used = s != ROOT && parent != NONE;
+			if (used ? parent < 0 || parent >= size || depth != depths.get(parent) + 1 : depth != 0) {
+				throw new IOException("快照文件已损坏");
+			}
+			int f = fail.get(s);
+			if (f < 0 || f >= size || (used && depths.get(f) >= depth)) {
+				throw new IOException("快照文件已损坏");
+			}
+			int link = outputLinks.get(s);
+			if (link != NONE && (link < 0 || link >= size || depths.get(link) >= depth
+					|| keywordIds.get(link) == NONE)) {
+				throw new IOException("快照文件已损坏");
+			}
+			int id = keywordIds.get(s);
+			if (id != NONE && (id < 0 || id >= count || offsets.get(id + 1) - offsets.get(id) != depth)) {
+				throw new IOException("快照文件已损坏");
+			}
+		}
+	}
+
+	private static void putChars(ByteBuffer buffer, char[] chars) {
+		buffer.putInt(chars.length);
+		buffer.asCharBuffer().put(chars);
+		buffer.position(buffer.position() + 2 * chars.length);
+	}
+
+	static char[] getChars(ByteBuffer buffer) {
+		char[] chars = new char[buffer.getInt()];
+		buffer.asCharBuffer().get(chars);
+		buffer.position(buffer.position() + 2 * chars.length);
+		return chars;
+	}
+
+	private static int[] getInts(ByteBuffer buffer, int length) {
+		int[] ints = new int[length];
+		buffer.asIntBuffer().get(ints);
+		buffer.position(buffer.position() + 4 * length);
+		return ints;
+	}
+
+	/**
+	 * 双数组的长度(槽位数)
+	 */
+	int capacity() {
+		return check.length;
+	}
+
+	/**
+	 * 按广度优先顺序为每个节点的子节点寻找一个base，使其所有子节点的槽位都空闲。
+	 * 空闲槽位用双向链表串起来，寻找base时只需在空闲槽位上尝试。
+	 */
+	private void build(TrieNode[] nodes, List<String> words) {
+		int size = nodes.length + alphabetSize + 1;
+		base = new int[size];
+		check = new int[size];
+		Arrays.fill(check, NONE);
+		freeNext = new int[size];
+		freePrev = new int[size];
+		trials = new int[size];
+		linkFree(1, size);
+
+		// 节点编号 -> 槽位
+		int[] slots = new int[nodes.length];
+		slots[ROOT] = ROOT;
+		int maxSlot = 0;
+		for (TrieNode node : nodes) {
+			char[] keys = node.keys();
+			if (keys.length == 0) {
+				continue;
+			}
+			int[] keyCodes = new int[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				keyCodes[i] = codes[keys[i]];
+			}
+			Arrays.sort(keyCodes);
+			int s = slots[node.getId()];
+
+			// 槽位0为根节点所有，其它槽位的下标均 >= 1，freeNext[0]为第一个空闲槽位
+			int b;
+			if (freeNext[0] == NONE) {
+				ensureCapacity(check.length + 1);
+			}
+			int free = freeNext[0];
+			while (true) {
+				// base可以为负数，最小的子节点占用free，其它子节点都在free之后
+				b = free - keyCodes[0];
+				ensureCapacity(b + keyCodes[keyCodes.length - 1] + 1);
+				if (fit(b, keyCodes)) {
+					break;
+				}
+				int next = freeNext[free];
+				if (++trials[free] >= MAX_TRIALS) {
+					// 屡次放不下的空闲槽位不再作为寻找base的起点，但仍然是空闲的，其它节点的子节点可以占用
+					unlinkFree(free);
+					freePrev[free] = NONE;
+				}
+				if (next == NONE) {
+					// free之后已经没有空闲槽位
+					next = check.length;
+					ensureCapacity(next + 1);
+				}
+				free = next;
+			}
+
+			base[s] = b;
+			for (char key : keys) {
+				int t = b + codes[key];
+				check[t] = s;
+				unlinkFree(t);
+				slots[node.get(key).getId()] = t;
+				maxSlot = Math.max(maxSlot, t);
+			}
+		}
+		freeNext = null;
+		freePrev = null;
+		trials = null;
+
+		size = maxSlot + 1;
+		base = Arrays.copyOf(base, size);
+		check = Arrays.copyOf(check, size);
+		fail = new int[size];
+		keywordIds = new int[size];
+		outputLinks = new int[size];
+		depths = new int[size];
+		Arrays.fill(keywordIds, NONE);
+		Arrays.fill(outputLinks, NONE);
+		for (TrieNode node : nodes) {
+			int s = slots[node.getId()];
+			fail[s] = null == node.getFail() ? ROOT : slots[node.getFail().getId()];
+			keywordIds[s] = node.getKeywordId();
+			depths[s] = node.getDepth();
+			TrieNode link = node.getOutputLink();
+			outputLinks[s] = null == link ? NONE : slots[link.getId()];
+		}
+		keywords = words.toArray(new String[words.size()]);
+	}
+
+	/**
+	 * 按字符在关键字中出现的频率从高到低编码，使常用字符的编码更小、数组排布更紧凑
+	 */
+	private void encode(List<String> words) {
+		final int[] freq = new int[65536];
+		for (String word : words) {
+			for (int i = 0; i < word.length(); i++) {
+				freq[normalize(word.charAt(i))]++;
+			}
+		}
+		List<Character> chars = new ArrayList<Character>();
+		for (int ch = 0; ch < freq.length; ch++) {
+			if (freq[ch] > 0) {
+				chars.add((char) ch);
+			}
+		}
+		Collections.sort(chars, new Comparator<Character>() {
+			@Override
+			public int compare(Character o1, Character o2) {
+				return freq[o2] - freq[o1];
+			}
+		});
+		codes = new char[65536];
+		for (int i = 0; i < chars.size(); i++) {
+			codes[chars.get(i)] = (char) (i + 1);
+		}
+		alphabetSize = chars.size();
+	}
+
+	private boolean fit(int b, int[] keyCodes) {
+		for (int code : keyCodes) {
+			if (check[b + code] != NONE) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void ensureCapacity(int size) {
+		if (size <= check.length) {
+			return;
+		}
+		int oldSize = check.length;
+		int newSize = Math.max(size, oldSize + (oldSize >> 1));
+		base = Arrays.copyOf(base, newSize);
+		check = Arrays.copyOf(check, newSize);
+		Arrays.fill(check, oldSize, newSize, NONE);
+		freeNext = Arrays.copyOf(freeNext, newSize);
+		freePrev = Arrays.copyOf(freePrev, newSize);
+		trials = Arrays.copyOf(trials, newSize);
+		linkFree(oldSize, newSize);
+	}
+
+	/**
+	 * 把[from, to)的槽位追加到空闲链表末尾
+	 */
+	private void linkFree(int from, int to) {
+		int tail = freePrev[0];
+		for (int i = from; i < to; i++) {
+			freeNext[tail] = i;
+			freePrev[i] = tail;
+			tail = i;
+		}
+		freeNext[tail] = NONE;
+		freePrev[0] = tail;
+	}
+
+	private void unlinkFree(int slot) {
+		int prev = freePrev[slot];
+		if (prev == NONE) {
+			// 已移出链表
+			return;
+		}
+		int next = freeNext[slot];
+		freeNext[prev] = next;
+		if (next == NONE) {
+			freePrev[0] = prev;
+		} else {
+			freePrev[next] = prev;
+		}
+	}
+
+}
@@ -0,0 +1,457 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * <pre>
+ * 可在编译后增删关键字的过滤器。
+ *
+ * 词库分为两部分：编译好的基础词库(双数组Trie树)，以及编译后新增的关键字组成的只增不减的Trie树，
+ * 查询时两者合并(参见{@link DeltaKeywordFilter})；删除关键字只是在新版本的位图中做个标记。
+ * 因此增删一个关键字的代价只与这个关键字的长度有关，与词库和增量的大小无关。
+ *
+ * 增量积累到一定数量(默认1024个增删操作)后，在后台把全部关键字重新编译成新的基础词库，
+ * 编译期间的增删操作在编译完成后补上。重新编译不持有增删的锁，增删和查询都不会等待它。
+ * 没有指定Executor时需要调用者自己调用{@link #compact()}，在此之前增量一直保留。
+ *
+ * 每次增删都发布一个新的不可变版本，读取不加锁，正在进行的扫描在旧版本上完成；增删之间互斥。
+ * 关键字编号只在同一个版本内有效，重新编译后会重新编号，需要时用{@link #current()}取得固定的版本。
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class IncrementalKeywordFilter implements VersionedKeywordFilter {
+
+	/**
+	 * 默认在积累这么多增删操作后重新编译基础词库
+	 */
+	public static final int DEFAULT_COMPACT_THRESHOLD = 1024;
+
+	private static final int NONE = AbstractKeywordFilter.NONE;
+
+	private final Collection<Character> skipChars;
+
+	private final Executor executor;
+
+	private final Object lock = new Object();
+
+	/**
+	 * 重新编译之间互斥，不影响增删和查询
+	 */
+	private final Object compactLock = new Object();
+
+	private volatile KeywordFilter current;
+
+	private int compactThreshold = DEFAULT_COMPACT_THRESHOLD;
+
+	/* 以下字段都在lock保护下读写 */
+
+	private AbstractKeywordFilter base;
+
+	/**
+	 * 基础词库中已删除的关键字编号
+	 */
+	private BitSet removed = new BitSet();
+
+	private int removedCount = 0;
+
+	/**
+	 * 编译后新增的关键字，按添加顺序
+	 */
+	private Set<String> added = new LinkedHashSet<String>();
+
+	/**
+	 * 新增的关键字所在的Trie树，重新编译基础词库时换成新的
+	 */
+	private DeltaKeywordFilter.DeltaTrie trie;
+
+	/**
+	 * trie中当前有效的关键字编号
+	 */
+	private BitSet visible = new BitSet();
+
+	/**
+	 * 重新编译期间的增删操作，编译完成后补到新的基础词库上。不在重新编译时不记录
+	 */
+	private List<Change> changes = new ArrayList<Change>();
+
+	/**
+	 * 是否有重新编译取了关键字快照、尚未完成
+	 */
+	private boolean recording = false;
+
+	/**
+	 * 增删操作的序号
+	 */
+	private long sequence = 0;
+
+	/**
+	 * 基础词库包含了哪个序号之前的全部增删操作
+	 */
+	private long baseSequence = 0;
+
+	private boolean compacting = false;
+
+	/**
+	 * @param keywords
+	 *            初始的关键字
+	 * @param skipChars
+	 *            跳过字符，可以为null
+	 * @param executor
+	 *            后台重新编译基础词库的Executor，为null时不自动重新编译
+	 */
+	public IncrementalKeywordFilter(Collection<String> keywords, Collection<Character> skipChars, Executor executor) {
+		checkNotNull(keywords, "请指定非null的关键字集合.");
+		this.skipChars = null == skipChars ? new ArrayList<Character>() : new ArrayList<Character>(skipChars);
+		this.executor = executor;
+		this.base = compile(keywords);
+		this.trie = new DeltaKeywordFilter.DeltaTrie(base);
+		this.current = base;
+	}
+
+	/**
+	 * 设置积累多少个增删操作后在后台重新编译基础词库
+	 */
+	public void setCompactThreshold(int compactThreshold) {
+		if (compactThreshold <= 0) {
+			throw new IllegalArgumentException("重新编译的阈值必须大于0");
+		}
+		synchronized (lock) {
+			this.compactThreshold = compactThreshold;
+		}
+	}
+
+	/**
+	 * 添加关键字，返回后即生效
+	 *
+	 * @return 关键字已存在时返回false
+	 */
+	public boolean add(String keyword) {
+		if (null == keyword || keyword.trim().isEmpty()) {
+			throw new IllegalArgumentException("过滤关键词不能为空！");
+		}
+		synchronized (lock) {
+			if (!apply(true, keyword)) {
+				return false;
+			}
+			record(true, keyword);
+			return true;
+		}
+	}
+
+	/**
+	 * 删除关键字，返回后即生效
+	 *
+	 * @return 关键字不存在时返回false
+	 */
+	public boolean remove(String keyword) {
+		checkNotNull(keyword, "请传入需要删除的关键字");
+		synchronized (lock) {
+			if (!apply(false, keyword)) {
+				return false;
+			}
+			record(false, keyword);
+			return true;
+		}
+	}
+
+	/**
+	 * 在当前线程把全部关键字重新编译成基础词库，清空增量。编译期间不阻塞增删和查询，多个调用依次执行
+	 */
+	public void compact() {
+		synchronized (compactLock) {
+			List<String> keywords;
+			long sequence;
+			synchronized (lock) {
+				if (this.sequence == baseSequence) {
+					return;
+				}
+				keywords = keywords();
+				sequence = this.sequence;
+				recording = true;
+			}
+			AbstractKeywordFilter compiled;
+			try {
+				compiled = compile(keywords);
+			} catch (RuntimeException e) {
+				synchronized (lock) {
+					recording = false;
+					changes.clear();
+				}
+				throw e;
+			}
+			synchronized (lock) {
+				List<Change> pending = changes;
+				this.changes = new ArrayList<Change>();
+				this.recording = false;
+				this.base = compiled;
+				this.baseSequence = sequence;
+				this.removed = new BitSet();
+				this.removedCount = 0;
+				this.added = new LinkedHashSet<String>();
+				this.trie = new DeltaKeywordFilter.DeltaTrie(compiled);
+				this.visible = new BitSet();
+				// 先补上编译期间的增删操作再发布，读者看不到缺少这些操作的中间版本。同一关键字按顺序重放，结果只取决于最后一次操作
+				for (Change change : pending) {
+					modify(change.add, change.keyword);
+				}
+				publish();
+			}
+		}
+	}
+
+	/**
+	 * 在锁内修改词库并发布新版本
+	 *
+	 * @return 词库是否有变化
+	 */
+	private boolean apply(boolean add, String keyword) {
+		if (!modify(add, keyword)) {
+			return false;
+		}
+		publish();
+		return true;
+	}
+
+	/**
+	 * 在锁内修改词库，不发布
+	 *
+	 * @return 词库是否有变化
+	 */
+	private boolean modify(boolean add, String keyword) {
+		int id = base.find(keyword);
+		boolean inBase = id != NONE && !removed.get(id);
+		if (add) {
+			if (inBase || added.contains(keyword)) {
+				return false;
+			}
+			if (id != NONE) {
+				// 恢复已删除的基础词库关键字
+				removed = copyOf(removed);
+				removed.clear(id);
+				removedCount--;
+			} else {
+				added.add(keyword);
+				visible = copyOf(visible);
+				visible.set(trie.add(keyword));
+			}
+		} else {
+			if (inBase) {
+				removed = copyOf(removed);
+				removed.set(id);
+				removedCount++;
+			} else if (added.remove(keyword)) {
+				visible = copyOf(visible);
+				visible.clear(trie.find(keyword));
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 已发布的版本会继续使用旧的BitSet，修改前先复制
+	 */
+	private BitSet copyOf(BitSet bits) {
+		return (BitSet) bits.clone();
+	}
+
+	/**
+	 * 发布新版本，代价与词库和增量的大小无关
+	 */
+	private void publish() {
+		if (added.isEmpty() && removedCount == 0) {
+			current = base;
+			return;
+		}
+		current = new DeltaKeywordFilter(base, trie, removed, visible);
+	}
+
+	private void record(boolean add, String keyword) {
+		sequence++;
+		// 只有正在进行的重新编译需要补上这些操作，changes不会无限增长
+		if (recording) {
+			changes.add(new Change(add, keyword));
+		}
+		scheduleCompact();
+	}
+
+	/**
+	 * 增量达到阈值且没有正在进行的重新编译时，在后台重新编译
+	 */
+	private void scheduleCompact() {
+		if (compacting || null == executor || added.size() + removedCount < compactThreshold) {
+			return;
+		}
+		compacting = true;
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						compact();
+					} finally {
+						synchronized (lock) {
+							compacting = false;
+							// 编译期间又积累了足够多的增量
+							scheduleCompact();
+						}
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Executor已关闭，由调用者自己重新编译
+			compacting = false;
+		}
+	}
+
+	/**
+	 * 当前全部有效的关键字，基础词库在前，按编号排列
+	 */
+	private List<String> keywords() {
+		List<String> keywords = new ArrayList<String>(base.keywordCount() - removedCount + added.size());
+		for (int id = 0; id < base.keywordCount(); id++) {
+			if (!removed.get(id)) {
+				keywords.add(base.keyword(id));
+			}
+		}
+		keywords.addAll(added);
+		return keywords;
+	}
+
+	private AbstractKeywordFilter compile(Collection<String> keywords) {
+		DoubleArrayTrie trie = new DoubleArrayTrie();
+		for (String keyword : keywords) {
+			trie.add(keyword);
+		}
+		trie.addSkipChar(skipChars);
+		trie.compile();
+		return trie;
+	}
+
+	/**
+	 * 当前版本的过滤器，之后的增删不会影响它
+	 */
+	@Override
+	public KeywordFilter current() {
+		return current;
+	}
+
+	/**
+	 * 尚未合并到基础词库的增删操作数
+	 */
+	public int getPendingChanges() {
+		synchronized (lock) {
+			return added.size() + removedCount;
+		}
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		return current.hasKeywords(text);
+	}
+
+	/**
+	 * 整批使用同一个版本
+	 */
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		return current.hasKeywords(texts);
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
+		current.match(text, mode, listener);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return current.getKeyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return current.getKeywordCount();
+	}
+
+	@Override
+	public int count(String text, String keyword) {
+		return current.count(text, keyword);
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		return current.countAll(text);
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		return current.replace(text, strategy);
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		return current.replace(text, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		return current.replace(text, out, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		return current.replace(text, out, strategy);
+	}
+
+	/**
+	 * 整批使用同一个版本
+	 */
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		return current.replaceAll(texts, strategy);
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		return current.hasKeywords(reader);
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		current.replace(reader, writer, strategy);
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 一次增删操作
+	 */
+	private static final class Change {
+
+		final boolean add;
+
+		final String keyword;
+
+		Change(boolean add, String keyword) {
+			this.add = add;
+			this.keyword = keyword;
+		}
+	}
+
+}
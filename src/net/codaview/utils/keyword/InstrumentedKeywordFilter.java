@@ -0,0 +1,288 @@
+package net.codaview.utils.keyword;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import net.codaview.utils.keyword.KeywordFilterMetrics.Operation;
+
+/**
+ * <pre>
+ * 记录运行指标的过滤器，把调用转给被包装的过滤器，结果不变。
+ *
+ * 每次调用记录调用次数、扫描的字符数和耗时；替换和匹配时按关键字记录匹配次数。
+ * 额外的开销是每次调用两次System.nanoTime()和几次LongAdder累加，以及每个匹配一次哈希表查找，
+ * 逐字符的扫描循环不受影响。
+ *
+ * 失败回退深度需要逐字符地观察自动机，开销较大，因此只对基于AC自动机的过滤器按比例抽样：
+ * 被抽中的调用完成后再用同一自动机把文本扫描一遍，这次扫描不计入耗时。
+ *
+ * 热更新词库时，应包装每个新版本而不是包装{@link ReloadableKeywordFilter}本身，各版本共用同一个
+ * KeywordFilterMetrics，这样匹配结果与关键字总是来自同一个版本：
+ * <code>
+ *   reloadable.reload(new InstrumentedKeywordFilter(builder.build(), metrics));
+ * </code>
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class InstrumentedKeywordFilter implements KeywordFilter {
+
+	/**
+	 * 默认每1000次调用抽样一次失败回退深度
+	 */
+	public static final int DEFAULT_FAIL_DEPTH_SAMPLING = 1000;
+
+	private final KeywordFilter filter;
+
+	private final KeywordFilterMetrics metrics;
+
+	/**
+	 * 每多少次调用抽样一次，0表示不抽样
+	 */
+	private final int failDepthSampling;
+
+	public InstrumentedKeywordFilter(KeywordFilter filter) {
+		this(filter, new KeywordFilterMetrics());
+	}
+
+	public InstrumentedKeywordFilter(KeywordFilter filter, KeywordFilterMetrics metrics) {
+		this(filter, metrics, DEFAULT_FAIL_DEPTH_SAMPLING);
+	}
+
+	/**
+	 * @param filter
+	 *            被包装的过滤器
+	 * @param metrics
+	 *            记录指标，可以与其它过滤器共用
+	 * @param failDepthSampling
+	 *            平均每多少次调用抽样一次失败回退深度，0表示不抽样
+	 */
+	public InstrumentedKeywordFilter(KeywordFilter filter, KeywordFilterMetrics metrics, int failDepthSampling) {
+		checkNotNull(filter, "请传入被包装的过滤器");
+		checkNotNull(metrics, "请传入KeywordFilterMetrics");
+		if (failDepthSampling < 0) {
+			throw new IllegalArgumentException("抽样间隔不能小于0");
+		}
+		this.filter = filter;
+		this.metrics = metrics;
+		this.failDepthSampling = failDepthSampling;
+	}
+
+	public KeywordFilterMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		long start = System.nanoTime();
+		boolean ret = filter.hasKeywords(text);
+		metrics.record(Operation.HAS_KEYWORDS, System.nanoTime() - start, text.length());
+		sample(text);
+		return ret;
+	}
+
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		long start = System.nanoTime();
+		BitSet ret = filter.hasKeywords(texts);
+		metrics.record(Operation.BATCH_HAS_KEYWORDS, System.nanoTime() - start, length(texts));
+		return ret;
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, final MatchListener listener) {
+		checkNotNull(listener, "Null value not allowed for parameter 'listener'.");
+		long start = System.nanoTime();
+		filter.match(text, mode, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				metrics.recordMatch(filter.getKeyword(keywordId));
+				return listener.onMatch(start, end, keywordId);
+			}
+		});
+		metrics.record(Operation.MATCH, System.nanoTime() - start, text.length());
+		sample(text);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return filter.getKeyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return filter.getKeywordCount();
+	}
+
+	@Override
+	public int count(String text, String keyword) {
+		long start = System.nanoTime();
+		int ret = filter.count(text, keyword);
+		metrics.record(Operation.COUNT, System.nanoTime() - start, text.length());
+		return ret;
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		long start = System.nanoTime();
+		int[] ret = filter.countAll(text);
+		metrics.record(Operation.COUNT_ALL, System.nanoTime() - start, text.length());
+		sample(text);
+		return ret;
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		long start = System.nanoTime();
+		String ret = filter.replace(text, counting(strategy));
+		metrics.record(Operation.REPLACE, System.nanoTime() - start, text.length());
+		sample(text);
+		return ret;
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		long start = System.nanoTime();
+		CharSequence ret = filter.replace(text, counting(strategy));
+		metrics.record(Operation.REPLACE, System.nanoTime() - start, text.length());
+		sample(text);
+		return ret;
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		long start = System.nanoTime();
+		boolean ret = filter.replace(text, out, counting(strategy));
+		metrics.record(Operation.REPLACE, System.nanoTime() - start, text.length());
+		sample(text);
+		return ret;
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		long start = System.nanoTime();
+		boolean ret = filter.replace(text, out, counting(strategy));
+		metrics.record(Operation.REPLACE, System.nanoTime() - start, text.length());
+		sample(text);
+		return ret;
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		long start = System.nanoTime();
+		List<String> ret = filter.replaceAll(texts, counting(strategy));
+		metrics.record(Operation.BATCH_REPLACE, System.nanoTime() - start, length(texts));
+		return ret;
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		checkNotNull(reader, "Null value not allowed for parameter 'reader'.");
+		CountingReader counting = new CountingReader(reader);
+		long start = System.nanoTime();
+		boolean ret = filter.hasKeywords(counting);
+		metrics.record(Operation.STREAM_HAS_KEYWORDS, System.nanoTime() - start, counting.count);
+		return ret;
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		checkNotNull(reader, "Null value not allowed for parameter 'reader'");
+		CountingReader counting = new CountingReader(reader);
+		long start = System.nanoTime();
+		filter.replace(counting, writer, counting(strategy));
+		metrics.record(Operation.STREAM_REPLACE, System.nanoTime() - start, counting.count);
+	}
+
+	/**
+	 * 记录每次替换的关键字
+	 */
+	private ReplaceStrategy counting(final ReplaceStrategy strategy) {
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		return new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				metrics.recordMatch(keyword);
+				return strategy.replaceWith(keyword);
+			}
+		};
+	}
+
+	/**
+	 * 按比例抽样，沿自动机重新扫描一遍文本，统计每次转移的失败回退深度
+	 */
+	private void sample(CharSequence text) {
+		if (failDepthSampling == 0 || !(filter instanceof AbstractKeywordFilter)
+				|| ThreadLocalRandom.current().nextInt(failDepthSampling) != 0) {
+			return;
+		}
+		AbstractKeywordFilter automaton = (AbstractKeywordFilter) filter;
+		final long[] skip = automaton.skipTable;
+		int[] counts = new int[KeywordFilterMetrics.BUCKETS];
+		int state = AbstractKeywordFilter.ROOT;
+		int depth = 0;
+		for (int i = 0, length = text.length(); i < length; i++) {
+			char ch = text.charAt(i);
+			if (AbstractKeywordFilter.isSkip(skip, ch)) {
+				continue;
+			}
+			state = automaton.transition(state, ch);
+			int next = automaton.depth(state);
+			counts[Math.min(depth + 1 - next, counts.length - 1)]++;
+			depth = next;
+		}
+		metrics.recordFailDepths(counts);
+	}
+
+	private static long length(List<? extends CharSequence> texts) {
+		long length = 0;
+		for (CharSequence text : texts) {
+			if (null != text) {
+				length += text.length();
+			}
+		}
+		return length;
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 统计读出的字符数
+	 */
+	private static final class CountingReader extends FilterReader {
+
+		long count = 0;
+
+		CountingReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int ch = super.read();
+			if (ch != -1) {
+				count++;
+			}
+			return ch;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int n = super.read(cbuf, off, len);
+			if (n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+
+}
@@ -1,5 +1,11 @@
 package net.codaview.utils.keyword;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.List;
+
 /**
  * 关键字的查找、替换、统计功能。
  * 
@@ -47,6 +53,41 @@ public interface KeywordFilter {
 	 */
 	public boolean hasKeywords(String text);
 
+	/**
+	 * 批量判断多条文本是否包含关键字，适合大量短消息，省去逐条调用的开销。
+	 * 
+	 * @param texts
+	 *            待匹配文本
+	 * @return 第i条文本包含关键字时第i位为1
+	 */
+	public BitSet hasKeywords(List<? extends CharSequence> texts);
+
+	/**
+	 * 找出文本中的关键字及其位置，逐个回调listener。
+	 * 
+	 * @param text
+	 *            待匹配文本
+	 * @param mode
+	 *            匹配模式
+	 * @param listener
+	 *            接收匹配结果，返回false时提前结束
+	 */
+	public void match(CharSequence text, MatchMode mode, MatchListener listener);
+
+	/**
+	 * 取得编号对应的关键字，编号按关键字添加的先后从0开始分配
+	 * 
+	 * @param keywordId
+	 *            关键字编号
+	 * @return 关键字
+	 */
+	public String getKeyword(int keywordId);
+
+	/**
+	 * @return 关键字个数，编号范围为[0, 关键字个数)
+	 */
+	public int getKeywordCount();
+
 	/**
 	 * 统计指定关键字出现次数.
 	 * 
@@ -58,6 +99,15 @@ public interface KeywordFilter {
 	 */
 	public int count(String text, String keyword);
 
+	/**
+	 * 一次统计全部关键字的出现次数.
+	 * 
+	 * @param text
+	 *            待统计的文本
+	 * @return 下标为关键字编号、值为该关键字出现次数的数组，长度为{@link #getKeywordCount()}
+	 */
+	public int[] countAll(String text);
+
 	/**
 	 * 根据指定策略替换关键字，使用不同的策略可实现高亮功能。
 	 * 
@@ -69,4 +119,77 @@ public interface KeywordFilter {
 	 */
 	public String replace(String text, ReplaceStrategy strategy);
 
+	/**
+	 * 根据指定策略替换关键字，可直接传入CharBuffer、StringBuilder等任意CharSequence，不必先转换为String。
+	 * 
+	 * @param text
+	 *            待匹配文本
+	 * @param strategy
+	 *            替换策略
+	 * @return 不包含关键字时返回text本身(不分配任何对象)，否则返回替换后的字符串
+	 */
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy);
+
+	/**
+	 * 根据指定策略替换关键字，结果追加到调用者提供的StringBuilder中，便于复用缓冲区。
+	 * 
+	 * @param text
+	 *            待匹配文本
+	 * @param out
+	 *            替换结果追加到此处，不包含关键字时追加原文本
+	 * @param strategy
+	 *            替换策略
+	 * @return 替换了至少一个关键字时返回true
+	 */
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy);
+
+	/**
+	 * 根据指定策略替换关键字，结果追加到调用者提供的Appendable中。
+	 * 
+	 * @param text
+	 *            待匹配文本
+	 * @param out
+	 *            替换结果追加到此处，不包含关键字时追加原文本
+	 * @param strategy
+	 *            替换策略
+	 * @return 替换了至少一个关键字时返回true
+	 */
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException;
+
+	/**
+	 * 批量替换关键字，整批复用同一个缓冲区，适合大量短消息。
+	 * 
+	 * @param texts
+	 *            待匹配文本
+	 * @param strategy
+	 *            替换策略
+	 * @return 与texts一一对应的替换结果，不包含关键字的文本原样返回
+	 */
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy);
+
+	/**
+	 * 流式判断是否包含关键字，适合处理日志、上传文件等无法一次读入内存的文本。
+	 * 自动机的状态在缓冲区之间延续，跨越缓冲区边界的关键字同样能够匹配到。
+	 * 对于ReadableByteChannel，可用{@link java.nio.channels.Channels#newReader}包装后传入。
+	 * 
+	 * @param reader
+	 *            待匹配文本，调用者负责关闭
+	 * @return 如果包含返回true，否则false
+	 */
+	public boolean hasKeywords(Reader reader) throws IOException;
+
+	/**
+	 * 流式替换关键字，每读入一块文本，就把已确定的部分写出，只有可能属于某个关键字的末尾字符被保留到下一块。
+	 * 因此内存占用只与缓冲区大小和最长关键字(含夹杂其中的跳过字符)有关，与文本长度无关。
+	 * 结果与{@link #replace(String, ReplaceStrategy)}一致。
+	 * 
+	 * @param reader
+	 *            待匹配文本，调用者负责关闭
+	 * @param writer
+	 *            替换结果，调用者负责刷新和关闭
+	 * @param strategy
+	 *            替换策略
+	 */
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException;
+
 }
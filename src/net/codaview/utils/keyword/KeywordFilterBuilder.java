@@ -1,8 +1,15 @@
 package net.codaview.utils.keyword;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 public class KeywordFilterBuilder {
 
@@ -10,6 +17,18 @@ public class KeywordFilterBuilder {
 
 	private List<String> keywords = Collections.emptyList();
 
+	private Collection<String> allowedPhrases = Collections.emptyList();
+
+	private boolean deterministic = false;
+
+	private CharNormalizer normalizer;
+
+	private ForkJoinPool compilePool;
+
+	private int[] categories;
+
+	private int[] weights;
+
 	public void setSkipChars(Collection<Character> skipChars) {
 		this.skipChars = skipChars;
 	}
@@ -21,13 +40,189 @@ public class KeywordFilterBuilder {
 		this.keywords = keywords;
 	}
 
+	/**
+	 * 设置允许短语(白名单)，与关键字编译在同一个自动机中，被允许短语完全覆盖的关键字不再报告。
+	 * {@link #buildSharded(int)}不支持允许短语
+	 *
+	 * @see TrieTree#addAllowedPhrase(String)
+	 */
+	public void setAllowedPhrases(Collection<String> allowedPhrases) {
+		this.allowedPhrases = null == allowedPhrases ? Collections.<String> emptyList() : allowedPhrases;
+	}
+
+	/**
+	 * 是否把TrieTree编译为确定性自动机(DFA)，扫描时每个字符只做一次转移，适合对延迟稳定性要求高的场景。
+	 * 
+	 * @see TrieTree#compile(boolean)
+	 */
+	public void setDeterministic(boolean deterministic) {
+		this.deterministic = deterministic;
+	}
+
+	/**
+	 * 设置字符规范化表，比如忽略大小写、全角转半角、繁体转简体，匹配时逐字符规范化，不必预先转换文本。
+	 * 
+	 * @see CharNormalizer
+	 */
+	public void setNormalizer(CharNormalizer normalizer) {
+		this.normalizer = normalizer;
+	}
+
+	/**
+	 * 设置后在pool上并行构建Trie树、计算失败指针，适合十万以上关键字的词库，结果与顺序编译完全相同。
+	 * 为null时顺序编译(默认)
+	 * 
+	 * @see TrieTree#addAll(List, ForkJoinPool)
+	 */
+	public void setCompilePool(ForkJoinPool pool) {
+		this.compilePool = pool;
+	}
+
+	/**
+	 * 设置各关键字的分类编号和权重，与{@link #setKeywords(List)}的关键字按下标一一对应，用于{@link #buildWeighted()}。
+	 * 重复的关键字以第一次出现时的分类和权重为准
+	 */
+	public void setKeywordMeta(int[] categories, int[] weights) {
+		if (null == categories || null == weights || categories.length != weights.length) {
+			throw new IllegalArgumentException("请指定个数相同的分类和权重.");
+		}
+		this.categories = categories;
+		this.weights = weights;
+	}
+
 	public KeywordFilter build() {
 		TrieTree tree = new TrieTree();
-		for (String keyword : keywords) {
-			tree.add(keyword);
+		tree.setNormalizer(normalizer);
+		if (null != compilePool) {
+			tree.addAll(keywords, compilePool);
+		} else {
+			for (String keyword : keywords) {
+				tree.add(keyword);
+			}
+		}
+		for (String phrase : allowedPhrases) {
+			tree.addAllowedPhrase(phrase);
 		}
 		tree.addSkipChar(skipChars);
-		tree.compile();
+		tree.compile(deterministic, compilePool);
 		return tree;
 	}
+
+	/**
+	 * 构建双数组Trie树实现的过滤器，匹配结果与{@link #build()}一致，但内存占用更小、扫描更快。
+	 */
+	public DoubleArrayTrie buildDoubleArrayTrie() {
+		DoubleArrayTrie trie = new DoubleArrayTrie();
+		trie.setNormalizer(normalizer);
+		if (null != compilePool) {
+			trie.addAll(keywords, compilePool);
+		} else {
+			for (String keyword : keywords) {
+				trie.add(keyword);
+			}
+		}
+		for (String phrase : allowedPhrases) {
+			trie.addAllowedPhrase(phrase);
+		}
+		trie.addSkipChar(skipChars);
+		trie.compile(compilePool);
+		return trie;
+	}
+
+	/**
+	 * 构建带分类和权重的过滤器，被包装的是{@link #buildDoubleArrayTrie()}的结果
+	 *
+	 * @see WeightedKeywordFilter#score(CharSequence, int)
+	 */
+	public WeightedKeywordFilter buildWeighted() {
+		if (null == categories || categories.length != keywords.size()) {
+			throw new IllegalStateException("请先用setKeywordMeta指定与关键字个数相同的分类和权重.");
+		}
+		DoubleArrayTrie trie = buildDoubleArrayTrie();
+		// 编译时重复的关键字只保留第一个，按关键字找回编号
+		Map<String, Integer> ids = new HashMap<String, Integer>(trie.getKeywordCount() * 2);
+		for (int id = 0; id < trie.getKeywordCount(); id++) {
+			ids.put(trie.getKeyword(id), id);
+		}
+		int[] categories = new int[trie.getKeywordCount()];
+		int[] weights = new int[categories.length];
+		boolean[] assigned = new boolean[categories.length];
+		for (int i = 0; i < keywords.size(); i++) {
+			Integer id = ids.get(keywords.get(i));
+			if (null != id && !assigned[id]) {
+				categories[id] = this.categories[i];
+				weights[id] = this.weights[i];
+				assigned[id] = true;
+			}
+		}
+		return new WeightedKeywordFilter(trie, categories, weights);
+	}
+
+	/**
+	 * 构建直接匹配UTF-8字节的过滤器，不支持字符规范化和允许短语
+	 *
+	 * @see Utf8KeywordFilter
+	 */
+	public Utf8KeywordFilter buildUtf8() {
+		if (null != normalizer || !allowedPhrases.isEmpty()) {
+			throw new IllegalStateException("UTF-8字节过滤器不支持字符规范化和允许短语.");
+		}
+		Utf8KeywordFilter filter = new Utf8KeywordFilter();
+		for (String keyword : keywords) {
+			filter.add(keyword);
+		}
+		filter.addSkipChar(skipChars);
+		filter.compile();
+		return filter;
+	}
+
+	/**
+	 * 把词库按首字符分成shards个分片，在公共ForkJoinPool上并行编译，适合几百万关键字的词库
+	 *
+	 * @see ShardedKeywordFilter
+	 */
+	public ShardedKeywordFilter buildSharded(int shards) {
+		return buildSharded(shards, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * 把词库按首字符分成shards个分片，在pool上并行编译，同时编译的分片数不超过pool的并行度。
+	 * 分片数取CPU核数的一到两倍即可
+	 */
+	public ShardedKeywordFilter buildSharded(int shards, ForkJoinPool pool) {
+		if (null == pool) {
+			throw new NullPointerException("请传入ForkJoinPool");
+		}
+		return buildSharded(shards, pool, pool.getParallelism());
+	}
+
+	/**
+	 * 把词库按首字符分成shards个分片，在pool上并行编译，同时最多编译concurrency个分片。
+	 * 编译时的内存峰值约为concurrency个最大分片的Trie树，内存紧张时可以增加分片数、减小concurrency
+	 */
+	public ShardedKeywordFilter buildSharded(int shards, ForkJoinPool pool, int concurrency) {
+		// 允许短语与它覆盖的关键字首字符不同，可能分在不同的分片中
+		if (!allowedPhrases.isEmpty()) {
+			throw new IllegalStateException("分片过滤器不支持允许短语.");
+		}
+		return ShardedKeywordFilter.build(keywords, skipChars, normalizer, shards, pool, concurrency);
+	}
+
+	/**
+	 * 构建双数组Trie树并把快照写到file，再以内存映射的方式打开。多个进程可以各自打开同一个文件，共用页缓存。
+	 * 快照先写到同目录下的临时文件再原子地替换file，已经打开旧文件的进程不受影响。
+	 *
+	 * @see MappedDoubleArrayTrie
+	 */
+	public MappedDoubleArrayTrie buildMapped(Path file) throws IOException {
+		Path dir = file.toAbsolutePath().getParent();
+		Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+		try {
+			buildDoubleArrayTrie().writeTo(tmp);
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+		return MappedDoubleArrayTrie.open(file);
+	}
 }
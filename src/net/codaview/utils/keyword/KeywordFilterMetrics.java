@@ -0,0 +1,254 @@
+package net.codaview.utils.keyword;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <pre>
+ * 过滤器的运行指标，由{@link InstrumentedKeywordFilter}记录。
+ *
+ * 全部计数器都是LongAdder，多个线程同时记录时累加到各自的单元上，不会成为争用点。
+ * 读取时用{@link #snapshot()}取得快照，再导出到自己的监控系统；计数器只增不减，需要速率时对两次快照求差。
+ * 同一个实例可以被多个过滤器共用，比如热更新词库时给每个版本都包装上同一个实例。
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class KeywordFilterMetrics {
+
+	/**
+	 * 被统计的操作
+	 */
+	public enum Operation {
+		HAS_KEYWORDS, MATCH, REPLACE, COUNT, COUNT_ALL,
+		/** 批量hasKeywords，一批记一次 */
+		BATCH_HAS_KEYWORDS,
+		/** 批量replaceAll，一批记一次 */
+		BATCH_REPLACE,
+		/** 流式hasKeywords(Reader) */
+		STREAM_HAS_KEYWORDS,
+		/** 流式replace(Reader, Writer) */
+		STREAM_REPLACE
+	}
+
+	/**
+	 * 直方图的桶数
+	 */
+	static final int BUCKETS = 64;
+
+	private static final Operation[] OPERATIONS = Operation.values();
+
+	private final LongAdder[] scans = adders(OPERATIONS.length);
+
+	/**
+	 * 各操作的耗时直方图，第i个桶为[2^(i-1), 2^i)纳秒，第0个桶为0纳秒
+	 */
+	private final LongAdder[][] latencies = new LongAdder[OPERATIONS.length][];
+
+	private final LongAdder chars = new LongAdder();
+
+	private final LongAdder matches = new LongAdder();
+
+	private final ConcurrentMap<String, LongAdder> keywordMatches = new ConcurrentHashMap<String, LongAdder>();
+
+	/**
+	 * 失败回退深度直方图，第i个桶为回退了i个字符的转移次数，最后一个桶包含更深的
+	 */
+	private final LongAdder[] failDepths = adders(BUCKETS);
+
+	public KeywordFilterMetrics() {
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = adders(BUCKETS);
+		}
+	}
+
+	private static LongAdder[] adders(int length) {
+		LongAdder[] adders = new LongAdder[length];
+		for (int i = 0; i < length; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * 记录一次操作
+	 *
+	 * @param nanos
+	 *            耗时，纳秒
+	 * @param chars
+	 *            扫描的字符数
+	 */
+	void record(Operation op, long nanos, long chars) {
+		scans[op.ordinal()].increment();
+		latencies[op.ordinal()][latencyBucket(nanos)].increment();
+		this.chars.add(chars);
+	}
+
+	/**
+	 * 记录一次关键字匹配
+	 */
+	void recordMatch(String keyword) {
+		matches.increment();
+		LongAdder adder = keywordMatches.get(keyword);
+		if (null == adder) {
+			LongAdder created = new LongAdder();
+			adder = keywordMatches.putIfAbsent(keyword, created);
+			if (null == adder) {
+				adder = created;
+			}
+		}
+		adder.increment();
+	}
+
+	/**
+	 * 记录一次采样扫描中各回退深度的转移次数，下标为深度
+	 */
+	void recordFailDepths(int[] counts) {
+		for (int depth = 0; depth < counts.length; depth++) {
+			if (counts[depth] > 0) {
+				failDepths[Math.min(depth, BUCKETS - 1)].add(counts[depth]);
+			}
+		}
+	}
+
+	private static int latencyBucket(long nanos) {
+		return nanos <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+	}
+
+	/**
+	 * 取得当前全部指标的快照。各计数器分别读取，并发记录时快照内的各项之间可能有微小出入
+	 */
+	public Snapshot snapshot() {
+		long[] scans = sums(this.scans);
+		long[][] latencies = new long[OPERATIONS.length][];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = sums(this.latencies[i]);
+		}
+		Map<String, Long> keywordMatches = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : this.keywordMatches.entrySet()) {
+			keywordMatches.put(e.getKey(), e.getValue().sum());
+		}
+		return new Snapshot(scans, latencies, chars.sum(), matches.sum(), keywordMatches, sums(failDepths));
+	}
+
+	private static long[] sums(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for (int i = 0; i < adders.length; i++) {
+			sums[i] = adders[i].sum();
+		}
+		return sums;
+	}
+
+	/**
+	 * 某一时刻的指标，不再变化
+	 */
+	public static final class Snapshot {
+
+		private final long[] scans;
+
+		private final long[][] latencies;
+
+		private final long chars;
+
+		private final long matches;
+
+		private final Map<String, Long> keywordMatches;
+
+		private final long[] failDepths;
+
+		Snapshot(long[] scans, long[][] latencies, long chars, long matches, Map<String, Long> keywordMatches,
+				long[] failDepths) {
+			this.scans = scans;
+			this.latencies = latencies;
+			this.chars = chars;
+			this.matches = matches;
+			this.keywordMatches = Collections.unmodifiableMap(keywordMatches);
+			this.failDepths = failDepths;
+		}
+
+		/**
+		 * 某个操作的调用次数
+		 */
+		public long getScanCount(Operation op) {
+			return scans[op.ordinal()];
+		}
+
+		/**
+		 * 全部操作的调用次数
+		 */
+		public long getScanCount() {
+			long sum = 0;
+			for (long n : scans) {
+				sum += n;
+			}
+			return sum;
+		}
+
+		/**
+		 * 扫描过的字符总数
+		 */
+		public long getCharsScanned() {
+			return chars;
+		}
+
+		/**
+		 * 匹配(替换)到的关键字总数，hasKeywords不计入
+		 */
+		public long getMatchCount() {
+			return matches;
+		}
+
+		/**
+		 * 关键字 -> 匹配次数，只包含匹配到过的关键字
+		 */
+		public Map<String, Long> getKeywordMatches() {
+			return keywordMatches;
+		}
+
+		/**
+		 * 某个操作的耗时直方图，第i个元素为耗时在[2^(i-1), 2^i)纳秒内的次数，第0个元素为0纳秒的次数
+		 */
+		public long[] getLatencyHistogram(Operation op) {
+			return latencies[op.ordinal()].clone();
+		}
+
+		/**
+		 * 由直方图估计的耗时百分位数，返回所在桶的上界(纳秒)，没有调用时返回0
+		 *
+		 * @param percentile
+		 *            百分位，在(0, 100]内，比如99
+		 */
+		public long getLatencyPercentile(Operation op, double percentile) {
+			if (percentile <= 0 || percentile > 100) {
+				throw new IllegalArgumentException("百分位必须在(0, 100]内: " + percentile);
+			}
+			long[] histogram = latencies[op.ordinal()];
+			long total = scans[op.ordinal()];
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < histogram.length; i++) {
+				seen += histogram[i];
+				if (seen >= rank && seen > 0) {
+					return i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : 1L << i;
+				}
+			}
+			return 0;
+		}
+
+		/**
+		 * <pre>
+		 * 采样扫描中失败回退深度的直方图，第i个元素为回退了i个字符的转移次数，最后一个元素包含更深的。
+		 * 回退深度指读入一个字符时沿失败路径丢掉的字符数，即 转移前的深度 + 1 - 转移后的深度，
+		 * 为0表示沿goto函数直接前进，越大说明自动机在该文本上回溯得越多。
+		 * </pre>
+		 */
+		public long[] getFailDepthHistogram() {
+			return failDepths.clone();
+		}
+	}
+
+}
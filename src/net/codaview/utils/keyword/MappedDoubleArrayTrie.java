@@ -0,0 +1,189 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <pre>
+ * 直接在内存映射的快照文件上扫描的双数组Trie树，快照由{@link DoubleArrayTrie#writeTo(Path)}写出。
+ *
+ * base、check、fail等数组和关键字都不复制到堆上，而是只读地映射到内存中：
+ * (1) 同一台机器上的多个进程映射同一个文件时，共用操作系统的页缓存，只占一份物理内存；
+ * (2) 这些数组不是Java对象，GC不会扫描和复制它们。
+ * 堆上只保留128K的字符编码表、跳过字符和规范化表。匹配结果与{@link DoubleArrayTrie}完全一致。
+ *
+ * 映射在对象被回收后才会解除，快照文件在使用期间不能被修改，更新词库时应写出新文件后重新打开。
+ * 快照文件不能超过2G。
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class MappedDoubleArrayTrie extends AbstractKeywordFilter {
+
+	/**
+	 * 字符编码表，下标为字符
+	 */
+	private final char[] codes = new char[65536];
+
+	private final IntBuffer base;
+
+	private final IntBuffer check;
+
+	private final IntBuffer fail;
+
+	private final IntBuffer keywordIds;
+
+	private final IntBuffer outputLinks;
+
+	private final IntBuffer depths;
+
+	/**
+	 * 关键字i为keywordChars[keywordOffsets[i], keywordOffsets[i + 1])
+	 */
+	private final IntBuffer keywordOffsets;
+
+	private final CharBuffer keywordChars;
+
+	private final int size;
+
+	private final int keywordCount;
+
+	private final int allowedCount;
+
+	private MappedDoubleArrayTrie(ByteBuffer buffer) throws IOException {
+		try {
+			DoubleArrayTrie.readHeader(buffer);
+			for (char ch : DoubleArrayTrie.getChars(buffer)) {
+				skipChars.add(ch);
+			}
+			normalTable = DoubleArrayTrie.getNormalTable(buffer);
+			char[] alphabet = DoubleArrayTrie.getChars(buffer);
+			for (int i = 0; i < alphabet.length; i++) {
+				codes[alphabet[i]] = (char) (i + 1);
+			}
+			DoubleArrayTrie.foldCodes(codes, normalTable);
+			size = buffer.getInt();
+			base = ints(buffer, size);
+			check = ints(buffer, size);
+			fail = ints(buffer, size);
+			keywordIds = ints(buffer, size);
+			outputLinks = ints(buffer, size);
+			depths = ints(buffer, size);
+			int count = buffer.getInt();
+			keywordOffsets = ints(buffer, count + 1);
+			int length = buffer.getInt();
+			ByteBuffer slice = buffer.slice();
+			slice.limit(2 * length);
+			keywordChars = slice.asCharBuffer();
+			buffer.position(buffer.position() + 2 * length);
+			DoubleArrayTrie.checkOffsets(keywordOffsets, length);
+			DoubleArrayTrie.checkStates(check, fail, keywordIds, outputLinks, depths, keywordOffsets);
+			allowedCount = DoubleArrayTrie.getAllowedCount(buffer, count);
+			keywordCount = count - allowedCount;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("快照文件不完整", e);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("快照文件已损坏", e);
+		}
+		compileTables();
+	}
+
+	/**
+	 * 只读地映射快照文件
+	 *
+	 * @throws IOException
+	 *             读取失败或文件不是快照、版本不支持、内容不完整或已损坏
+	 */
+	public static MappedDoubleArrayTrie open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("快照文件过大: " + path);
+			}
+			// 映射建立后不依赖于channel，可以直接关闭
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, size);
+			return new MappedDoubleArrayTrie(buffer);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * 从buffer当前位置起取length个int的视图，并把buffer的位置移到其后
+	 */
+	private static IntBuffer ints(ByteBuffer buffer, int length) {
+		ByteBuffer slice = buffer.slice();
+		slice.limit(4 * length);
+		buffer.position(buffer.position() + 4 * length);
+		return slice.asIntBuffer();
+	}
+
+	@Override
+	int transition(int state, char ch) {
+		final int code = codes[ch];
+		if (code == 0) {
+			return ROOT;
+		}
+		while (true) {
+			int t = base.get(state) + code;
+			if (t >= 0 && t < size && check.get(t) == state) {
+				return t;
+			}
+			if (state == ROOT) {
+				return ROOT;
+			}
+			state = fail.get(state);
+		}
+	}
+
+	@Override
+	int keywordId(int state) {
+		return keywordIds.get(state);
+	}
+
+	@Override
+	int outputLink(int state) {
+		return outputLinks.get(state);
+	}
+
+	@Override
+	int depth(int state) {
+		return depths.get(state);
+	}
+
+	@Override
+	String keyword(int keywordId) {
+		int start = keywordOffsets.get(keywordId);
+		return keywordChars.subSequence(start, keywordOffsets.get(keywordId + 1)).toString();
+	}
+
+	@Override
+	int keywordLength(int keywordId) {
+		return keywordOffsets.get(keywordId + 1) - keywordOffsets.get(keywordId);
+	}
+
+	@Override
+	int keywordCount() {
+		return keywordCount;
+	}
+
+	@Override
+	int allowedCount() {
+		return allowedCount;
+	}
+
+	@Override
+	int stateCount() {
+		return size;
+	}
+
+}
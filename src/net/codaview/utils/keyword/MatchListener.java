@@ -0,0 +1,24 @@
+package net.codaview.utils.keyword;
+
+/**
+ * 接收匹配结果的回调，用于高亮、定位等需要知道匹配位置的场景。
+ * 每个匹配只回调位置和关键字编号，不创建任何对象。
+ * 
+ * @see KeywordFilter#match(CharSequence, MatchMode, MatchListener)
+ */
+public interface MatchListener {
+
+	/**
+	 * 匹配到一个关键字
+	 * 
+	 * @param start
+	 *            匹配在文本中的起始下标(包含)
+	 * @param end
+	 *            匹配在文本中的结束下标(不包含)，匹配内部可能夹杂跳过字符
+	 * @param keywordId
+	 *            关键字编号，可通过{@link KeywordFilter#getKeyword(int)}取得关键字
+	 * @return 返回true继续匹配，返回false停止匹配
+	 */
+	boolean onMatch(int start, int end, int keywordId);
+
+}
@@ -0,0 +1,29 @@
+package net.codaview.utils.keyword;
+
+/**
+ * 匹配模式。比如关键字依次为“心事”、“心事重重”、“事重”，文本为“心事重重”时：
+ * 
+ * <pre>
+ * OVERLAPPING      心事、事重、心事重重
+ * LEFTMOST_LONGEST 心事重重
+ * LEFTMOST_FIRST   心事
+ * </pre>
+ */
+public enum MatchMode {
+
+	/**
+	 * 全部匹配，包括互相重叠、互相包含的匹配，按结束位置先后回调
+	 */
+	OVERLAPPING,
+
+	/**
+	 * 最左最长：只回调互不重叠的匹配，起始位置最靠左的优先，起始位置相同时最长的优先。替换即采用此模式
+	 */
+	LEFTMOST_LONGEST,
+
+	/**
+	 * 最左优先：只回调互不重叠的匹配，起始位置最靠左的优先，起始位置相同时最先添加的关键字优先
+	 */
+	LEFTMOST_FIRST
+
+}
@@ -0,0 +1,447 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <pre>
+ * 把大文本切成若干块，在ForkJoinPool上并行扫描的过滤器，结果与顺序扫描完全一致。
+ *
+ * (1) 并行阶段：每块从块首开始做最左匹配，只保留起点在本块内的匹配。扫描可以越过块尾，
+ *     直到能确定本块内不会再有匹配开始为止，因此跨块的匹配(包括夹杂任意多跳过字符的)也不会漏掉。
+ * (2) 合并阶段：顺序地把各块的匹配接起来。最左匹配从某个位置开始的结果是唯一确定的，
+ *     上一块最后一个匹配越过块尾时，从它的结束处顺序补扫几个匹配，直到与本块的匹配重合，之后直接采用本块的结果。
+ * 替换结果、匹配的回调顺序都与顺序扫描相同，ReplaceStrategy和MatchListener只在调用线程中被调用。
+ *
+ * 只有{@link #hasKeywords(String)}、{@link #replace(CharSequence, ReplaceStrategy)}系列
+ * 和最左匹配模式的{@link #match(CharSequence, MatchMode, MatchListener)}会并行，
+ * 其它方法以及短于两块的文本直接顺序处理。自动机中有允许短语时，块首可能落在允许短语中间，也顺序处理。
+ * 批量接口{@link #hasKeywords(List)}、{@link #replaceAll(List, ReplaceStrategy)}把消息按顺序分组，
+ * 每组的总字符数不少于一块，各组并行处理，此时ReplaceStrategy会在多个线程中被同时调用。
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class ParallelKeywordFilter implements KeywordFilter {
+
+	/**
+	 * 默认的块大小(字符数)
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	private final AbstractKeywordFilter filter;
+
+	private final ForkJoinPool pool;
+
+	private final int chunkSize;
+
+	public ParallelKeywordFilter(KeywordFilter filter) {
+		this(filter, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param filter
+	 *            已编译的{@link TrieTree}、{@link DoubleArrayTrie}等基于AC自动机的过滤器
+	 * @param pool
+	 *            执行并行扫描的线程池
+	 * @param chunkSize
+	 *            每块的字符数
+	 */
+	public ParallelKeywordFilter(KeywordFilter filter, ForkJoinPool pool, int chunkSize) {
+		if (!(filter instanceof AbstractKeywordFilter)) {
+			throw new IllegalArgumentException("只支持基于AC自动机的过滤器");
+		}
+		if (null == pool) {
+			throw new NullPointerException("请传入ForkJoinPool");
+		}
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("块大小必须大于0");
+		}
+		this.filter = (AbstractKeywordFilter) filter;
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public boolean hasKeywords(final String text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		if (sequential(text)) {
+			return filter.hasKeywords(text);
+		}
+
+		// 有关键字出现时，出现位置所在的块从块首开始的最左匹配一定能找到一个起点在本块内的匹配
+		final int[] bounds = bounds(text.length());
+		final AtomicBoolean found = new AtomicBoolean(false);
+		pool.invoke(new ChunkTask(new ChunkScanner() {
+			@Override
+			public void scan(int chunk) {
+				if (found.get()) {
+					return;
+				}
+				filter.leftmostUntil(text, bounds[chunk], bounds[chunk + 1], true, new MatchListener() {
+					@Override
+					public boolean onMatch(int start, int end, int keywordId) {
+						found.set(true);
+						return false;
+					}
+				});
+			}
+		}, 0, bounds.length - 1));
+		return found.get();
+	}
+
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'.");
+		final List<? extends CharSequence> list = randomAccess(texts);
+		final int[] bounds = groups(list);
+		if (bounds.length <= 2) {
+			return filter.hasKeywords(list);
+		}
+
+		final BitSet[] results = new BitSet[bounds.length - 1];
+		pool.invoke(new ChunkTask(new ChunkScanner() {
+			@Override
+			public void scan(int group) {
+				results[group] = filter.hasKeywords(list.subList(bounds[group], bounds[group + 1]));
+			}
+		}, 0, results.length));
+		BitSet ret = new BitSet(list.size());
+		for (int group = 0; group < results.length; group++) {
+			for (int i = results[group].nextSetBit(0); i >= 0; i = results[group].nextSetBit(i + 1)) {
+				ret.set(bounds[group] + i);
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, final ReplaceStrategy strategy) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		final List<String> list = randomAccess(texts);
+		final int[] bounds = groups(list);
+		if (bounds.length <= 2) {
+			return filter.replaceAll(list, strategy);
+		}
+
+		final int groups = bounds.length - 1;
+		final List<List<String>> results = new ArrayList<List<String>>(Collections.<List<String>> nCopies(groups, null));
+		pool.invoke(new ChunkTask(new ChunkScanner() {
+			@Override
+			public void scan(int group) {
+				results.set(group, filter.replaceAll(list.subList(bounds[group], bounds[group + 1]), strategy));
+			}
+		}, 0, groups));
+		List<String> ret = new ArrayList<String>(list.size());
+		for (List<String> result : results) {
+			ret.addAll(result);
+		}
+		return ret;
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		checkNotNull(mode, "Null value not allowed for parameter 'mode'.");
+		checkNotNull(listener, "Null value not allowed for parameter 'listener'.");
+		if (mode == MatchMode.OVERLAPPING || sequential(text)) {
+			filter.match(text, mode, listener);
+			return;
+		}
+		leftmost(text, mode == MatchMode.LEFTMOST_LONGEST, listener);
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		return replace((CharSequence) text, strategy).toString();
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		if (sequential(text)) {
+			return filter.replace(text, strategy);
+		}
+
+		StringBuilder out = new StringBuilder(text.length() + 16);
+		if (!replace(text, out, strategy)) {
+			return text;
+		}
+		return out.toString();
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		try {
+			return replace(text, (Appendable) out, strategy);
+		} catch (IOException e) {
+			// StringBuilder不会抛出IOException
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public boolean replace(final CharSequence text, final Appendable out, final ReplaceStrategy strategy)
+			throws IOException {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(out, "Null value not allowed for parameter 'out'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		if (sequential(text)) {
+			return filter.replace(text, out, strategy);
+		}
+
+		final IOException[] exception = new IOException[1];
+		final int[] emitted = new int[1];
+		leftmost(text, true, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				try {
+					out.append(text, emitted[0], start);
+					out.append(strategy.replaceWith(filter.keyword(keywordId)));
+					emitted[0] = end;
+					return true;
+				} catch (IOException e) {
+					exception[0] = e;
+					return false;
+				}
+			}
+		});
+		if (null != exception[0]) {
+			throw exception[0];
+		}
+		out.append(text, emitted[0], text.length());
+		return emitted[0] > 0;
+	}
+
+	/**
+	 * 并行扫描各块，再按顺序合并并回调listener
+	 */
+	private void leftmost(final CharSequence text, final boolean longest, MatchListener listener) {
+		final int[] bounds = bounds(text.length());
+		final Spans[] chunks = new Spans[bounds.length - 1];
+		pool.invoke(new ChunkTask(new ChunkScanner() {
+			@Override
+			public void scan(int chunk) {
+				Spans spans = new Spans();
+				filter.leftmostUntil(text, bounds[chunk], bounds[chunk + 1], longest, spans);
+				chunks[chunk] = spans;
+			}
+		}, 0, chunks.length));
+
+		/* 顺序扫描时下一个匹配从pos开始找 */
+		int pos = 0;
+		Spans next = new Spans();
+		for (int chunk = 0; chunk < chunks.length; chunk++) {
+			Spans spans = chunks[chunk];
+			int i = 0;
+			while (true) {
+				while (i < spans.size && spans.start(i) < pos) {
+					i++;
+				}
+				// 本块中pos之前的最后一个匹配在pos之前结束时，本块的后续匹配就是从pos开始的顺序扫描结果
+				if (i == 0 || spans.end(i - 1) <= pos) {
+					for (; i < spans.size; i++) {
+						if (!listener.onMatch(spans.start(i), spans.end(i), spans.keywordId(i))) {
+							return;
+						}
+						pos = spans.end(i);
+					}
+					break;
+				}
+				// 否则从pos开始顺序补扫一个匹配
+				next.size = 0;
+				filter.leftmostUntil(text, pos, bounds[chunk + 1], longest, next.first());
+				if (next.size == 0) {
+					break;
+				}
+				if (!listener.onMatch(next.start(0), next.end(0), next.keywordId(0))) {
+					return;
+				}
+				pos = next.end(0);
+			}
+		}
+	}
+
+	/**
+	 * 各块的边界，第i块为[bounds[i], bounds[i + 1])
+	 */
+	private int[] bounds(int length) {
+		int chunks = (length + chunkSize - 1) / chunkSize;
+		int[] bounds = new int[chunks + 1];
+		for (int i = 0; i < chunks; i++) {
+			bounds[i] = i * chunkSize;
+		}
+		bounds[chunks] = length;
+		return bounds;
+	}
+
+	/**
+	 * 短于两块的文本，或有允许短语的过滤器，直接交给被包装的过滤器顺序处理
+	 */
+	private boolean sequential(CharSequence text) {
+		return text.length() < 2 * chunkSize || filter.allowedCount() > 0;
+	}
+
+	/**
+	 * 把消息按顺序分组，每组的总字符数至少为一块，第i组为[bounds[i], bounds[i + 1])
+	 */
+	private int[] groups(List<? extends CharSequence> texts) {
+		int[] bounds = new int[16];
+		int groups = 0;
+		int length = 0;
+		for (int i = 0, size = texts.size(); i < size; i++) {
+			CharSequence text = texts.get(i);
+			checkNotNull(text, "Null value not allowed for element of 'texts'.");
+			length += text.length();
+			if (length >= chunkSize && i + 1 < size) {
+				if (groups + 2 >= bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[++groups] = i + 1;
+				length = 0;
+			}
+		}
+		bounds[++groups] = texts.size();
+		return Arrays.copyOf(bounds, groups + 1);
+	}
+
+	/**
+	 * 分组和subList需要按下标访问，LinkedList等先复制一份
+	 */
+	private static <T> List<T> randomAccess(List<T> list) {
+		return list instanceof RandomAccess ? list : new ArrayList<T>(list);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return filter.getKeyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return filter.getKeywordCount();
+	}
+
+	@Override
+	public int count(String text, String keyword) {
+		return filter.count(text, keyword);
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		return filter.countAll(text);
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		return filter.hasKeywords(reader);
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		filter.replace(reader, writer, strategy);
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 扫描一块
+	 */
+	private interface ChunkScanner {
+		void scan(int chunk);
+	}
+
+	/**
+	 * 把[from, to)的块二分后分别fork，每块调用一次scan
+	 */
+	private static final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ChunkScanner scanner;
+
+		private final int from;
+
+		private final int to;
+
+		ChunkTask(ChunkScanner scanner, int from, int to) {
+			this.scanner = scanner;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				scanner.scan(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ChunkTask(scanner, from, mid), new ChunkTask(scanner, mid, to));
+		}
+	}
+
+	/**
+	 * 一组匹配，每个匹配依次存放起点、终点、关键字编号
+	 */
+	private static final class Spans implements MatchListener {
+
+		int[] data = new int[48];
+
+		int size = 0;
+
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			if (3 * size + 3 > data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+			data[3 * size] = start;
+			data[3 * size + 1] = end;
+			data[3 * size + 2] = keywordId;
+			size++;
+			return true;
+		}
+
+		/**
+		 * 只记录第一个匹配的MatchListener
+		 */
+		MatchListener first() {
+			return new MatchListener() {
+				@Override
+				public boolean onMatch(int start, int end, int keywordId) {
+					Spans.this.onMatch(start, end, keywordId);
+					return false;
+				}
+			};
+		}
+
+		int start(int i) {
+			return data[3 * i];
+		}
+
+		int end(int i) {
+			return data[3 * i + 1];
+		}
+
+		int keywordId(int i) {
+			return data[3 * i + 2];
+		}
+	}
+
+}
@@ -0,0 +1,336 @@
+package net.codaview.utils.keyword;
+
+/**
+ * <pre>
+ * 正则表达式中必须出现的一段字面量，以及匹配中它前后最多还有几个字符。
+ *
+ * 只分析表达式最外层的序列：普通字符、转义的标点、字符类、.、分组(整体视为不定长)、各种量词。
+ * 最外层有|、内联标志(?i)等会改变字面量含义的写法，或遇到不认识的转义时，认为没有必需的字面量，
+ * 这样的表达式在全文上查找，只是不能预先过滤，结果不受影响。
+ * 被量词修饰的字符不计入字面量，比如“代\d+开票”的字面量为“代”和“开票”，取较长的“开票”。
+ * </pre>
+ *
+ * @author lianxh
+ */
+final class RegexFactor {
+
+	/**
+	 * 长度没有上限
+	 */
+	static final int UNBOUNDED = -1;
+
+	/**
+	 * 必须出现的字面量
+	 */
+	final String literal;
+
+	/**
+	 * 匹配中字面量之前最多的字符数，可能为{@link #UNBOUNDED}
+	 */
+	final int before;
+
+	/**
+	 * 匹配中字面量之后最多的字符数，可能为{@link #UNBOUNDED}
+	 */
+	final int after;
+
+	private RegexFactor(String literal, int before, int after) {
+		this.literal = literal;
+		this.before = before;
+		this.after = after;
+	}
+
+	/**
+	 * 不含任何元字符，可以当作普通关键字处理
+	 */
+	static boolean isLiteral(String regex) {
+		for (int i = 0; i < regex.length(); i++) {
+			if ("\\^$.|?*+()[]{}".indexOf(regex.charAt(i)) >= 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 找出最长的必需字面量，没有时返回null
+	 */
+	static RegexFactor extract(String regex) {
+		int n = regex.length();
+		/* 各原子：字面字符(不是时为-1)、最大长度 */
+		int[] chars = new int[n];
+		int[] maxs = new int[n];
+		int count = 0;
+		int i = 0;
+		while (i < n) {
+			char c = regex.charAt(i);
+			int literal = -1;
+			int max;
+			if (c == '|') {
+				return null;
+			} else if (c == '(') {
+				if (isInlineFlags(regex, i)) {
+					return null;
+				}
+				i = groupEnd(regex, i);
+				if (i < 0) {
+					return null;
+				}
+				max = UNBOUNDED;
+			} else if (c == '[') {
+				i = classEnd(regex, i);
+				if (i < 0) {
+					return null;
+				}
+				max = 1;
+			} else if (c == '.') {
+				i++;
+				max = 1;
+			} else if (c == '^' || c == '$') {
+				i++;
+				max = 0;
+			} else if (c == '\\') {
+				if (i + 1 >= n) {
+					return null;
+				}
+				char d = regex.charAt(i + 1);
+				i += 2;
+				if (!Character.isLetterOrDigit(d)) {
+					literal = d;
+					max = 1;
+				} else if ("bBAGzZ".indexOf(d) >= 0) {
+					max = 0;
+				} else if ("dDsSwWhHvVtnrfae".indexOf(d) >= 0) {
+					max = 1;
+				} else if (d == 'x' || d == 'u' || d == '0' || d == 'c' || d == 'p' || d == 'P' || d == 'N') {
+					i = escapeEnd(regex, i, d);
+					if (i < 0) {
+						return null;
+					}
+					// 可能是一个增补字符
+					max = 2;
+				} else if (d == 'R') {
+					max = 2;
+				} else if (d == 'k' || (d >= '1' && d <= '9') || d == 'X') {
+					// 反向引用、字素簇，长度不定。\k<name>和多位的编号不必精确跳过，后面不会再有可用的字面量时结果也只是保守，
+					// 但后面最外层的|仍然使前面的字面量不再是必需的
+					return alternates(regex, i) ? null : tail(chars, maxs, count, UNBOUNDED);
+				} else {
+					// \Q...\E和不认识的转义
+					return null;
+				}
+			} else {
+				literal = c;
+				max = 1;
+				i++;
+			}
+
+			// 量词
+			if (i < n && "?*+{".indexOf(regex.charAt(i)) >= 0) {
+				char q = regex.charAt(i);
+				int qmax;
+				if (q == '?') {
+					qmax = 1;
+					i++;
+				} else if (q == '*' || q == '+') {
+					qmax = UNBOUNDED;
+					i++;
+				} else {
+					int close = regex.indexOf('}', i);
+					if (close < 0) {
+						return null;
+					}
+					String body = regex.substring(i + 1, close);
+					int comma = body.indexOf(',');
+					try {
+						qmax = comma < 0 ? Integer.parseInt(body.trim())
+								: comma == body.length() - 1 ? UNBOUNDED : Integer.parseInt(body.substring(comma + 1)
+										.trim());
+					} catch (NumberFormatException e) {
+						return null;
+					}
+					i = close + 1;
+				}
+				// 勉强、占有量词
+				if (i < n && (regex.charAt(i) == '?' || regex.charAt(i) == '+')) {
+					i++;
+				}
+				literal = -1;
+				max = max == UNBOUNDED || qmax == UNBOUNDED ? UNBOUNDED : (int) Math.min(Integer.MAX_VALUE / 2,
+						(long) max * qmax);
+			}
+			chars[count] = literal;
+			maxs[count] = max;
+			count++;
+		}
+		return tail(chars, maxs, count, 0);
+	}
+
+	/**
+	 * 在前count个原子中找最长的连续字面字符，其后还有最大长度为rest的部分
+	 */
+	private static RegexFactor tail(int[] chars, int[] maxs, int count, int rest) {
+		int bestFrom = 0;
+		int bestTo = 0;
+		for (int from = 0; from < count;) {
+			int to = from;
+			while (to < count && chars[to] >= 0) {
+				to++;
+			}
+			if (to - from > bestTo - bestFrom) {
+				bestFrom = from;
+				bestTo = to;
+			}
+			from = to + 1;
+		}
+		if (bestTo == bestFrom) {
+			return null;
+		}
+		StringBuilder literal = new StringBuilder(bestTo - bestFrom);
+		for (int k = bestFrom; k < bestTo; k++) {
+			literal.append((char) chars[k]);
+		}
+		return new RegexFactor(literal.toString(), sum(maxs, 0, bestFrom, 0), sum(maxs, bestTo, count, rest));
+	}
+
+	private static int sum(int[] maxs, int from, int to, int rest) {
+		long sum = rest;
+		if (rest == UNBOUNDED) {
+			return UNBOUNDED;
+		}
+		for (int k = from; k < to; k++) {
+			if (maxs[k] == UNBOUNDED) {
+				return UNBOUNDED;
+			}
+			sum += maxs[k];
+		}
+		return sum > Integer.MAX_VALUE / 2 ? UNBOUNDED : (int) sum;
+	}
+
+	/**
+	 * 从i起是否还有最外层的|，无法解析时也返回true
+	 */
+	private static boolean alternates(String regex, int i) {
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			if (c == '|') {
+				return true;
+			} else if (c == '\\') {
+				i += 2;
+			} else if (c == '(') {
+				i = groupEnd(regex, i);
+			} else if (c == '[') {
+				i = classEnd(regex, i);
+			} else {
+				i++;
+			}
+			if (i < 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 最外层的(?i)、(?-s)等内联标志，会改变其后字符的含义
+	 */
+	private static boolean isInlineFlags(String regex, int i) {
+		if (!regex.startsWith("(?", i)) {
+			return false;
+		}
+		int k = i + 2;
+		while (k < regex.length() && (Character.isLetter(regex.charAt(k)) || regex.charAt(k) == '-')) {
+			k++;
+		}
+		return k > i + 2 && k < regex.length() && regex.charAt(k) == ')';
+	}
+
+	/**
+	 * 分组结束后的下标，不完整时返回-1
+	 */
+	private static int groupEnd(String regex, int i) {
+		int depth = 0;
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				i += 2;
+				continue;
+			}
+			if (c == '[') {
+				i = classEnd(regex, i);
+				if (i < 0) {
+					return -1;
+				}
+				continue;
+			}
+			if (c == '(') {
+				depth++;
+			} else if (c == ')' && --depth == 0) {
+				return i + 1;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * 字符类结束后的下标，支持嵌套和开头的]，不完整时返回-1
+	 */
+	private static int classEnd(String regex, int i) {
+		int depth = 0;
+		while (i < regex.length()) {
+			char c = regex.charAt(i);
+			if (c == '\\') {
+				i += 2;
+				continue;
+			}
+			if (c == '[') {
+				depth++;
+				i++;
+				if (i < regex.length() && regex.charAt(i) == '^') {
+					i++;
+				}
+				// 开头的]是普通字符
+				if (i < regex.length() && regex.charAt(i) == ']') {
+					i++;
+				}
+				continue;
+			}
+			if (c == ']' && --depth == 0) {
+				return i + 1;
+			}
+			i++;
+		}
+		return -1;
+	}
+
+	/**
+	 * 跳过\x、\\u等转义的参数，i为转义字母之后的下标
+	 */
+	private static int escapeEnd(String regex, int i, char d) {
+		int n = regex.length();
+		if ((d == 'x' || d == 'p' || d == 'P' || d == 'N') && i < n && regex.charAt(i) == '{') {
+			int close = regex.indexOf('}', i);
+			return close < 0 ? -1 : close + 1;
+		}
+		switch (d) {
+		case 'x':
+			return Math.min(n, i + 2);
+		case 'u':
+			return Math.min(n, i + 4);
+		case 'c':
+		case 'p':
+		case 'P':
+			return Math.min(n, i + 1);
+		case '0':
+			int k = i;
+			while (k < n && k < i + 3 && regex.charAt(k) >= '0' && regex.charAt(k) <= '7') {
+				k++;
+			}
+			return k;
+		default:
+			return -1;
+		}
+	}
+
+}
@@ -1,52 +1,188 @@
 package net.codaview.utils.keyword;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * This class implements the <tt>KeywordFilter</tt> interface, backed by regular
- * expression. Note : You'd better <b>not</b> use this implement when dealing
- * with large text.
- * 
+ * expression. Keywords without regex metacharacters are matched by an
+ * Aho-Corasick automaton, and skip chars apply to them only. Each regex keyword
+ * is compiled once; the literal it requires is located by a second automaton,
+ * and the regex only runs in the window around it. Regex keywords without such
+ * a literal are still searched over the whole text.
+ *
  * @author lianxh
  * @since 2013/12/16
  */
 public class RegexKeywordFilter implements KeywordFilter {
 
-	private Pattern pattern;
+	private static final int NONE = -1;
 
-	private Set<String> keywords = new HashSet<String>();
+	/**
+	 * 按结束位置、起始位置、关键字编号排序，元素为{起始位置, 结束位置, 关键字编号}
+	 */
+	private static final Comparator<int[]> BY_END = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] o1, int[] o2) {
+			if (o1[1] != o2[1]) {
+				return o1[1] < o2[1] ? -1 : 1;
+			}
+			if (o1[0] != o2[0]) {
+				return o1[0] < o2[0] ? -1 : 1;
+			}
+			return o1[2] < o2[2] ? -1 : o1[2] == o2[2] ? 0 : 1;
+		}
+	};
+
+	/**
+	 * 按{@link Cursor#key}排序
+	 */
+	private static final Comparator<Cursor> BY_KEY = new Comparator<Cursor>() {
+		@Override
+		public int compare(Cursor o1, Cursor o2) {
+			return o1.key < o2.key ? -1 : o1.key == o2.key ? 0 : 1;
+		}
+	};
+
+	private Set<String> keywords = new LinkedHashSet<String>();
+
+	/**
+	 * 编译后的关键字，下标即关键字编号
+	 */
+	private String[] keywordArray;
 
 	private Set<Character> skipChars = new HashSet<Character>();
 
+	/**
+	 * 不含元字符的关键字直接交给AC自动机，跳过字符只对这些关键字生效。未编译时也用于统计
+	 */
+	private DoubleArrayTrie literals = new DoubleArrayTrie();
+
+	/**
+	 * literals中的关键字编号 -> 关键字编号
+	 */
+	private int[] literalIds;
+
+	/**
+	 * 正则表达式关键字，编译后每个关键字的Pattern缓存在这里
+	 */
+	private Term[] terms;
+
+	/**
+	 * 关键字编号 -> terms下标，不是正则表达式关键字时为{@link #NONE}
+	 */
+	private int[] termIndexes;
+
+	/**
+	 * 各正则表达式必需的字面量组成的自动机，没有可用的字面量时为null
+	 */
+	private DoubleArrayTrie factors;
+
+	/**
+	 * factors中的字面量编号 -> 含有它的terms下标
+	 */
+	private int[][] factorTerms;
+
+	/**
+	 * 没有必需字面量、只能在全文上查找的terms下标
+	 */
+	private int[] unfactored;
+
 	private boolean compiled = false;
 
+	/**
+	 * <pre>
+	 * 不含正则表达式元字符的关键字编译为AC自动机，其余关键字各自编译、缓存为Pattern。
+	 * 从每个正则表达式中取出必须出现的字面量，也编译为一个AC自动机，扫描一遍文本就能知道哪些表达式可能匹配、
+	 * 可能的匹配在哪个范围内，再只在这些范围内运行对应的Pattern。
+	 * </pre>
+	 */
 	public void compile() {
-		String patternString;
-		if (skipChars.isEmpty()) {
-			patternString = join(keywords, "|");
-		} else {
-			final String skipRegex = toRegexSkipChar(skipChars);
-			List<String> regexs = new ArrayList<String>(keywords.size());
-			for (String keyword : keywords) {
-				String regex = insertSkipChar(keyword, skipRegex);
-				regexs.add(regex);
+		this.keywordArray = keywords.toArray(new String[keywords.size()]);
+		this.termIndexes = new int[keywordArray.length];
+		List<Integer> literalList = new ArrayList<Integer>();
+		List<Term> termList = new ArrayList<Term>();
+		for (int id = 0; id < keywordArray.length; id++) {
+			String keyword = keywordArray[id];
+			if (RegexFactor.isLiteral(keyword)) {
+				literals.add(keyword);
+				literalList.add(id);
+				termIndexes[id] = NONE;
+			} else {
+				termIndexes[id] = termList.size();
+				termList.add(new Term(id, Pattern.compile(keyword), RegexFactor.extract(keyword)));
 			}
-			patternString = join(regexs, "|");
 		}
-		
-		//patternString = Pattern.quote(patternString);
-		this.pattern = Pattern.compile(patternString);
+		literals.compile();
+		this.literalIds = new int[literalList.size()];
+		for (int i = 0; i < literalIds.length; i++) {
+			literalIds[i] = literalList.get(i);
+		}
+		this.terms = termList.toArray(new Term[termList.size()]);
+		compileFactors();
 		this.compiled = true;
 	}
 
+	/**
+	 * 相同的字面量只加入一次，factorTerms记录它属于哪些表达式
+	 */
+	private void compileFactors() {
+		Map<String, List<Integer>> owners = new LinkedHashMap<String, List<Integer>>();
+		List<Integer> rest = new ArrayList<Integer>();
+		for (int t = 0; t < terms.length; t++) {
+			RegexFactor factor = terms[t].factor;
+			if (null == factor) {
+				rest.add(t);
+				continue;
+			}
+			List<Integer> list = owners.get(factor.literal);
+			if (null == list) {
+				list = new ArrayList<Integer>(1);
+				owners.put(factor.literal, list);
+			}
+			list.add(t);
+		}
+		this.unfactored = toArray(rest);
+		if (owners.isEmpty()) {
+			return;
+		}
+		DoubleArrayTrie factors = new DoubleArrayTrie();
+		for (String literal : owners.keySet()) {
+			factors.add(literal);
+		}
+		factors.compile();
+		this.factorTerms = new int[owners.size()][];
+		int i = 0;
+		for (List<Integer> list : owners.values()) {
+			factorTerms[i++] = toArray(list);
+		}
+		this.factors = factors;
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+
 	public void add(Collection<String> keywords) {
 		if (null == keywords || keywords.isEmpty()) {
 			throw new IllegalArgumentException("过滤关键词不能为空！");
@@ -72,6 +208,7 @@ public class RegexKeywordFilter implements KeywordFilter {
 			throw new IllegalStateException("编译后不能再添加忽略字符");
 		}
 		this.skipChars.add(ch);
+		this.literals.addSkipChar(ch);
 	}
 
 	public void addSkipChar(Collection<Character> chars) {
@@ -80,6 +217,7 @@ public class RegexKeywordFilter implements KeywordFilter {
 		}
 		if (null != chars) {
 			this.skipChars.addAll(chars);
+			this.literals.addSkipChar(chars);
 		}
 	}
 
@@ -87,31 +225,530 @@ public class RegexKeywordFilter implements KeywordFilter {
 	public boolean hasKeywords(String text) {
 		checkNotNull(text, "请传入需要查询关键字的文本");
 
-		Matcher matcher = pattern.matcher(text);
-		return matcher.find();
+		return literals.hasKeywords(text) || findTerm(text);
 	}
 
 	@Override
-	public int count(String text, String keyword) {
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		checkNotNull(texts, "请传入需要查询关键字的文本");
+
+		BitSet ret = new BitSet(texts.size());
+		int i = 0;
+		for (CharSequence text : texts) {
+			checkNotNull(text, "请传入需要查询关键字的文本");
+			if (hasKeywords(text.toString())) {
+				ret.set(i);
+			}
+			i++;
+		}
+		return ret;
+	}
+
+	/**
+	 * 是否有正则表达式关键字匹配。与{@link #leftmost}对每次字面量出现做同样的检查，长度为0的匹配同样忽略，
+	 * 只是边扫描边检查，找到一个就停止。
+	 */
+	private boolean findTerm(final CharSequence text) {
+		for (int t : unfactored) {
+			if (new Cursor(terms[t], text).resolve(0)) {
+				return true;
+			}
+		}
+		if (null == factors) {
+			return false;
+		}
+		final Cursor[] cursors = new Cursor[terms.length];
+		final boolean[] found = new boolean[1];
+		factors.match(text, MatchMode.OVERLAPPING, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int factorId) {
+				for (int t : factorTerms[factorId]) {
+					if (null == cursors[t]) {
+						cursors[t] = new Cursor(terms[t], text);
+					}
+					if (!cursors[t].exhausted && cursors[t].check(0, start)) {
+						found[0] = true;
+						return false;
+					}
+				}
+				return true;
+			}
+		});
+		return found[0];
+	}
+
+	/**
+	 * 重叠匹配时，每个正则表达式在每个起点最多匹配一次，即Pattern在该起点的首选匹配，长度为0的匹配忽略。
+	 */
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
 		checkNotNull(text, "请传入需要查询关键字的文本");
+		checkNotNull(mode, "请传入匹配模式");
+		checkNotNull(listener, "请传入MatchListener");
 
-		Pattern pattern;
-		if (skipChars.isEmpty()) {
-			pattern = Pattern.compile(keyword);
+		if (mode == MatchMode.OVERLAPPING) {
+			overlapping(text, listener);
 		} else {
-			String skipRegex = toRegexSkipChar(skipChars);
-			String regex = insertSkipChar(keyword, skipRegex);
-			pattern = Pattern.compile(regex);
+			leftmost(text, mode == MatchMode.LEFTMOST_LONGEST, listener);
+		}
+	}
+
+	/**
+	 * 字面量自动机和各正则表达式的匹配合在一起，按结束位置排序，结束位置相同时长的在前，与自动机的回调顺序一致
+	 */
+	private void overlapping(CharSequence text, MatchListener listener) {
+		final List<int[]> matches = new ArrayList<int[]>();
+		literals.match(text, MatchMode.OVERLAPPING, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				matches.add(new int[] { start, end, literalIds[keywordId] });
+				return true;
+			}
+		});
+		if (terms.length > 0) {
+			new Terms(text).all(matches);
+		}
+		Collections.sort(matches, BY_END);
+		for (int[] match : matches) {
+			if (!listener.onMatch(match[0], match[1], match[2])) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 合并字面量自动机和正则表达式的最左匹配，起点相同时最左最长取较长的，最左优先取编号小的，
+	 * 长度也相同时取编号小的。两边各自记住从上次查找位置起的第一个匹配，起点没有被越过时不必重新查找。
+	 * 每个正则表达式使用各自的Pattern，反向引用等按关键字本身的分组编号解释；长度为0的匹配忽略。
+	 * </pre>
+	 */
+	private void leftmost(CharSequence text, boolean longest, MatchListener listener) {
+		First literal = new First();
+		literal.find(text, 0, longest);
+
+		Terms term = terms.length == 0 ? null : new Terms(text);
+		int pos = 0;
+		while (true) {
+			if (null != term && term.start < pos) {
+				term.find(pos, longest);
+				if (term.start == NONE) {
+					term = null;
+				}
+			}
+			if (literal.start != NONE && literal.start < pos) {
+				literal.find(text, pos, longest);
+			}
+
+			boolean useTerm;
+			if (null == term) {
+				if (literal.start == NONE) {
+					return;
+				}
+				useTerm = false;
+			} else if (literal.start == NONE || term.start < literal.start) {
+				useTerm = true;
+			} else if (term.start > literal.start) {
+				useTerm = false;
+			} else if (longest && term.end != literal.end) {
+				useTerm = term.end > literal.end;
+			} else {
+				useTerm = term.keywordId < literal.keywordId;
+			}
+
+			boolean goOn = useTerm ? listener.onMatch(term.start, term.end, term.keywordId) : listener.onMatch(
+					literal.start, literal.end, literal.keywordId);
+			if (!goOn) {
+				return;
+			}
+			pos = useTerm ? term.end : literal.end;
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 一段文本上各正则表达式关键字的查找状态。先用字面量自动机扫描一遍，记下各必需字面量出现的位置，
+	 * 只有没有必需字面量的，或必需字面量出现过的表达式才会运行。
+	 * 各表达式按下一个匹配可能的起点排在优先队列里，需要时才真正查找，起点没有被越过的结果一直有效。
+	 * </pre>
+	 */
+	private final class Terms {
+
+		private final PriorityQueue<Cursor> queue;
+
+		private final List<Cursor> ties = new ArrayList<Cursor>();
+
+		/**
+		 * 最近一次{@link #find}的结果，没有匹配时为{@link #NONE}
+		 */
+		int start = NONE;
+
+		int end;
+
+		int keywordId;
+
+		Terms(CharSequence text) {
+			this.queue = new PriorityQueue<Cursor>(Math.max(1, terms.length), BY_KEY);
+			for (int t : unfactored) {
+				queue.add(new Cursor(terms[t], text));
+			}
+			if (null == factors) {
+				return;
+			}
+			final int[][] starts = new int[factorTerms.length][];
+			final int[] counts = new int[factorTerms.length];
+			factors.match(text, MatchMode.OVERLAPPING, new MatchListener() {
+				@Override
+				public boolean onMatch(int start, int end, int factorId) {
+					int[] array = starts[factorId];
+					if (null == array) {
+						array = starts[factorId] = new int[4];
+					} else if (counts[factorId] == array.length) {
+						array = starts[factorId] = Arrays.copyOf(array, array.length * 2);
+					}
+					array[counts[factorId]++] = start;
+					return true;
+				}
+			});
+			for (int f = 0; f < factorTerms.length; f++) {
+				if (counts[f] == 0) {
+					continue;
+				}
+				for (int t : factorTerms[f]) {
+					queue.add(new Cursor(terms[t], text, starts[f], counts[f]));
+				}
+			}
+		}
+
+		/**
+		 * 把各表达式的全部匹配加入matches，见{@link Cursor#all}
+		 */
+		void all(List<int[]> matches) {
+			for (Cursor cursor : queue) {
+				cursor.all(matches);
+			}
+		}
+
+		/**
+		 * 查找起点不小于pos的第一个匹配，起点相同时的取舍与{@link #leftmost}相同
+		 */
+		void find(int pos, boolean longest) {
+			Cursor best = null;
+			while (!queue.isEmpty()) {
+				Cursor cursor = queue.peek();
+				if (null != best && cursor.key > best.start) {
+					break;
+				}
+				queue.poll();
+				if (!cursor.resolved || cursor.start < pos) {
+					// 查找后起点只会后移，重新排队
+					if (cursor.resolve(pos)) {
+						queue.add(cursor);
+					}
+					continue;
+				}
+				ties.add(cursor);
+				if (null == best || (longest && cursor.end != best.end ? cursor.end > best.end
+						: cursor.term.id < best.term.id)) {
+					best = cursor;
+				}
+			}
+			queue.addAll(ties);
+			ties.clear();
+			if (null == best) {
+				start = NONE;
+			} else {
+				start = best.start;
+				end = best.end;
+				keywordId = best.term.id;
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 一个正则表达式关键字在一段文本上的查找状态。
+	 *
+	 * 起点不小于pos的匹配一定含有起点不小于pos的某次字面量出现，依次检查这些出现：
+	 * 字面量出现在[s, e)时，含有它的匹配落在[s - before, e + after)内，先只在这个窗口内查找，
+	 * 找到后再从窗口起点在全文上查找，得到与Pattern直接查找相同的结果；窗口内没有匹配的出现以后不必再看。
+	 * 前面不定长，或窗口到达文本末尾时，直接在全文上查找一次。
+	 * </pre>
+	 */
+	private static final class Cursor {
+
+		final Term term;
+
+		private final Matcher matcher;
+
+		private final int length;
+
+		/**
+		 * 必需字面量在文本中出现的起点，升序；没有必需字面量时为null
+		 */
+		private final int[] occurrences;
+
+		private final int count;
+
+		/**
+		 * 下一个要检查的字面量出现
+		 */
+		private int next;
+
+		/**
+		 * 下一个匹配的起点，未查找时是它的下限
+		 */
+		int key;
+
+		boolean resolved;
+
+		int start;
+
+		int end;
+
+		/**
+		 * 已知以后不会再有匹配
+		 */
+		boolean exhausted;
+
+		Cursor(Term term, CharSequence text) {
+			this(term, text, null, 0);
+		}
+
+		Cursor(Term term, CharSequence text, int[] occurrences, int count) {
+			this.term = term;
+			this.matcher = term.pattern.matcher(text).useTransparentBounds(true).useAnchoringBounds(false);
+			this.length = text.length();
+			this.occurrences = occurrences;
+			this.count = count;
+			if (null != occurrences && term.factor.before != RegexFactor.UNBOUNDED) {
+				this.key = Math.max(0, occurrences[0] - term.factor.before);
+			}
+		}
+
+		/**
+		 * 查找起点不小于pos的第一个匹配
+		 *
+		 * @return 没有匹配时返回false，以后也不会再有
+		 */
+		boolean resolve(int pos) {
+			resolved = true;
+			if (null == occurrences) {
+				return find(pos);
+			}
+			while (next < count && occurrences[next] < pos) {
+				next++;
+			}
+			for (; next < count && !exhausted; next++) {
+				if (check(pos, occurrences[next])) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/**
+		 * 查找含有从occurrence开始的这次字面量出现、起点不小于pos的匹配，找到时从窗口起点在全文上查找第一个匹配
+		 */
+		boolean check(int pos, int occurrence) {
+			RegexFactor factor = term.factor;
+			if (factor.before == RegexFactor.UNBOUNDED) {
+				return find(pos);
+			}
+			int from = Math.max(pos, occurrence - factor.before);
+			long to = (long) occurrence + factor.literal.length() + factor.after;
+			if (factor.after == RegexFactor.UNBOUNDED || to >= length) {
+				return find(from);
+			}
+			return findNonEmpty(matcher, from, (int) to) && find(from);
+		}
+
+		/**
+		 * 把每个起点上Pattern的首选匹配都加入matches，元素为{起始位置, 结束位置, 关键字编号}，长度为0的忽略。
+		 * 只列举字面量出现前before个字符内的起点，窗口内没有匹配的出现跳过
+		 */
+		void all(List<int[]> matches) {
+			if (null == occurrences) {
+				enumerate(0, length, matches);
+				return;
+			}
+			RegexFactor factor = term.factor;
+			int pos = 0;
+			for (int k = 0; k < count; k++) {
+				int occurrence = occurrences[k];
+				if (occurrence < pos) {
+					continue;
+				}
+				int from = factor.before == RegexFactor.UNBOUNDED ? pos : Math.max(pos, occurrence - factor.before);
+				long to = (long) occurrence + factor.literal.length() + factor.after;
+				if (factor.before != RegexFactor.UNBOUNDED && factor.after != RegexFactor.UNBOUNDED && to < length
+						&& !findNonEmpty(matcher, from, (int) to)) {
+					continue;
+				}
+				pos = enumerate(from, occurrence, matches);
+				if (pos == NONE) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * 列举起点在[from, last]内的首选匹配
+		 *
+		 * @return 下一个还没有列举过的起点，以后不会再有匹配时返回{@link #NONE}
+		 */
+		private int enumerate(int from, int last, List<int[]> matches) {
+			while (from <= last) {
+				matcher.region(from, length);
+				if (!matcher.find()) {
+					return NONE;
+				}
+				if (matcher.start() > last) {
+					// from到这个起点之间都没有匹配
+					return matcher.start();
+				}
+				if (matcher.end() > matcher.start()) {
+					matches.add(new int[] { matcher.start(), matcher.end(), term.id });
+				}
+				from = matcher.start() + 1;
+			}
+			return from;
+		}
+
+		/**
+		 * 在全文上查找起点不小于from的第一个匹配，没有时以后也不会再有
+		 */
+		private boolean find(int from) {
+			if (!findNonEmpty(matcher, from, length)) {
+				exhausted = true;
+				return false;
+			}
+			start = matcher.start();
+			end = matcher.end();
+			key = start;
+			return true;
+		}
+	}
+
+	/**
+	 * 在[from, to)内查找第一个长度不为0的匹配，区域外的字符仍可用于\b、环视等的判断
+	 */
+	private static boolean findNonEmpty(Matcher matcher, int from, int to) {
+		while (from <= to) {
+			matcher.region(from, to);
+			if (!matcher.find()) {
+				return false;
+			}
+			if (matcher.end() > matcher.start()) {
+				return true;
+			}
+			from = matcher.start() + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * 字面量自动机从某个位置起的第一个匹配，编号已换算为关键字编号
+	 */
+	private final class First implements MatchListener {
+
+		int start;
+
+		int end;
+
+		int keywordId;
+
+		void find(CharSequence text, int from, boolean longest) {
+			start = NONE;
+			literals.leftmost(text, from, text.length(), true, longest, this);
 		}
 
-		Matcher matcher = pattern.matcher(text);
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			this.start = start;
+			this.end = end;
+			this.keywordId = literalIds[keywordId];
+			return false;
+		}
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return keywordArray[keywordId];
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return keywordArray.length;
+	}
+
+	/**
+	 * 词库中的正则表达式使用编译时缓存的Pattern；不含元字符的关键字与其他实现一样按跳过字符统计，
+	 * 不必在词库中，编译前也可以统计；其余的作为正则表达式临时编译。
+	 */
+	@Override
+	public int count(String text, String keyword) {
+		checkNotNull(text, "请传入需要查询关键字的文本");
+		checkNotNull(keyword, "请传入需要统计的关键字");
+
+		if (RegexFactor.isLiteral(keyword)) {
+			return literals.count(text, keyword);
+		}
+		Pattern pattern = null;
+		if (compiled) {
+			for (Term term : terms) {
+				if (keywordArray[term.id].equals(keyword)) {
+					pattern = term.pattern;
+					break;
+				}
+			}
+		}
+		return count(null == pattern ? Pattern.compile(keyword) : pattern, text, 0, text.length());
+	}
+
+	/**
+	 * 与匹配、替换一样不计长度为0的匹配
+	 */
+	private static int count(Pattern pattern, CharSequence text, int from, int to) {
+		Matcher matcher = pattern.matcher(text).region(from, to);
 		int count = 0;
 		while (matcher.find()) {
-			count++;
+			if (matcher.end() > matcher.start()) {
+				count++;
+			}
 		}
 		return count;
 	}
 
+	/**
+	 * 字面量关键字由自动机一遍统计；正则表达式关键字逐个统计，必需的字面量没有出现时直接为0。
+	 */
+	@Override
+	public int[] countAll(String text) {
+		checkNotNull(text, "请传入需要查询关键字的文本");
+
+		int[] counts = new int[keywordArray.length];
+		int[] local = literals.countAll(text);
+		for (int i = 0; i < local.length; i++) {
+			counts[literalIds[i]] = local[i];
+		}
+		for (int t : unfactored) {
+			counts[terms[t].id] = count(terms[t].pattern, text, 0, text.length());
+		}
+		if (null != factors) {
+			int[] factorCounts = factors.countAll(text);
+			for (int f = 0; f < factorCounts.length; f++) {
+				if (factorCounts[f] == 0) {
+					continue;
+				}
+				for (int t : factorTerms[f]) {
+					counts[terms[t].id] = count(terms[t].pattern, text, 0, text.length());
+				}
+			}
+		}
+		return counts;
+	}
+
 	/**
 	 * 根据指定策略替换关键字，可实现高亮、替换等
 	 * 
@@ -123,38 +760,140 @@ public class RegexKeywordFilter implements KeywordFilter {
 	 * @return 替换过的文本
 	 */
 	public String replace(String text, ReplaceStrategy strategy) {
+		return replace((CharSequence) text, strategy).toString();
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
 		checkNotNull(text, "请传入需要查询关键字的文本");
 		checkNotNull(strategy, "请传入替换策略ReplaceStrategy");
 
-		Matcher matcher = pattern.matcher(text);
-		StringBuffer sb = new StringBuffer();
-		while (matcher.find()) {
-			String replaceWith = strategy.replaceWith(matcher.group(0));
-			matcher.appendReplacement(sb, replaceWith);
+		Replacer replacer = new Replacer(text, null, strategy);
+		try {
+			leftmost(text, true, replacer);
+			// 不包含关键字时直接返回原文本
+			if (null == replacer.out) {
+				return text;
+			}
+			replacer.finish();
+		} catch (IOException e) {
+			// StringBuilder不会抛出IOException
+			throw new IllegalStateException(e);
 		}
-		matcher.appendTail(sb);
-		return sb.toString();
+		return replacer.out.toString();
 	}
 
-	private String join(Collection<String> c, String str) {
-		if (null == c || c.isEmpty()) {
-			return "";
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		try {
+			return replace(text, (Appendable) out, strategy);
+		} catch (IOException e) {
+			// StringBuilder不会抛出IOException
+			throw new IllegalStateException(e);
 		}
-		
-		List<String> strs = new ArrayList<String>(c);
-		Collections.sort(strs, new Comparator<String>() {
-			@Override
-			public int compare(String o1, String o2) {
-				return o1.length() > o2.length() ? -1 :
-					   o1.length() == o2.length() ? 0 : 1;
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		checkNotNull(text, "请传入需要查询关键字的文本");
+		checkNotNull(out, "请传入替换结果的输出");
+		checkNotNull(strategy, "请传入替换策略ReplaceStrategy");
+
+		Replacer replacer = new Replacer(text, out, strategy);
+		leftmost(text, true, replacer);
+		replacer.finish();
+		return replacer.replaced;
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		checkNotNull(texts, "请传入需要查询关键字的文本");
+		checkNotNull(strategy, "请传入替换策略ReplaceStrategy");
+
+		List<String> ret = new ArrayList<String>(texts.size());
+		for (String text : texts) {
+			checkNotNull(text, "请传入需要查询关键字的文本");
+			ret.add(replace(text, strategy));
+		}
+		return ret;
+	}
+
+	/**
+	 * 把匹配到的原文交给替换策略，替换结果原样输出，不解析其中的$、\等字符。out为null时在第一个匹配处创建StringBuilder
+	 */
+	private static final class Replacer implements MatchListener {
+
+		private final CharSequence text;
+
+		private final ReplaceStrategy strategy;
+
+		Appendable out;
+
+		boolean replaced;
+
+		private int last;
+
+		private IOException exception;
+
+		Replacer(CharSequence text, Appendable out, ReplaceStrategy strategy) {
+			this.text = text;
+			this.out = out;
+			this.strategy = strategy;
+		}
+
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			try {
+				if (null == out) {
+					out = new StringBuilder(text.length() + 16);
+				}
+				out.append(text, last, start);
+				out.append(strategy.replaceWith(text.subSequence(start, end).toString()));
+				last = end;
+				replaced = true;
+				return true;
+			} catch (IOException e) {
+				exception = e;
+				return false;
 			}
-		});
-		
+		}
+
+		void finish() throws IOException {
+			if (null != exception) {
+				throw exception;
+			}
+			out.append(text, last, text.length());
+		}
+	}
+
+	/**
+	 * 正则表达式无法跨缓冲区匹配，此实现会把全部文本读入内存。
+	 */
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		checkNotNull(reader, "请传入需要查询关键字的文本");
+
+		return hasKeywords(read(reader));
+	}
+
+	/**
+	 * 正则表达式无法跨缓冲区匹配，此实现会把全部文本读入内存。
+	 */
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		checkNotNull(reader, "请传入需要查询关键字的文本");
+		checkNotNull(writer, "请传入替换结果的输出");
+
+		writer.write(replace(read(reader), strategy));
+	}
+
+	private String read(Reader reader) throws IOException {
 		StringBuilder sb = new StringBuilder();
-		for (String s : strs) {
-			sb.append(s).append(str);
+		char[] buffer = new char[8192];
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			sb.append(buffer, 0, n);
 		}
-		sb.setLength(sb.length() - str.length());
 		return sb.toString();
 	}
 
@@ -164,22 +903,25 @@ public class RegexKeywordFilter implements KeywordFilter {
 		}
 	}
 
-	private String insertSkipChar(String keyword, String skipRegex) {
-		StringBuilder s = new StringBuilder();
-		for (char k : keyword.toCharArray()) {
-			s.append(k).append(skipRegex);
-		}
-		return s.toString();
-	}
+	/**
+	 * 一个正则表达式关键字
+	 */
+	private static final class Term {
+
+		final int id;
+
+		final Pattern pattern;
+
+		/**
+		 * 必需的字面量，没有时为null
+		 */
+		final RegexFactor factor;
 
-	private String toRegexSkipChar(Collection<Character> skipChars) {
-		StringBuilder s = new StringBuilder();
-		s.append('[');
-		for (Character c : skipChars) {
-			s.append(c);
+		Term(int id, Pattern pattern, RegexFactor factor) {
+			this.id = id;
+			this.pattern = pattern;
+			this.factor = factor;
 		}
-		s.append("]*");
-		return s.toString();
 	}
 
 }
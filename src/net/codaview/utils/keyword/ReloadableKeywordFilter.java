@@ -0,0 +1,286 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <pre>
+ * 可在运行中热更新词库的过滤器。
+ *
+ * 编译好的过滤器是只读的，可以被多个线程同时使用。更新词库时在后台编译出新的过滤器，
+ * 再通过一次原子引用替换发布出去：
+ * (1) 每次调用只读取一次当前版本，正在进行的扫描在旧版本上完成，新的调用使用新版本；
+ * (2) 读取路径上没有任何锁，更新期间扫描不会被阻塞；
+ * (3) 编译失败时保留旧版本，异常抛给调用者。
+ * 更新之间互斥执行，版本号严格递增。
+ *
+ * 关键字编号只在同一个版本内有效，需要用{@link #match(CharSequence, MatchMode, MatchListener)}
+ * 得到的编号再调用{@link #getKeyword(int)}时，应先用{@link #current()}取得固定的版本。
+ * </pre>
+ *
+ * <pre>
+ * <code>
+ *   final ReloadableKeywordFilter filter = new ReloadableKeywordFilter(builder.build());
+ *   // 词库变化时在后台线程编译，编译完成后自动生效
+ *   filter.reloadAsync(new Callable&lt;KeywordFilter&gt;() {
+ *   	public KeywordFilter call() {
+ *   		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+ *   		builder.setKeywords(loadKeywords());
+ *   		return builder.buildDoubleArrayTrie();
+ *   	}
+ *   }, executor);
+ * </code>
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class ReloadableKeywordFilter implements VersionedKeywordFilter {
+
+	private final AtomicReference<Version> current;
+
+	/**
+	 * 更新之间互斥，不影响读取
+	 */
+	private final Object reloadLock = new Object();
+
+	private volatile long reloadCount = 0;
+
+	private volatile long failureCount = 0;
+
+	/**
+	 * 最近一次成功更新时编译新过滤器的耗时，纳秒
+	 */
+	private volatile long lastReloadNanos = 0;
+
+	/**
+	 * @param initial
+	 *            初始的过滤器，版本号为1
+	 */
+	public ReloadableKeywordFilter(KeywordFilter initial) {
+		checkNotNull(initial, "请传入初始的过滤器");
+		this.current = new AtomicReference<Version>(new Version(initial, 1, System.currentTimeMillis()));
+	}
+
+	/**
+	 * 在当前线程编译新的过滤器并替换，返回前新版本已经生效
+	 *
+	 * @param loader
+	 *            编译新过滤器的任务
+	 * @return 新的版本号
+	 * @throws Exception
+	 *             loader抛出的异常，此时仍使用旧版本
+	 */
+	public long reload(Callable<? extends KeywordFilter> loader) throws Exception {
+		checkNotNull(loader, "请传入编译过滤器的任务");
+
+		synchronized (reloadLock) {
+			long start = System.nanoTime();
+			KeywordFilter filter;
+			try {
+				filter = loader.call();
+				checkNotNull(filter, "编译过滤器的任务返回了null");
+			} catch (Exception e) {
+				failureCount++;
+				throw e;
+			} catch (Error e) {
+				failureCount++;
+				throw e;
+			}
+			lastReloadNanos = System.nanoTime() - start;
+			reloadCount++;
+			return swap(filter);
+		}
+	}
+
+	/**
+	 * 直接替换为已经编译好的过滤器
+	 *
+	 * @return 新的版本号
+	 */
+	public long reload(KeywordFilter filter) {
+		checkNotNull(filter, "请传入新的过滤器");
+
+		synchronized (reloadLock) {
+			lastReloadNanos = 0;
+			reloadCount++;
+			return swap(filter);
+		}
+	}
+
+	/**
+	 * 在executor中编译新的过滤器并替换，调用线程不等待
+	 *
+	 * @return 完成时得到新的版本号，失败时得到loader抛出的异常
+	 */
+	public Future<Long> reloadAsync(final Callable<? extends KeywordFilter> loader, Executor executor) {
+		checkNotNull(loader, "请传入编译过滤器的任务");
+		checkNotNull(executor, "请传入执行编译任务的Executor");
+
+		FutureTask<Long> task = new FutureTask<Long>(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return reload(loader);
+			}
+		});
+		executor.execute(task);
+		return task;
+	}
+
+	private long swap(KeywordFilter filter) {
+		long version = current.get().version + 1;
+		current.set(new Version(filter, version, System.currentTimeMillis()));
+		return version;
+	}
+
+	/**
+	 * 当前版本的过滤器，之后的更新不会影响它
+	 */
+	@Override
+	public KeywordFilter current() {
+		return current.get().filter;
+	}
+
+	/**
+	 * 当前版本号，初始为1，每次成功更新加1
+	 */
+	public long getVersion() {
+		return current.get().version;
+	}
+
+	/**
+	 * 当前版本生效的时间，毫秒
+	 */
+	public long getVersionTime() {
+		return current.get().loadedAt;
+	}
+
+	/**
+	 * 成功更新的次数
+	 */
+	public long getReloadCount() {
+		return reloadCount;
+	}
+
+	/**
+	 * 失败的更新次数
+	 */
+	public long getReloadFailureCount() {
+		return failureCount;
+	}
+
+	/**
+	 * 最近一次成功更新时编译新过滤器的耗时，纳秒。直接替换已编译的过滤器时为0
+	 */
+	public long getLastReloadNanos() {
+		return lastReloadNanos;
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		return current().hasKeywords(text);
+	}
+
+	/**
+	 * 整批使用同一个版本
+	 */
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		return current().hasKeywords(texts);
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
+		current().match(text, mode, listener);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return current().getKeyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return current().getKeywordCount();
+	}
+
+	@Override
+	public int count(String text, String keyword) {
+		return current().count(text, keyword);
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		return current().countAll(text);
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		return current().replace(text, strategy);
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		return current().replace(text, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		return current().replace(text, out, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		return current().replace(text, out, strategy);
+	}
+
+	/**
+	 * 整批使用同一个版本
+	 */
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		return current().replaceAll(texts, strategy);
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		return current().hasKeywords(reader);
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		current().replace(reader, writer, strategy);
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 过滤器及其版本信息，一起发布，保证读到的版本号与过滤器一致
+	 */
+	private static final class Version {
+
+		final KeywordFilter filter;
+
+		final long version;
+
+		final long loadedAt;
+
+		Version(KeywordFilter filter, long version, long loadedAt) {
+			this.filter = filter;
+			this.version = version;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+}
@@ -0,0 +1,496 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <pre>
+ * 把词库按关键字的首字符(规范化后)分成若干个分片，每个分片是一个独立的{@link DoubleArrayTrie}，
+ * 查询时合并各分片的结果，与把全部关键字放进一个自动机的结果完全一致。适合几百万关键字的词库：
+ * (1) 各分片在ForkJoinPool上并行编译，编译时间随CPU核数下降；
+ * (2) 每个分片编译完即释放中间的Trie树，同时编译的分片数有上限(默认为pool的并行度)，
+ *     编译时的内存峰值约为“上限 × 最大分片的Trie树”，而不是整个词库。分片数比上限多得越多，峰值越低。
+ *
+ * 按首字符分片时，从文本同一位置开始的匹配一定都在同一个分片中，因此合并很简单：
+ * 各分片分别找出自己从当前位置起的第一个最左匹配，取起点最靠左的一个，从它的结束处继续，
+ * 起点已被越过的分片从结束处重新查找。这与单个自动机的最左匹配逐个相同。
+ * 每个分片的首字符集合只是全部首字符的一部分，扫描干净文本时大部分字符都能直接跳过。
+ *
+ * 关键字编号与添加顺序一致，与{@link KeywordFilterBuilder#buildDoubleArrayTrie()}相同。
+ * 流式的{@link #replace(Reader, Writer, ReplaceStrategy)}会先读入全部文本再替换。
+ * </pre>
+ *
+ * @see KeywordFilterBuilder#buildSharded(int)
+ * @author lianxh
+ */
+public class ShardedKeywordFilter implements KeywordFilter {
+
+	private final AbstractKeywordFilter[] shards;
+
+	/**
+	 * 各分片中的关键字编号 -> 全局编号
+	 */
+	private final int[][] globalIds;
+
+	private final String[] keywords;
+
+	ShardedKeywordFilter(AbstractKeywordFilter[] shards, int[][] globalIds, String[] keywords) {
+		this.shards = shards;
+		this.globalIds = globalIds;
+		this.keywords = keywords;
+	}
+
+	/**
+	 * 分片并编译。规范化后相同的关键字只保留第一个，去掉空的分片
+	 *
+	 * @param concurrency
+	 *            同时编译的分片数上限，每个正在编译的分片都持有一棵完整的Trie树
+	 */
+	static ShardedKeywordFilter build(List<String> keywords, final Collection<Character> skipChars,
+			final CharNormalizer normalizer, int shardCount, ForkJoinPool pool, int concurrency) {
+		if (shardCount <= 0) {
+			throw new IllegalArgumentException("分片数必须大于0");
+		}
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("同时编译的分片数必须大于0");
+		}
+		if (null == pool) {
+			throw new NullPointerException("请传入ForkJoinPool");
+		}
+		List<List<String>> lists = new ArrayList<List<String>>(shardCount);
+		List<List<Integer>> ids = new ArrayList<List<Integer>>(shardCount);
+		for (int i = 0; i < shardCount; i++) {
+			lists.add(new ArrayList<String>());
+			ids.add(new ArrayList<Integer>());
+		}
+		List<String> distinct = new ArrayList<String>(keywords.size());
+		Set<String> seen = new HashSet<String>();
+		for (String keyword : keywords) {
+			if (null == keyword || keyword.trim().isEmpty()) {
+				throw new IllegalArgumentException("过滤关键词不能为空！");
+			}
+			String normalized = null == normalizer ? keyword : normalizer.normalize(keyword);
+			if (!seen.add(normalized)) {
+				continue;
+			}
+			int shard = shardOf(normalized.charAt(0), shardCount);
+			lists.get(shard).add(keyword);
+			ids.get(shard).add(distinct.size());
+			distinct.add(keyword);
+		}
+		seen = null;
+
+		final Semaphore permits = new Semaphore(concurrency);
+		List<Callable<DoubleArrayTrie>> tasks = new ArrayList<Callable<DoubleArrayTrie>>();
+		List<int[]> globalIds = new ArrayList<int[]>();
+		for (int i = 0; i < shardCount; i++) {
+			final List<String> list = lists.get(i);
+			// 至少保留一个分片，没有关键字时也能正常使用
+			if (list.isEmpty() && !(tasks.isEmpty() && i == shardCount - 1)) {
+				continue;
+			}
+			tasks.add(new Callable<DoubleArrayTrie>() {
+				@Override
+				public DoubleArrayTrie call() {
+					try {
+						DoubleArrayTrie trie = new DoubleArrayTrie();
+						trie.setNormalizer(normalizer);
+						for (String keyword : list) {
+							trie.add(keyword);
+						}
+						trie.addSkipChar(skipChars);
+						trie.compile();
+						return trie;
+					} finally {
+						permits.release();
+					}
+				}
+			});
+			int[] map = new int[list.size()];
+			for (int j = 0; j < map.length; j++) {
+				map[j] = ids.get(i).get(j);
+			}
+			globalIds.add(map);
+		}
+
+		AbstractKeywordFilter[] shards = new AbstractKeywordFilter[tasks.size()];
+		List<Future<DoubleArrayTrie>> futures = new ArrayList<Future<DoubleArrayTrie>>(tasks.size());
+		try {
+			// 前一个分片编译完释放了名额才提交下一个，pool再空闲也不会同时构建过多的Trie树
+			for (Callable<DoubleArrayTrie> task : tasks) {
+				permits.acquire();
+				futures.add(pool.submit(task));
+			}
+			for (int i = 0; i < shards.length; i++) {
+				shards[i] = futures.get(i).get();
+			}
+		} catch (InterruptedException e) {
+			for (Future<DoubleArrayTrie> future : futures) {
+				future.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("编译分片时被中断", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("编译分片失败", e.getCause());
+		}
+		return new ShardedKeywordFilter(shards, globalIds.toArray(new int[shards.length][]),
+				distinct.toArray(new String[distinct.size()]));
+	}
+
+	/**
+	 * 首字符所在的分片，打散相邻的字符
+	 */
+	static int shardOf(char first, int shardCount) {
+		return ((first * 0x9E3779B9) >>> 1) % shardCount;
+	}
+
+	/**
+	 * 分片个数
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		for (AbstractKeywordFilter shard : shards) {
+			if (shard.hasKeywords(text)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'.");
+		BitSet ret = new BitSet(texts.size());
+		for (AbstractKeywordFilter shard : shards) {
+			ret.or(shard.hasKeywords(texts));
+		}
+		return ret;
+	}
+
+	/**
+	 * 各分片同步地逐字符转移，任何一个分片匹配到关键字即返回
+	 */
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		checkNotNull(reader, "Null value not allowed for parameter 'reader'.");
+		// 各分片的跳过字符相同
+		final long[] skip = shards[0].skipTable;
+		int[] states = new int[shards.length];
+		char[] buffer = new char[AbstractKeywordFilter.BUFFER_SIZE];
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			for (int i = 0; i < n; i++) {
+				char ch = buffer[i];
+				if (AbstractKeywordFilter.isSkip(skip, ch)) {
+					continue;
+				}
+				for (int s = 0; s < shards.length; s++) {
+					AbstractKeywordFilter shard = shards[s];
+					int state = states[s];
+					if (state == AbstractKeywordFilter.ROOT
+							&& (shard.startTable[ch >>> 6] & (1L << ch)) == 0) {
+						continue;
+					}
+					state = shard.transition(state, ch);
+					if (shard.longestKeywordId(state) != AbstractKeywordFilter.NONE) {
+						return true;
+					}
+					states[s] = state;
+				}
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, final MatchListener listener) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		checkNotNull(mode, "Null value not allowed for parameter 'mode'.");
+		checkNotNull(listener, "Null value not allowed for parameter 'listener'.");
+
+		if (mode == MatchMode.OVERLAPPING) {
+			matchOverlapping(text, listener);
+		} else {
+			leftmost(text, mode == MatchMode.LEFTMOST_LONGEST, listener);
+		}
+	}
+
+	/**
+	 * 收集各分片的全部匹配，按单个自动机的回调顺序排序：结束位置从前到后，同一结束位置从长到短
+	 */
+	private void matchOverlapping(CharSequence text, MatchListener listener) {
+		final List<int[]> matches = new ArrayList<int[]>();
+		for (int s = 0; s < shards.length; s++) {
+			final int[] map = globalIds[s];
+			shards[s].match(text, MatchMode.OVERLAPPING, new MatchListener() {
+				@Override
+				public boolean onMatch(int start, int end, int keywordId) {
+					matches.add(new int[] { start, end, map[keywordId] });
+					return true;
+				}
+			});
+		}
+		Collections.sort(matches, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return a[1] != b[1] ? Integer.compare(a[1], b[1]) : Integer.compare(a[0], b[0]);
+			}
+		});
+		for (int[] match : matches) {
+			if (!listener.onMatch(match[0], match[1], match[2])) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * <pre>
+	 * 合并各分片的最左匹配。next[s]是分片s从上次查找位置起的第一个匹配，
+	 * 它的起点没有被越过时，从更靠后的位置查找得到的仍是它，不必重新扫描。
+	 * 同一起点的匹配都在同一个分片中，不会出现起点相同的两个候选。
+	 * </pre>
+	 */
+	private void leftmost(CharSequence text, boolean longest, MatchListener listener) {
+		First[] next = new First[shards.length];
+		for (int s = 0; s < shards.length; s++) {
+			next[s] = new First();
+			next[s].find(shards[s], text, 0, longest);
+		}
+		while (true) {
+			int best = -1;
+			for (int s = 0; s < next.length; s++) {
+				if (next[s].start != AbstractKeywordFilter.NONE && (best < 0 || next[s].start < next[best].start)) {
+					best = s;
+				}
+			}
+			if (best < 0) {
+				return;
+			}
+			First match = next[best];
+			if (!listener.onMatch(match.start, match.end, globalIds[best][match.keywordId])) {
+				return;
+			}
+			int pos = match.end;
+			for (int s = 0; s < next.length; s++) {
+				if (next[s].start != AbstractKeywordFilter.NONE && next[s].start < pos) {
+					next[s].find(shards[s], text, pos, longest);
+				}
+			}
+		}
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		if (keywordId < 0 || keywordId >= keywords.length) {
+			throw new IndexOutOfBoundsException("关键字编号越界: " + keywordId);
+		}
+		return keywords[keywordId];
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return keywords.length;
+	}
+
+	/**
+	 * 不依赖词库，任何一个分片都可以统计
+	 */
+	@Override
+	public int count(String text, String keyword) {
+		return shards[0].count(text, keyword);
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		int[] counts = new int[keywords.length];
+		for (int s = 0; s < shards.length; s++) {
+			int[] local = shards[s].countAll(text);
+			for (int i = 0; i < local.length; i++) {
+				counts[globalIds[s][i]] = local[i];
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		return replace((CharSequence) text, strategy).toString();
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		Replacer replacer = new Replacer(text, null, strategy);
+		leftmost(text, true, replacer);
+		// 不包含关键字时直接返回原文本
+		if (null == replacer.out) {
+			return text;
+		}
+		finishQuietly(replacer);
+		return replacer.out.toString();
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		checkNotNull(out, "Null value not allowed for parameter 'out'");
+		try {
+			return replace(text, (Appendable) out, strategy);
+		} catch (IOException e) {
+			// StringBuilder不会抛出IOException
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(out, "Null value not allowed for parameter 'out'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		Replacer replacer = new Replacer(text, out, strategy);
+		leftmost(text, true, replacer);
+		replacer.finish();
+		return replacer.matched;
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		checkNotNull(texts, "Null value not allowed for parameter 'texts'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+		List<String> ret = new ArrayList<String>(texts.size());
+		for (String text : texts) {
+			checkNotNull(text, "Null value not allowed for element of 'texts'");
+			ret.add(replace(text, strategy));
+		}
+		return ret;
+	}
+
+	/**
+	 * 读入全部文本后替换。各分片的匹配要在整段文本上合并，不能逐块输出
+	 */
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		checkNotNull(reader, "Null value not allowed for parameter 'reader'");
+		checkNotNull(writer, "Null value not allowed for parameter 'writer'");
+		StringBuilder text = new StringBuilder();
+		char[] buffer = new char[AbstractKeywordFilter.BUFFER_SIZE];
+		int n;
+		while ((n = reader.read(buffer)) != -1) {
+			text.append(buffer, 0, n);
+		}
+		replace(text, writer, strategy);
+	}
+
+	private void finishQuietly(Replacer replacer) {
+		try {
+			replacer.finish();
+		} catch (IOException e) {
+			// StringBuilder不会抛出IOException
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 一个分片从某个位置起的第一个最左匹配，没有时start为{@link AbstractKeywordFilter#NONE}
+	 */
+	private static final class First implements MatchListener {
+
+		int start;
+
+		int end;
+
+		int keywordId;
+
+		void find(AbstractKeywordFilter shard, CharSequence text, int from, boolean longest) {
+			start = AbstractKeywordFilter.NONE;
+			shard.leftmost(text, from, text.length(), true, longest, this);
+		}
+
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			this.start = start;
+			this.end = end;
+			this.keywordId = keywordId;
+			return false;
+		}
+	}
+
+	/**
+	 * 把匹配替换后输出，匹配之间的文本原样输出。out为null时在第一个匹配处创建StringBuilder
+	 */
+	private final class Replacer implements MatchListener {
+
+		private final CharSequence text;
+
+		Appendable out;
+
+		private final ReplaceStrategy strategy;
+
+		/* text[0, emitted)已处理 */
+		private int emitted = 0;
+
+		boolean matched = false;
+
+		private IOException exception;
+
+		Replacer(CharSequence text, Appendable out, ReplaceStrategy strategy) {
+			this.text = text;
+			this.out = out;
+			this.strategy = strategy;
+		}
+
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			if (null == out) {
+				out = new StringBuilder(text.length() + 16);
+			}
+			matched = true;
+			try {
+				out.append(text, emitted, start);
+				out.append(strategy.replaceWith(keywords[keywordId]));
+				emitted = end;
+				return true;
+			} catch (IOException e) {
+				exception = e;
+				return false;
+			}
+		}
+
+		void finish() throws IOException {
+			if (null != exception) {
+				throw exception;
+			}
+			out.append(text, emitted, text.length());
+		}
+	}
+
+}
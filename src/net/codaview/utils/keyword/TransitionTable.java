@@ -0,0 +1,119 @@
+package net.codaview.utils.keyword;
+
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * 把Trie树的goto函数和失败指针合并成一个确定的转移函数(DFA)，扫描时每读入一个字符只需查一次表，
+ * 不再沿失败路径回溯，最坏情况下(例如大量重复的前缀字符)的耗时也是平稳的。
+ *
+ * 存储分两部分：
+ * (1) 根节点的转移用一张覆盖整个BMP的稠密表，ASCII、常用汉字等任意字符都可直接下标访问；
+ * (2) 其它状态只保存与根节点转移结果不同的那些字符，按字符排序后紧凑地存放在一起，查表时二分查找，
+ *     找不到则取根节点稠密表中的结果。
+ * 由于 δ(s, c) = goto(s, c) 存在时取goto，否则取 δ(fail(s), c)，
+ * 按广度优先顺序构造时，每个状态的表 = 自身的goto ∪ 失败指针所指状态的表。
+ * </pre>
+ *
+ * @author lianxh
+ */
+class TransitionTable {
+
+	/**
+	 * 根节点的稠密转移表，下标为字符
+	 */
+	private final int[] rootRow;
+
+	/**
+	 * 状态s的紧凑转移表为 keys/targets[offsets[s], offsets[s + 1])
+	 */
+	private final int[] offsets;
+
+	private final char[] keys;
+
+	private final int[] targets;
+
+	/**
+	 * @param states
+	 *            按广度优先顺序编号的节点，失败指针已构造完毕
+	 */
+	TransitionTable(TrieNode[] states) {
+		rootRow = new int[65536];
+		TrieNode root = states[AbstractKeywordFilter.ROOT];
+		for (char ch : root.keys()) {
+			rootRow[ch] = root.get(ch).getId();
+		}
+
+		char[][] rowKeys = new char[states.length][];
+		int[][] rowTargets = new int[states.length][];
+		rowKeys[AbstractKeywordFilter.ROOT] = new char[0];
+		rowTargets[AbstractKeywordFilter.ROOT] = new int[0];
+		int total = 0;
+		for (int s = 1; s < states.length; s++) {
+			TrieNode node = states[s];
+			int fail = node.getFail().getId();
+			char[] own = node.keys();
+			Arrays.sort(own);
+			char[] inheritedKeys = rowKeys[fail];
+			int[] inheritedTargets = rowTargets[fail];
+
+			// 合并两个有序表，goto优先
+			char[] k = new char[own.length + inheritedKeys.length];
+			int[] t = new int[k.length];
+			int n = 0;
+			int i = 0;
+			int j = 0;
+			while (i < own.length || j < inheritedKeys.length) {
+				if (j == inheritedKeys.length || (i < own.length && own[i] <= inheritedKeys[j])) {
+					if (j < inheritedKeys.length && own[i] == inheritedKeys[j]) {
+						j++;
+					}
+					k[n] = own[i];
+					t[n] = node.get(own[i]).getId();
+					i++;
+				} else {
+					k[n] = inheritedKeys[j];
+					t[n] = inheritedTargets[j];
+					j++;
+				}
+				n++;
+			}
+			rowKeys[s] = n == k.length ? k : Arrays.copyOf(k, n);
+			rowTargets[s] = n == t.length ? t : Arrays.copyOf(t, n);
+			total += n;
+		}
+
+		offsets = new int[states.length + 1];
+		keys = new char[total];
+		targets = new int[total];
+		int pos = 0;
+		for (int s = 0; s < states.length; s++) {
+			offsets[s] = pos;
+			System.arraycopy(rowKeys[s], 0, keys, pos, rowKeys[s].length);
+			System.arraycopy(rowTargets[s], 0, targets, pos, rowTargets[s].length);
+			pos += rowKeys[s].length;
+		}
+		offsets[states.length] = pos;
+	}
+
+	/**
+	 * 从state状态读入字符ch后的下一状态
+	 */
+	int next(int state, char ch) {
+		int low = offsets[state];
+		int high = offsets[state + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			char key = keys[mid];
+			if (key < ch) {
+				low = mid + 1;
+			} else if (key > ch) {
+				high = mid - 1;
+			} else {
+				return targets[mid];
+			}
+		}
+		return rootRow[ch];
+	}
+
+}
@@ -0,0 +1,135 @@
+package net.codaview.utils.keyword;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Trie树中的节点
+ */
+class TrieNode {
+
+	/**
+	 * 子节点
+	 */
+	private Map<Character, TrieNode> children;
+
+	/**
+	 * 失败指针
+	 */
+	private TrieNode fail;
+
+	/**
+	 * 沿失败路径最近的一个带关键字的节点
+	 */
+	private TrieNode outputLink;
+
+	/**
+	 * 当匹配到些节点为止时，匹配到的关键字编号
+	 */
+	private int keywordId = AbstractKeywordFilter.NONE;
+
+	/**
+	 * 状态编号，编译时按广度优先顺序分配
+	 */
+	private int id;
+
+	/**
+	 * 节点深度，即从根节点到此节点的字符数
+	 */
+	private int depth;
+
+	public TrieNode() {
+		this.children = new LinkedHashMap<Character, TrieNode>();
+	}
+
+	/**
+	 * 扩展枝条
+	 */
+	public TrieNode extend(char[] chars) {
+		return extend(chars, 0);
+	}
+
+	/**
+	 * 用chars[from, chars.length)扩展枝条
+	 */
+	public TrieNode extend(char[] chars, int from) {
+		TrieNode node = this;
+		for (int i = from; i < chars.length; i++) {
+			node = node.touchChild(chars[i]);
+		}
+		return node;
+	}
+
+	/**
+	 * 有则返回，没有则创建后再返回
+	 */
+	private TrieNode touchChild(char ch) {
+		TrieNode child = this.children.get(ch);
+		if (child != null) {
+			return child;
+		}
+
+		TrieNode next = new TrieNode();
+		this.children.put(ch, next);
+		return next;
+	}
+
+	public TrieNode get(char key) {
+		return this.children.get(key);
+	}
+
+	public void put(char key, TrieNode value) {
+		this.children.put(key, value);
+	}
+
+	public char[] keys() {
+		char[] result = new char[children.size()];
+		int i = 0;
+		for (Character c : children.keySet()) {
+			result[i] = c;
+			i++;
+		}
+		return result;
+	}
+
+	public TrieNode getFail() {
+		return this.fail;
+	}
+
+	public void setFail(TrieNode f) {
+		this.fail = f;
+	}
+
+	public TrieNode getOutputLink() {
+		return this.outputLink;
+	}
+
+	public void setOutputLink(TrieNode outputLink) {
+		this.outputLink = outputLink;
+	}
+
+	public int getKeywordId() {
+		return this.keywordId;
+	}
+
+	public void setKeywordId(int keywordId) {
+		this.keywordId = keywordId;
+	}
+
+	public int getId() {
+		return this.id;
+	}
+
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	public int getDepth() {
+		return this.depth;
+	}
+
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+
+}
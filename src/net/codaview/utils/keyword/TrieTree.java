@@ -1,12 +1,13 @@
 package net.codaview.utils.keyword;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Deque;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * <pre>
@@ -32,13 +33,34 @@ import java.util.Set;
  * @author lianxh
  * @since 2013/12/13
  */
-public class TrieTree implements KeywordFilter {
+public class TrieTree extends AbstractKeywordFilter {
 
 	private TrieNode root;
 
-	private boolean compiled = false;
+	/**
+	 * 关键字，下标即关键字编号
+	 */
+	private List<String> keywords = new ArrayList<String>();
+
+	/**
+	 * 编译前收集的允许短语，编译时接在关键字之后加入Trie树
+	 */
+	private List<String> allowedPhrases = new ArrayList<String>();
+
+	/**
+	 * 编译后实际加入的允许短语个数，与关键字相同的短语不计
+	 */
+	private int allowedCount = 0;
+
+	/**
+	 * 编译后按广度优先顺序排列的节点，下标即状态编号
+	 */
+	private TrieNode[] states;
 
-	private Set<Character> skipChars = new HashSet<Character>();
+	/**
+	 * 确定性编译模式下的转移表，为null时沿失败指针回溯
+	 */
+	private TransitionTable table;
 
 	public TrieTree() {
 		this.root = new TrieNode();
@@ -57,163 +79,243 @@ public class TrieTree implements KeywordFilter {
 		if (compiled) {
 			throw new IllegalStateException("TrieTree编译后不能再添加关键字");
 		}
-		TrieNode last = this.root.extend(keyword.toCharArray());
-		last.addResult(keyword);
-	}
-
-	public void addSkipChar(char ch) {
-		this.skipChars.add(ch);
-	}
-
-	public void addSkipChar(Collection<Character> chars) {
-		if (null != chars) {
-			this.skipChars.addAll(chars);
+		// 规范化后相同的关键字只保留第一个
+		TrieNode last = this.root.extend(normalize(keyword).toCharArray());
+		if (last.getKeywordId() == NONE) {
+			last.setKeywordId(keywords.size());
+			keywords.add(keyword);
 		}
 	}
 
 	/**
-	 * 编译Trie树
+	 * <pre>
+	 * 在pool上并行地添加一批关键字，结果与逐个{@link #add(String)}完全相同，包括关键字编号和节点顺序。
+	 *
+	 * 关键字按首字符(规范化后)稳定地分组，每组是根节点下的一棵子树，各子树互不相交，可以并行构建：
+	 * 组内按原顺序插入，子节点的顺序不变；子树按首字符第一次出现的顺序挂到根节点上。
+	 * 构建时先以关键字在列表中的下标作为临时编号，全部完成后再按下标顺序重新编号，重复的关键字只保留第一个。
+	 * 已经添加过关键字时，为保持节点顺序，退回逐个添加。
+	 * </pre>
 	 */
-	public void compile() {
-		this.buildFailPath();
-		this.compiled = true;
-	}
-
-	@Override
-	public String replace(String text, ReplaceStrategy s) {
-		checkNotNull(text, "Null value not allowed for parameter 'text'");
-		checkNotNull(s, "Null value not allowed for parameter 'strategy'");
-
-		StringBuilder ret = new StringBuilder();
-		char[] chars = text.toCharArray();
-		TrieNode last = this.root;
-		int lastIndex = 0;
-		/* 保留上一字符匹配到的字符串，比如心事、心事重、心事重重 */
-		String preKeyword = null;
-		/* 已匹配的关键词个数 */
-		int cnt = 0;
-		for (int i = lastIndex; i < chars.length; i++) {
-			char ch = chars[i];
-			if (skipChars.contains(ch)) {
-				continue;
+	public void addAll(List<String> keywords, ForkJoinPool pool) {
+		if (compiled) {
+			throw new IllegalStateException("TrieTree编译后不能再添加关键字");
+		}
+		if (null == pool) {
+			throw new NullPointerException("请传入ForkJoinPool");
+		}
+		if (!this.keywords.isEmpty()) {
+			for (String keyword : keywords) {
+				add(keyword);
 			}
-			while (last.get(ch) == null) {
-				if (last == this.root) {
-					break;
-				}
-				last = last.getFail();
+			return;
+		}
+		final String[] all = keywords.toArray(new String[keywords.size()]);
+		final char[][] normalized = new char[all.length][];
+		for (int i = 0; i < all.length; i++) {
+			if (null == all[i] || all[i].trim().isEmpty()) {
+				throw new IllegalArgumentException("过滤关键词不能为空！");
 			}
-			last = last.get(ch);
-			if(null == last) {
-				last = root;
+			normalized[i] = normalize(all[i]).toCharArray();
+		}
+
+		// 按首字符计数排序，组内保持原顺序
+		int[] offsets = new int[Character.MAX_VALUE + 2];
+		StringBuilder firsts = new StringBuilder();
+		for (char[] chars : normalized) {
+			if (offsets[chars[0] + 1]++ == 0) {
+				firsts.append(chars[0]);
 			}
-			if (!last.getResults().isEmpty()) {
-				preKeyword = last.getResults().iterator().next();
-				cnt++;
-				// 已经匹配到主串的最后一个字符，直接替换
-				if (i == chars.length - 1) {
-					ret.setLength(ret.length() - (preKeyword.length() - cnt));
-					ret.append(s.replaceWith(preKeyword));
+		}
+		for (int ch = 0; ch <= Character.MAX_VALUE; ch++) {
+			offsets[ch + 1] += offsets[ch];
+		}
+		final int[] sorted = new int[all.length];
+		int[] next = offsets.clone();
+		for (int i = 0; i < all.length; i++) {
+			sorted[next[normalized[i][0]]++] = i;
+		}
+
+		List<Callable<TrieNode>> tasks = new ArrayList<Callable<TrieNode>>(firsts.length());
+		final TrieNode[] owners = new TrieNode[all.length];
+		for (int k = 0; k < firsts.length(); k++) {
+			final int from = offsets[firsts.charAt(k)];
+			final int to = offsets[firsts.charAt(k) + 1];
+			tasks.add(new Callable<TrieNode>() {
+				@Override
+				public TrieNode call() {
+					TrieNode child = new TrieNode();
+					for (int j = from; j < to; j++) {
+						int i = sorted[j];
+						TrieNode last = child.extend(normalized[i], 1);
+						if (last.getKeywordId() == NONE) {
+							last.setKeywordId(i);
+							owners[i] = last;
+						}
+					}
+					return child;
 				}
-			} else if (preKeyword != null) {
-				ret.setLength(ret.length() - (preKeyword.length() - cnt));
-				ret.append(s.replaceWith(preKeyword));
-				ret.append(ch);
-				// 重置状态
-				preKeyword = null;
-				cnt = 0;
-			} else {
-				ret.append(ch);
+			});
+		}
+		List<TrieNode> children = invokeAll(pool, tasks);
+		for (int k = 0; k < firsts.length(); k++) {
+			this.root.put(firsts.charAt(k), children.get(k));
+		}
+		for (int i = 0; i < all.length; i++) {
+			if (null != owners[i]) {
+				owners[i].setKeywordId(this.keywords.size());
+				this.keywords.add(all[i]);
 			}
 		}
+	}
 
-		return ret.toString();
+	/**
+	 * <pre>
+	 * 添加允许短语(白名单)，比如含有敏感词的地名。被允许短语完全覆盖的关键字在最左匹配、替换和hasKeywords中不再报告，
+	 * 比如关键字“木齐”、允许短语“乌鲁木齐”时，“乌鲁木齐”原样保留，单独出现的“木齐”仍被替换。
+	 * 允许短语在编译时加入同一个自动机，扫描仍只有一遍。与某个关键字相同的短语不起作用。
+	 * </pre>
+	 */
+	public void addAllowedPhrase(String phrase) {
+		if (null == phrase || phrase.trim().isEmpty()) {
+			throw new IllegalArgumentException("允许短语不能为空！");
+		}
+		if (compiled) {
+			throw new IllegalStateException("TrieTree编译后不能再添加允许短语");
+		}
+		this.allowedPhrases.add(phrase);
 	}
 
+	/**
+	 * 必须在添加关键字之前设置
+	 */
 	@Override
-	public boolean hasKeywords(String text) {
-		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+	public void setNormalizer(CharNormalizer normalizer) {
+		if (!keywords.isEmpty()) {
+			throw new IllegalStateException("请在添加关键字之前设置字符规范化");
+		}
+		super.setNormalizer(normalizer);
+	}
 
-		SearchResult start = new SearchResult(0, this.root);
-		return null != continueSearch(text.toCharArray(), start);
+	/**
+	 * 编译Trie树
+	 */
+	public void compile() {
+		this.compile(false);
 	}
 
 	/**
-	 * 匹配模式串中出现的单词。当我们的模式串在Trie上进行匹配时，如果与当前节点的关键字不能继续匹配的时候，
-	 * 就应该去当前节点的失败指针所指向的节点继续进行匹配。
-	 * 
-	 * <pre>
-	 * 匹配过程如下： 
-	 * 从root节点开始，每次根据读入的字符沿着自动机向下移动。 当读入的字符，在分支中不存在时，递归走失败路径。如果走失败路径走到了root节点，
-	 * 则跳过该字符，处理下一个字符。 因为AC自动机是沿着输入文本的最长后缀移动的，所以在读取完所有输入文本后，最后递归走失败路径，直到到达根节点，
-	 * 这样可以检测出所有的模式。
+	 * 编译Trie树
 	 * 
-	 * 分两种情况：
-	 * (1)当前字符匹配，表示从当前节点沿着树边有一条路径可以到达目标字符， 此时只需沿该路径走向下一个节点继续匹配即可 ，目标字符串指针移向下个字符继续匹配；
-	 * (2)当前字符不匹配，则去当前节点失败指针所指向的字符继续匹配，匹配过程随着指针指向root结束。
-	 * 重复这2个过程中的任意一个，直到模式串走到结尾为止。
-	 * </pre>
+	 * @param deterministic
+	 *            为true时把goto函数和失败指针合并为确定性的转移表(DFA)，扫描时每个字符只做一次转移，
+	 *            不再沿失败路径回溯，代价是编译时间和内存占用有所增加
+	 * @see TransitionTable
+	 */
+	public void compile(boolean deterministic) {
+		this.compile(deterministic, null);
+	}
+
+	/**
+	 * 编译Trie树，pool不为null时逐层并行地计算失败指针，结果与顺序编译完全相同
 	 * 
+	 * @see #compile(boolean)
 	 */
-	private SearchResult continueSearch(char[] text, SearchResult lastResult) {
-		TrieNode last = lastResult.getLastMatchedNode();
-		for (int i = lastResult.getLastIndex(); i < text.length; i++) {
-			char ch = text[i];
-			// 包含忽略字符
-			if (skipChars.contains(ch)) {
-				continue;
+	public void compile(boolean deterministic, ForkJoinPool pool) {
+		// 允许短语的编号接在全部关键字之后
+		for (String phrase : allowedPhrases) {
+			TrieNode last = this.root.extend(normalize(phrase).toCharArray());
+			if (last.getKeywordId() == NONE) {
+				last.setKeywordId(keywords.size());
+				keywords.add(phrase);
+				allowedCount++;
 			}
+		}
+		this.allowedPhrases.clear();
+		if (null == pool) {
+			this.buildFailPath();
+		} else {
+			this.buildFailPath(pool);
+		}
+		if (deterministic) {
+			this.table = new TransitionTable(states);
+		}
+		compileTables();
+	}
 
-			// 如果当前匹配的字符在trie树中无子节点且不是根节点
-			// 则要通过失败指针去找它的当前节点的子节点
-			while (null != last && last.get(ch) == null) {
-				if (last == this.root) {
-					break;
-				}
-				last = last.getFail();
-			}
-			last = last.get(ch);
-			if (null == last) {
-				last = this.root;
-			}
-			if (!last.getResults().isEmpty()) {
-				return new SearchResult(i + 1, last);
+	@Override
+	int transition(int state, char ch) {
+		if (null != normalTable) {
+			ch = normalTable[ch];
+		}
+		if (null != table) {
+			return table.next(state, ch);
+		}
+		TrieNode last = states[state];
+		// 如果当前匹配的字符在trie树中无子节点且不是根节点
+		// 则要通过失败指针去找它的当前节点的子节点
+		while (last.get(ch) == null) {
+			if (last == this.root) {
+				return ROOT;
 			}
+			last = last.getFail();
 		}
-		return null;
+		return last.get(ch).getId();
 	}
 
 	@Override
-	public int count(String text, String keyword) {
-		checkNotNull(text, "Null value not allowed for parameter 'text'.");
-		checkNotNull(keyword, "Null value not allowed for parameter 'keyword'.");
-
-		final char[] source = text.toCharArray();
-		final char[] target = keyword.toCharArray();
-		int cnt = 0;
-		for (int i = 0; i < source.length; i++) {
-			int k = 0;
-			while (i < source.length && k < target.length) {
-				// 完全匹配，双方比对下一个字符
-				if (source[i] == target[k]) {
-					k++;
-					i++;
-				}
-				// 不匹配, 但属于跳过字符, 跳过1个字符, 但关键字不跳过
-				else if (skipChars.contains(source[i])) {
-					i++;
-				}
-				// 不匹配又不是忽略字符
-				else {
-					break;
-				}
-			}
+	int keywordId(int state) {
+		return states[state].getKeywordId();
+	}
 
-			if (k == target.length) {
-				cnt++;
-			}
-		}
-		return cnt;
+	@Override
+	int outputLink(int state) {
+		TrieNode link = states[state].getOutputLink();
+		return null == link ? NONE : link.getId();
+	}
+
+	@Override
+	int depth(int state) {
+		return states[state].getDepth();
+	}
+
+	@Override
+	String keyword(int keywordId) {
+		return keywords.get(keywordId);
+	}
+
+	@Override
+	int keywordLength(int keywordId) {
+		return keywords.get(keywordId).length();
+	}
+
+	@Override
+	int keywordCount() {
+		return keywords.size() - allowedCount;
+	}
+
+	@Override
+	int allowedCount() {
+		return allowedCount;
+	}
+
+	@Override
+	int stateCount() {
+		return states.length;
+	}
+
+	/**
+	 * 编译后的全部节点，下标即状态编号
+	 */
+	TrieNode[] states() {
+		return states;
+	}
+
+	/**
+	 * 全部关键字，其后是允许短语
+	 */
+	List<String> keywords() {
+		return keywords;
 	}
 
 	/**
@@ -223,14 +325,23 @@ public class TrieTree implements KeywordFilter {
 	 * 有两个规则：
 	 * (1)root的子节点的失败指针都指向root。
 	 * (2)节点(字符为x)的失败指针指向：从X节点的父节点的fail节点回溯直到找到某节点的子节点也是字符x，没有找到就指向root。
+	 * 
+	 * 同时按广度优先顺序为节点编号，并记录每个节点沿失败路径最近的带关键字节点(输出链接)。
 	 * </pre>
 	 */
 	private void buildFailPath() {
+		List<TrieNode> ordered = new ArrayList<TrieNode>();
+		this.root.setId(ROOT);
+		ordered.add(this.root);
+
 		Deque<TrieNode> nodes = new LinkedList<TrieNode>();
 		// 第二层要特殊处理，将这层中的节点的失败路径直接指向父节点(也就是根节点)。
 		for (char ch : this.root.keys()) {
 			TrieNode child = this.root.get(ch);
 			child.setFail(this.root);
+			child.setDepth(1);
+			child.setId(ordered.size());
+			ordered.add(child);
 			nodes.add(child);
 		}
 
@@ -238,116 +349,121 @@ public class TrieTree implements KeywordFilter {
 			TrieNode node = nodes.pop();
 			char[] keys = node.keys();
 			for (int i = 0; i < keys.length; i++) {
-				TrieNode r = node;
-
 				char ch = keys[i];
-				TrieNode child = r.get(ch);
+				TrieNode child = node.get(ch);
+				child.setDepth(node.getDepth() + 1);
+				child.setId(ordered.size());
+				ordered.add(child);
 				nodes.add(child);
-
-				r = r.getFail();
-				while (null != r && r.get(ch) == null) {
-					r = r.getFail();
-				}
-				if(null == r) {
-					child.setFail(this.root);
-				} else {
-					child.setFail(r.get(ch));
-					r.getResults().addAll(r.get(ch).getResults());
-				}
-				
+				linkFail(node, ch, child);
 			}
 		}
+		this.states = ordered.toArray(new TrieNode[ordered.size()]);
 	}
 
-	private void checkNotNull(Object o, String msg) {
-		if (o == null) {
-			throw new NullPointerException(msg);
-		}
-	}
-
-}
-
-/**
- * Trie树中的节点
- */
-class TrieNode {
-
 	/**
-	 * 子节点
+	 * 设置parent经字符ch到达的子节点child的失败指针和输出链接。只读取深度更小的节点，
+	 * 因此同一层的节点可以同时计算
 	 */
-	private Map<Character, TrieNode> children;
+	private void linkFail(TrieNode parent, char ch, TrieNode child) {
+		TrieNode r = parent.getFail();
+		while (null != r && r.get(ch) == null) {
+			r = r.getFail();
+		}
+		TrieNode fail = null == r ? this.root : r.get(ch);
+		child.setFail(fail);
+		child.setOutputLink(fail.getKeywordId() != NONE ? fail : fail.getOutputLink());
+	}
 
 	/**
-	 * 失败指针
+	 * 同一层的节点少于此数时不再拆分任务
 	 */
-	private TrieNode fail;
+	private static final int PARALLEL_LEVEL_SIZE = 4096;
 
 	/**
-	 * 当匹配到些节点为止时，匹配到的关键字
+	 * <pre>
+	 * 与{@link #buildFailPath()}相同，但逐层处理：先顺序地按广度优先顺序为下一层编号，
+	 * 再把下一层分成若干段在pool上并行计算失败指针。每个节点的失败指针只依赖更浅的节点，
+	 * 上一层全部完成后才开始下一层，结果与顺序编译完全相同。
+	 * </pre>
 	 */
-	private Set<String> results = new HashSet<String>();
+	private void buildFailPath(ForkJoinPool pool) {
+		List<TrieNode> ordered = new ArrayList<TrieNode>();
+		this.root.setId(ROOT);
+		ordered.add(this.root);
 
-	public TrieNode() {
-		this.children = new LinkedHashMap<Character, TrieNode>();
-	}
+		List<TrieNode> level = new ArrayList<TrieNode>();
+		for (char ch : this.root.keys()) {
+			TrieNode child = this.root.get(ch);
+			child.setFail(this.root);
+			child.setDepth(1);
+			child.setId(ordered.size());
+			ordered.add(child);
+			level.add(child);
+		}
 
-	/**
-	 * 扩展枝条
-	 */
-	public TrieNode extend(char[] chars) {
-		TrieNode node = this;
-		for (int i = 0; i < chars.length; i++) {
-			node = node.touchChild(chars[i]);
+		while (!level.isEmpty()) {
+			final List<TrieNode> parents = new ArrayList<TrieNode>();
+			final StringBuilder chars = new StringBuilder();
+			final List<TrieNode> children = new ArrayList<TrieNode>();
+			for (TrieNode node : level) {
+				for (char ch : node.keys()) {
+					TrieNode child = node.get(ch);
+					child.setDepth(node.getDepth() + 1);
+					child.setId(ordered.size());
+					ordered.add(child);
+					parents.add(node);
+					chars.append(ch);
+					children.add(child);
+				}
+			}
+			int size = children.size();
+			int segments = Math.min(pool.getParallelism() * 4, (size + PARALLEL_LEVEL_SIZE - 1) / PARALLEL_LEVEL_SIZE);
+			if (segments <= 1) {
+				for (int i = 0; i < size; i++) {
+					linkFail(parents.get(i), chars.charAt(i), children.get(i));
+				}
+			} else {
+				List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(segments);
+				for (int k = 0; k < segments; k++) {
+					final int from = (int) ((long) size * k / segments);
+					final int to = (int) ((long) size * (k + 1) / segments);
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() {
+							for (int i = from; i < to; i++) {
+								linkFail(parents.get(i), chars.charAt(i), children.get(i));
+							}
+							return null;
+						}
+					});
+				}
+				invokeAll(pool, tasks);
+			}
+			level = children;
 		}
-		return node;
+		this.states = ordered.toArray(new TrieNode[ordered.size()]);
 	}
 
 	/**
-	 * 有则返回，没有则创建后再返回
+	 * 执行全部任务，按顺序返回结果。任务抛出的RuntimeException原样抛出
 	 */
-	private TrieNode touchChild(char ch) {
-		TrieNode child = this.children.get(ch);
-		if (child != null) {
-			return child;
-		}
-
-		TrieNode next = new TrieNode();
-		this.children.put(ch, next);
-		return next;
-	}
-
-	public TrieNode get(char key) {
-		return this.children.get(key);
-	}
-
-	public void put(char key, TrieNode value) {
-		this.children.put(key, value);
-	}
-
-	public char[] keys() {
-		char[] result = new char[children.size()];
-		int i = 0;
-		for (Character c : children.keySet()) {
-			result[i] = c;
-			i++;
+	private static <T> List<T> invokeAll(ForkJoinPool pool, List<Callable<T>> tasks) {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> future : pool.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("并行编译时被中断", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("并行编译失败", e.getCause());
 		}
-		return result;
-	}
-
-	public TrieNode getFail() {
-		return this.fail;
-	}
-
-	public void setFail(TrieNode f) {
-		this.fail = f;
-	}
-
-	public void addResult(String result) {
-		this.results.add(result);
-	}
-
-	public Collection<String> getResults() {
-		return this.results;
+		return results;
 	}
 
 }
@@ -0,0 +1,419 @@
+package net.codaview.utils.keyword;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * <pre>
+ * 直接在UTF-8字节上匹配的过滤器，文本不必先解码为String。适合消息体本身就是UTF-8 ByteBuffer的场景，
+ * 堆内、堆外(direct)的ByteBuffer都按下标原地读取，不复制。
+ *
+ * 关键字先编码为UTF-8字节串，每个字节当作一个0~255的字符编译为{@link DoubleArrayTrie}，扫描时逐字节转移。
+ * UTF-8是自同步的编码，关键字的字节串只能从文本中一个字符的开头匹配、在一个字符的结尾结束，
+ * 因此结果与把文本解码后用{@link DoubleArrayTrie}匹配相同，只是起止位置都是字节偏移。
+ * 跳过字符按整个字符跳过：遇到ASCII字节直接查位图，遇到多字节字符的首字节时解码出该字符再查位图。
+ * 不支持字符规范化。
+ *
+ * 匹配的起止位置是相对于text.position()的字节偏移，扫描范围为[position, limit)，不改变text的position和limit。
+ * </pre>
+ *
+ * @author lianxh
+ * @see KeywordFilterBuilder#buildUtf8()
+ */
+public class Utf8KeywordFilter {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	private static final int ROOT = AbstractKeywordFilter.ROOT;
+
+	private static final int NONE = AbstractKeywordFilter.NONE;
+
+	/**
+	 * 以字节串为关键字的自动机，每个char的取值为0~255
+	 */
+	private DoubleArrayTrie trie = new DoubleArrayTrie();
+
+	/**
+	 * 原始关键字，下标即关键字编号
+	 */
+	private String[] keywords;
+
+	private Set<Character> skipChars = new HashSet<Character>();
+
+	/**
+	 * 跳过字符位图，没有跳过字符时为null
+	 */
+	private long[] skipTable;
+
+	/**
+	 * 是否有非ASCII的跳过字符，没有时多字节字符不必解码
+	 */
+	private boolean multiByteSkip;
+
+	/**
+	 * 能从根节点转移出去的字节
+	 */
+	private final long[] startTable = new long[4];
+
+	private boolean compiled = false;
+
+	public void add(String keyword) {
+		if (null == keyword || keyword.trim().isEmpty()) {
+			throw new IllegalArgumentException("过滤关键词不能为空！");
+		}
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再添加关键字");
+		}
+		trie.add(new String(keyword.getBytes(UTF_8), ISO_8859_1));
+	}
+
+	public void addSkipChar(char ch) {
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再添加忽略字符");
+		}
+		this.skipChars.add(ch);
+	}
+
+	public void addSkipChar(Collection<Character> chars) {
+		if (compiled) {
+			throw new IllegalStateException("编译后不能再添加忽略字符");
+		}
+		if (null != chars) {
+			this.skipChars.addAll(chars);
+		}
+	}
+
+	public void compile() {
+		trie.compile();
+		this.keywords = new String[trie.keywordCount()];
+		for (int id = 0; id < keywords.length; id++) {
+			keywords[id] = new String(trie.keyword(id).getBytes(ISO_8859_1), UTF_8);
+		}
+		if (!skipChars.isEmpty()) {
+			skipTable = new long[(Character.MAX_VALUE + 1) >>> 6];
+			for (char ch : skipChars) {
+				skipTable[ch >>> 6] |= 1L << ch;
+				if (ch >= 0x80) {
+					multiByteSkip = true;
+				}
+			}
+		}
+		for (int b = 0; b < 256; b++) {
+			if (trie.transition(ROOT, (char) b) != ROOT) {
+				startTable[b >>> 6] |= 1L << b;
+			}
+		}
+		this.compiled = true;
+	}
+
+	public String getKeyword(int keywordId) {
+		if (keywordId < 0 || keywordId >= keywords.length) {
+			throw new IndexOutOfBoundsException("关键字编号越界: " + keywordId);
+		}
+		return keywords[keywordId];
+	}
+
+	public int getKeywordCount() {
+		return keywords.length;
+	}
+
+	/**
+	 * 是否包含关键字，找到第一个即返回
+	 */
+	public boolean hasKeywords(ByteBuffer text) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+
+		final DoubleArrayTrie trie = this.trie;
+		int state = ROOT;
+		for (int i = text.position(), limit = text.limit(); i < limit;) {
+			if (state == ROOT) {
+				i = nextStart(text, i, limit);
+				if (i == limit) {
+					return false;
+				}
+			}
+			int skip = skipLength(text, i, limit);
+			if (skip > 0) {
+				i += skip;
+				continue;
+			}
+			state = trie.transition(state, (char) (text.get(i) & 0xFF));
+			if (trie.longestKeywordId(state) != NONE) {
+				return true;
+			}
+			i++;
+		}
+		return false;
+	}
+
+	/**
+	 * 匹配关键字，起止位置是相对于text.position()的字节偏移
+	 *
+	 * @see KeywordFilter#match(CharSequence, MatchMode, MatchListener)
+	 */
+	public void match(ByteBuffer text, MatchMode mode, MatchListener listener) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		checkNotNull(mode, "Null value not allowed for parameter 'mode'.");
+		checkNotNull(listener, "Null value not allowed for parameter 'listener'.");
+
+		if (mode == MatchMode.OVERLAPPING) {
+			matchOverlapping(text, listener);
+		} else {
+			leftmost(text, mode == MatchMode.LEFTMOST_LONGEST, listener);
+		}
+	}
+
+	/**
+	 * 把text中的关键字按最左最长匹配替换后写入out，替换结果按UTF-8编码。
+	 * text不变，out的position移到写入的内容之后
+	 *
+	 * @return 是否有关键字被替换
+	 * @throws BufferOverflowException
+	 *             out的剩余空间不足，此时out中只有部分结果
+	 */
+	public boolean replace(ByteBuffer text, ByteBuffer out, ReplaceStrategy strategy) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'");
+		checkNotNull(out, "Null value not allowed for parameter 'out'");
+		checkNotNull(strategy, "Null value not allowed for parameter 'strategy'");
+
+		Replacer replacer = new Replacer(text, out, strategy);
+		leftmost(text, true, replacer);
+		replacer.emit(text.limit());
+		return replacer.replaced;
+	}
+
+	/**
+	 * 从i开始的字节可能作为关键字开头的第一个位置，没有则返回limit
+	 */
+	private int nextStart(ByteBuffer text, int i, int limit) {
+		final long[] start = startTable;
+		while (i < limit) {
+			int b = text.get(i) & 0xFF;
+			if ((start[b >>> 6] & (1L << b)) != 0) {
+				break;
+			}
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * i处开始的跳过字符占用的字节数，不是跳过字符(或i处是多字节字符的后续字节)时返回0
+	 */
+	private int skipLength(ByteBuffer text, int i, int limit) {
+		final long[] skip = skipTable;
+		if (null == skip) {
+			return 0;
+		}
+		int b = text.get(i) & 0xFF;
+		if (b < 0x80) {
+			return AbstractKeywordFilter.isSkip(skip, (char) b) ? 1 : 0;
+		}
+		if (!multiByteSkip) {
+			return 0;
+		}
+		int length;
+		int ch;
+		if ((b & 0xE0) == 0xC0) {
+			length = 2;
+			ch = b & 0x1F;
+		} else if ((b & 0xF0) == 0xE0) {
+			length = 3;
+			ch = b & 0x0F;
+		} else {
+			// 后续字节，或4字节的增补字符(跳过字符都在基本平面内)
+			return 0;
+		}
+		if (i + length > limit) {
+			return 0;
+		}
+		for (int k = 1; k < length; k++) {
+			int c = text.get(i + k) & 0xFF;
+			if ((c & 0xC0) != 0x80) {
+				return 0;
+			}
+			ch = (ch << 6) | (c & 0x3F);
+		}
+		return AbstractKeywordFilter.isSkip(skip, (char) ch) ? length : 0;
+	}
+
+	/**
+	 * 从end往前数length个不属于跳过字符的字节，返回最前一个的下标
+	 */
+	private int startIndex(ByteBuffer text, int end, int length) {
+		if (null == skipTable) {
+			return end - length + 1;
+		}
+		int start = end;
+		for (int n = length - 1; n > 0;) {
+			start--;
+			int lead = start;
+			// 回到该字节所在字符的首字节，看整个字符是否是跳过字符
+			while (lead > text.position() && lead > start - 3 && (text.get(lead) & 0xC0) == 0x80) {
+				lead--;
+			}
+			int skip = skipLength(text, lead, text.limit());
+			if (skip > 0 && lead + skip > start) {
+				start = lead;
+			} else {
+				n--;
+			}
+		}
+		return start;
+	}
+
+	private void matchOverlapping(ByteBuffer text, MatchListener listener) {
+		final DoubleArrayTrie trie = this.trie;
+		final int base = text.position();
+		int state = ROOT;
+		for (int i = base, limit = text.limit(); i < limit;) {
+			if (state == ROOT) {
+				i = nextStart(text, i, limit);
+				if (i == limit) {
+					return;
+				}
+			}
+			int skip = skipLength(text, i, limit);
+			if (skip > 0) {
+				i += skip;
+				continue;
+			}
+			state = trie.transition(state, (char) (text.get(i) & 0xFF));
+			int output = trie.keywordId(state) != NONE ? state : trie.outputLink(state);
+			while (output != NONE) {
+				int id = trie.keywordId(output);
+				int start = startIndex(text, i, trie.keywordLength(id));
+				if (!listener.onMatch(start - base, i + 1 - base, id)) {
+					return;
+				}
+				output = trie.outputLink(output);
+			}
+			i++;
+		}
+	}
+
+	/**
+	 * 与{@link AbstractKeywordFilter}的最左匹配相同，只是逐字节转移、按整个字符跳过跳过字符
+	 */
+	private void leftmost(ByteBuffer text, boolean longest, MatchListener listener) {
+		final DoubleArrayTrie trie = this.trie;
+		final int base = text.position();
+		final int limit = text.limit();
+		int state = ROOT;
+		/* 自上次重置以来读入的非跳过字节数 */
+		int ord = 0;
+		/* 候选匹配: 关键字编号、起点序号、最后一个字节的下标 */
+		int matchId = NONE;
+		int matchStart = 0;
+		int matchEnd = 0;
+		int i = base;
+		while (true) {
+			if (i == limit) {
+				if (matchId == NONE) {
+					return;
+				}
+			} else {
+				if (state == ROOT && matchId == NONE) {
+					i = nextStart(text, i, limit);
+					if (i == limit) {
+						return;
+					}
+				}
+				int skip = skipLength(text, i, limit);
+				if (skip > 0) {
+					i += skip;
+					continue;
+				}
+				state = trie.transition(state, (char) (text.get(i) & 0xFF));
+				ord++;
+				if (matchId == NONE || ord - trie.depth(state) + 1 <= matchStart) {
+					int id = trie.longestKeywordId(state);
+					if (id != NONE) {
+						int start = ord - trie.keywordLength(id) + 1;
+						if (matchId == NONE || start < matchStart
+								|| (start == matchStart && (longest || id < matchId))) {
+							matchId = id;
+							matchStart = start;
+							matchEnd = i;
+						}
+					}
+					i++;
+					continue;
+				}
+			}
+
+			// 确定候选匹配，从匹配结束处重新开始
+			int start = startIndex(text, matchEnd, trie.keywordLength(matchId));
+			if (!listener.onMatch(start - base, matchEnd + 1 - base, matchId)) {
+				return;
+			}
+			i = matchEnd + 1;
+			state = ROOT;
+			ord = 0;
+			matchId = NONE;
+		}
+	}
+
+	/**
+	 * 把匹配替换后写入out，匹配之间的字节原样复制
+	 */
+	private final class Replacer implements MatchListener {
+
+		private final ByteBuffer text;
+
+		/**
+		 * 复制原文用的视图，整次替换共用一个
+		 */
+		private final ByteBuffer source;
+
+		private final ByteBuffer out;
+
+		private final ReplaceStrategy strategy;
+
+		/* text[position, emitted)已处理，为绝对下标 */
+		private int emitted;
+
+		boolean replaced;
+
+		Replacer(ByteBuffer text, ByteBuffer out, ReplaceStrategy strategy) {
+			this.text = text;
+			this.source = text.duplicate();
+			this.out = out;
+			this.strategy = strategy;
+			this.emitted = text.position();
+		}
+
+		@Override
+		public boolean onMatch(int start, int end, int keywordId) {
+			emit(text.position() + start);
+			out.put(strategy.replaceWith(keywords[keywordId]).getBytes(UTF_8));
+			emitted = text.position() + end;
+			replaced = true;
+			return true;
+		}
+
+		/**
+		 * 原样复制text[emitted, to)
+		 */
+		void emit(int to) {
+			if (to > emitted) {
+				source.limit(to);
+				source.position(emitted);
+				out.put(source);
+				emitted = to;
+			}
+		}
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+}
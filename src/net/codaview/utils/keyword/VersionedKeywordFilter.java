@@ -0,0 +1,15 @@
+package net.codaview.utils.keyword;
+
+/**
+ * 词库可以在运行中替换的过滤器。每个版本都是不可变的过滤器，替换词库即发布一个新的版本对象。
+ *
+ * @author lianxh
+ */
+public interface VersionedKeywordFilter extends KeywordFilter {
+
+	/**
+	 * 当前版本的过滤器，之后替换词库不会影响它。不同版本是不同的对象，可以用==判断版本是否变化
+	 */
+	public KeywordFilter current();
+
+}
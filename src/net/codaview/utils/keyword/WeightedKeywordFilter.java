@@ -0,0 +1,203 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * <pre>
+ * 带分类和权重的过滤器，每个关键字属于一个分类(比如政治、广告、辱骂)并有一个权重。
+ *
+ * 分类和权重按关键字编号存放在两个int数组中，{@link #score(CharSequence, int)}扫描时按分类累加匹配到的关键字的权重，
+ * 任何一个分类的总分达到阈值就立即停止扫描，不必像替换那样扫描完整个文本。
+ * 计分的匹配与替换相同(最左最长、互不重叠)，因此与用ReplaceStrategy逐个累加的结果一致。
+ * 其它方法直接转给被包装的过滤器。
+ * </pre>
+ *
+ * @author lianxh
+ * @see KeywordFilterBuilder#buildWeighted()
+ */
+public class WeightedKeywordFilter implements KeywordFilter {
+
+	private final KeywordFilter filter;
+
+	/**
+	 * 关键字编号 -> 分类编号
+	 */
+	private final int[] categories;
+
+	/**
+	 * 关键字编号 -> 权重
+	 */
+	private final int[] weights;
+
+	private final int categoryCount;
+
+	/**
+	 * @param filter
+	 *            被包装的过滤器
+	 * @param categories
+	 *            各关键字的分类编号，下标为关键字编号，分类编号从0开始
+	 * @param weights
+	 *            各关键字的权重，下标为关键字编号
+	 */
+	public WeightedKeywordFilter(KeywordFilter filter, int[] categories, int[] weights) {
+		checkNotNull(filter, "请传入被包装的过滤器");
+		checkNotNull(categories, "请传入关键字分类");
+		checkNotNull(weights, "请传入关键字权重");
+		int count = filter.getKeywordCount();
+		if (categories.length != count || weights.length != count) {
+			throw new IllegalArgumentException("分类和权重的个数必须与关键字个数(" + count + ")相同");
+		}
+		int max = -1;
+		for (int category : categories) {
+			if (category < 0) {
+				throw new IllegalArgumentException("分类编号不能小于0: " + category);
+			}
+			max = Math.max(max, category);
+		}
+		this.filter = filter;
+		this.categories = categories.clone();
+		this.weights = weights.clone();
+		this.categoryCount = max + 1;
+	}
+
+	public int getCategory(int keywordId) {
+		return categories[keywordId];
+	}
+
+	public int getWeight(int keywordId) {
+		return weights[keywordId];
+	}
+
+	/**
+	 * 分类个数，即最大的分类编号加1
+	 */
+	public int getCategoryCount() {
+		return categoryCount;
+	}
+
+	/**
+	 * 扫描全部文本，返回各分类的总分
+	 */
+	public int[] score(CharSequence text) {
+		return score(text, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * 按分类累加权重，任何一个分类的总分达到threshold时立即停止扫描。
+	 *
+	 * @return 各分类的总分，下标为分类编号。提前停止时，达到阈值的分类之外的总分只统计到停止的位置
+	 */
+	public int[] score(CharSequence text, int threshold) {
+		int[] thresholds = new int[categoryCount];
+		Arrays.fill(thresholds, threshold);
+		return score(text, thresholds);
+	}
+
+	/**
+	 * 各分类使用各自的阈值，任何一个分类的总分达到其阈值时立即停止扫描。
+	 *
+	 * @param thresholds
+	 *            各分类的阈值，下标为分类编号
+	 * @return 各分类的总分，下标为分类编号
+	 */
+	public int[] score(CharSequence text, final int[] thresholds) {
+		checkNotNull(text, "Null value not allowed for parameter 'text'.");
+		checkNotNull(thresholds, "Null value not allowed for parameter 'thresholds'.");
+		if (thresholds.length != categoryCount) {
+			throw new IllegalArgumentException("阈值的个数必须与分类个数(" + categoryCount + ")相同");
+		}
+		final int[] totals = new int[categoryCount];
+		final int[] categories = this.categories;
+		final int[] weights = this.weights;
+		filter.match(text, MatchMode.LEFTMOST_LONGEST, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				int category = categories[keywordId];
+				totals[category] += weights[keywordId];
+				return totals[category] < thresholds[category];
+			}
+		});
+		return totals;
+	}
+
+	@Override
+	public boolean hasKeywords(String text) {
+		return filter.hasKeywords(text);
+	}
+
+	@Override
+	public BitSet hasKeywords(List<? extends CharSequence> texts) {
+		return filter.hasKeywords(texts);
+	}
+
+	@Override
+	public void match(CharSequence text, MatchMode mode, MatchListener listener) {
+		filter.match(text, mode, listener);
+	}
+
+	@Override
+	public String getKeyword(int keywordId) {
+		return filter.getKeyword(keywordId);
+	}
+
+	@Override
+	public int getKeywordCount() {
+		return filter.getKeywordCount();
+	}
+
+	@Override
+	public int count(String text, String keyword) {
+		return filter.count(text, keyword);
+	}
+
+	@Override
+	public int[] countAll(String text) {
+		return filter.countAll(text);
+	}
+
+	@Override
+	public String replace(String text, ReplaceStrategy strategy) {
+		return filter.replace(text, strategy);
+	}
+
+	@Override
+	public CharSequence replace(CharSequence text, ReplaceStrategy strategy) {
+		return filter.replace(text, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, StringBuilder out, ReplaceStrategy strategy) {
+		return filter.replace(text, out, strategy);
+	}
+
+	@Override
+	public boolean replace(CharSequence text, Appendable out, ReplaceStrategy strategy) throws IOException {
+		return filter.replace(text, out, strategy);
+	}
+
+	@Override
+	public List<String> replaceAll(List<String> texts, ReplaceStrategy strategy) {
+		return filter.replaceAll(texts, strategy);
+	}
+
+	@Override
+	public boolean hasKeywords(Reader reader) throws IOException {
+		return filter.hasKeywords(reader);
+	}
+
+	@Override
+	public void replace(Reader reader, Writer writer, ReplaceStrategy strategy) throws IOException {
+		filter.replace(reader, writer, strategy);
+	}
+
+	private void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+}
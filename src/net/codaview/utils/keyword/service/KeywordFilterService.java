@@ -0,0 +1,596 @@
+package net.codaview.utils.keyword.service;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.codaview.utils.keyword.KeywordFilter;
+import net.codaview.utils.keyword.KeywordFilterBuilder;
+import net.codaview.utils.keyword.ReloadableKeywordFilter;
+import net.codaview.utils.keyword.ReplaceStrategy;
+import net.codaview.utils.keyword.WeightedKeywordFilter;
+
+/**
+ * <pre>
+ * 基于JDK自带HTTP服务器的过滤服务，只监听本机回环地址，一台机器上的多个应用共用一份词库。
+ *
+ * 接口(请求体和响应体都是UTF-8文本)：
+ *   POST /check              响应true或false
+ *   POST /replace            响应替换后的文本，关键字按{@link #setReplaceStrategy(ReplaceStrategy)}替换，默认每个字替换为*
+ *   POST /score?threshold=N  响应各分类的总分，逗号分隔，任何一个分类达到N时提前停止；
+ *                            当前词库不是{@link WeightedKeywordFilter}时响应404
+ *   POST /reload             用{@link #setReloader(Callable)}指定的任务重新加载词库，响应新的版本号
+ *   GET  /status             版本号、在途请求数、拒绝次数、批次数等，每行一项
+ *
+ * (1) 每个请求在一个虚拟线程中处理(JDK 21及以上；更早的JDK退回到按需创建的守护线程)。
+ * (2) 同时处理的请求数不超过maxInFlight，超出的请求立即以503和Retry-After拒绝，不排队，
+ *     调用方据此退避，服务在过载时延迟不会无限增长。
+ * (3) 不超过batchTextLength个字符的check和replace请求交给少数几个工作线程合并处理，
+ *     整批调用一次{@link KeywordFilter#hasKeywords(List)}或{@link KeywordFilter#replaceAll(List, ReplaceStrategy)}；
+ *     更长的文本直接在请求线程中扫描。
+ * (4) 词库由{@link ReloadableKeywordFilter}持有，热更新不会阻塞正在进行的扫描，同一批请求使用同一个版本。
+ * </pre>
+ *
+ * <pre>
+ * <code>
+ *   KeywordFilterService service = new KeywordFilterService(new ReloadableKeywordFilter(builder.build()), 8090);
+ *   service.setMaxInFlight(256);
+ *   service.start();
+ *   ...
+ *   service.stop();
+ * </code>
+ * </pre>
+ *
+ * @author lianxh
+ */
+public class KeywordFilterService {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int OK = 200;
+
+	private static final int BAD_REQUEST = 400;
+
+	private static final int NOT_FOUND = 404;
+
+	private static final int METHOD_NOT_ALLOWED = 405;
+
+	private static final int TOO_LARGE = 413;
+
+	private static final int INTERNAL_ERROR = 500;
+
+	private static final int UNAVAILABLE = 503;
+
+	private final ReloadableKeywordFilter filter;
+
+	private final int port;
+
+	private int maxInFlight = 1024;
+
+	private int maxBodyLength = 1 << 20;
+
+	private int batchTextLength = 1024;
+
+	private int maxBatch = 64;
+
+	private long batchDelayNanos = 0;
+
+	private int batchThreads = Runtime.getRuntime().availableProcessors();
+
+	private ReplaceStrategy replaceStrategy = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keyword) {
+			StringBuilder sb = new StringBuilder(keyword.length());
+			for (int i = 0; i < keyword.length(); i++) {
+				sb.append('*');
+			}
+			return sb.toString();
+		}
+	};
+
+	private Callable<? extends KeywordFilter> reloader;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	private boolean virtualThreads;
+
+	private Semaphore inFlight;
+
+	private MicroBatcher<Boolean> checkBatcher;
+
+	private MicroBatcher<String> replaceBatcher;
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final AtomicLong rejectedCount = new AtomicLong();
+
+	/**
+	 * @param filter
+	 *            提供服务的词库
+	 * @param port
+	 *            监听端口，0表示由系统分配，启动后用{@link #getPort()}取得
+	 */
+	public KeywordFilterService(ReloadableKeywordFilter filter, int port) {
+		checkNotNull(filter, "请传入过滤器");
+		if (port < 0 || port > 0xFFFF) {
+			throw new IllegalArgumentException("端口号不正确: " + port);
+		}
+		this.filter = filter;
+		this.port = port;
+	}
+
+	/**
+	 * 同时处理的请求数上限，默认1024
+	 */
+	public void setMaxInFlight(int maxInFlight) {
+		checkNotStarted();
+		checkPositive(maxInFlight, "在途请求数上限");
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * 请求体的字节数上限，超出时响应413，默认1M
+	 */
+	public void setMaxBodyLength(int maxBodyLength) {
+		checkNotStarted();
+		checkPositive(maxBodyLength, "请求体大小上限");
+		this.maxBodyLength = maxBodyLength;
+	}
+
+	/**
+	 * 设置合并处理的参数
+	 *
+	 * @param batchTextLength
+	 *            不超过这个字符数的文本才合并处理，0表示不合并
+	 * @param maxBatch
+	 *            每批最多的请求个数
+	 * @param batchDelayMicros
+	 *            凑批最多等待的微秒数，0表示只合并已经在排队的请求，不增加延迟
+	 * @param batchThreads
+	 *            处理批次的工作线程个数，默认为CPU个数
+	 */
+	public void setBatching(int batchTextLength, int maxBatch, long batchDelayMicros, int batchThreads) {
+		checkNotStarted();
+		if (batchTextLength < 0 || batchDelayMicros < 0) {
+			throw new IllegalArgumentException("合并的文本长度和等待时间不能小于0");
+		}
+		checkPositive(maxBatch, "批大小");
+		checkPositive(batchThreads, "工作线程个数");
+		this.batchTextLength = batchTextLength;
+		this.maxBatch = maxBatch;
+		this.batchDelayNanos = TimeUnit.MICROSECONDS.toNanos(batchDelayMicros);
+		this.batchThreads = batchThreads;
+	}
+
+	/**
+	 * /replace使用的替换策略，会被多个线程同时调用
+	 */
+	public void setReplaceStrategy(ReplaceStrategy replaceStrategy) {
+		checkNotStarted();
+		checkNotNull(replaceStrategy, "请传入替换策略");
+		this.replaceStrategy = replaceStrategy;
+	}
+
+	/**
+	 * /reload时编译新词库的任务，未设置时/reload响应404
+	 */
+	public void setReloader(Callable<? extends KeywordFilter> reloader) {
+		checkNotStarted();
+		this.reloader = reloader;
+	}
+
+	public synchronized void start() throws IOException {
+		checkNotStarted();
+		final ReplaceStrategy strategy = this.replaceStrategy;
+		inFlight = new Semaphore(maxInFlight);
+		checkBatcher = new MicroBatcher<Boolean>("keyword-check", batchThreads, maxBatch, batchDelayNanos) {
+			@Override
+			protected List<Boolean> process(List<String> texts) {
+				BitSet found = filter.hasKeywords(texts);
+				List<Boolean> results = new ArrayList<Boolean>(texts.size());
+				for (int i = 0; i < texts.size(); i++) {
+					results.add(found.get(i));
+				}
+				return results;
+			}
+		};
+		replaceBatcher = new MicroBatcher<String>("keyword-replace", batchThreads, maxBatch, batchDelayNanos) {
+			@Override
+			protected List<String> process(List<String> texts) {
+				return filter.replaceAll(texts, strategy);
+			}
+		};
+
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/check", new ScanHandler() {
+			@Override
+			String scan(String text, HttpExchange exchange) throws InterruptedException {
+				if (text.length() <= batchTextLength) {
+					return String.valueOf(checkBatcher.submit(text));
+				}
+				return String.valueOf(filter.hasKeywords(text));
+			}
+		});
+		server.createContext("/replace", new ScanHandler() {
+			@Override
+			String scan(String text, HttpExchange exchange) throws InterruptedException {
+				if (text.length() <= batchTextLength) {
+					return replaceBatcher.submit(text);
+				}
+				return filter.replace(text, strategy);
+			}
+		});
+		server.createContext("/score", new ScanHandler() {
+			@Override
+			String scan(String text, HttpExchange exchange) {
+				KeywordFilter current = filter.current();
+				if (!(current instanceof WeightedKeywordFilter)) {
+					throw new NotFoundException("当前词库没有分类和权重");
+				}
+				int threshold = Integer.MAX_VALUE;
+				String value = getParameter(exchange, "threshold");
+				if (null != value) {
+					try {
+						threshold = Integer.parseInt(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("threshold不是整数: " + value);
+					}
+				}
+				int[] totals = ((WeightedKeywordFilter) current).score(text, threshold);
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < totals.length; i++) {
+					if (i > 0) {
+						sb.append(',');
+					}
+					sb.append(totals[i]);
+				}
+				return sb.toString();
+			}
+		});
+		server.createContext("/reload", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					if (!"POST".equals(exchange.getRequestMethod())) {
+						respond(exchange, METHOD_NOT_ALLOWED, "只支持POST");
+					} else if (null == reloader) {
+						respond(exchange, NOT_FOUND, "未设置重新加载词库的任务");
+					} else {
+						respond(exchange, OK, String.valueOf(filter.reload(reloader)));
+					}
+				} catch (Exception e) {
+					// 加载失败时仍使用旧版本
+					respond(exchange, INTERNAL_ERROR, String.valueOf(e));
+				}
+			}
+		});
+		server.createContext("/status", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				respond(exchange, OK, getStatus());
+			}
+		});
+
+		executor = newRequestExecutor();
+		server.setExecutor(executor);
+		checkBatcher.start();
+		replaceBatcher.start();
+		server.start();
+		this.server = server;
+	}
+
+	/**
+	 * 停止服务，最多等待delaySeconds秒让正在处理的请求完成
+	 */
+	public synchronized void stop(int delaySeconds) {
+		if (null == server) {
+			return;
+		}
+		server.stop(delaySeconds);
+		checkBatcher.stop();
+		replaceBatcher.stop();
+		executor.shutdown();
+		server = null;
+	}
+
+	public void stop() {
+		stop(0);
+	}
+
+	/**
+	 * 实际监听的端口
+	 */
+	public synchronized int getPort() {
+		if (null == server) {
+			throw new IllegalStateException("服务未启动");
+		}
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * 请求是否在虚拟线程中处理
+	 */
+	public synchronized boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public ReloadableKeywordFilter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * 已处理的check、replace、score请求数，不含被拒绝的
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * 因在途请求数达到上限被拒绝的次数
+	 */
+	public long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	private String getStatus() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("version=").append(filter.getVersion()).append('\n');
+		sb.append("keywords=").append(filter.getKeywordCount()).append('\n');
+		sb.append("inFlight=").append(maxInFlight - inFlight.availablePermits()).append('\n');
+		sb.append("requests=").append(requestCount.get()).append('\n');
+		sb.append("rejected=").append(rejectedCount.get()).append('\n');
+		sb.append("batches=").append(checkBatcher.getBatchCount() + replaceBatcher.getBatchCount()).append('\n');
+		sb.append("batchedRequests=").append(checkBatcher.getRequestCount() + replaceBatcher.getRequestCount()).append('\n');
+		sb.append("virtualThreads=").append(virtualThreads).append('\n');
+		return sb.toString();
+	}
+
+	/**
+	 * JDK 21起使用每个任务一个虚拟线程的Executor。这里通过反射取得，源码仍可以用更早的JDK编译
+	 */
+	private ExecutorService newRequestExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			ExecutorService executor = (ExecutorService) method.invoke(null);
+			virtualThreads = true;
+			return executor;
+		} catch (NoSuchMethodException e) {
+			// 没有虚拟线程，在途请求数由信号量限制，线程数不会超过它太多
+		} catch (Exception e) {
+			throw new IllegalStateException("无法创建虚拟线程", e);
+		}
+		virtualThreads = false;
+		final AtomicInteger sequence = new AtomicInteger();
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "keyword-service-" + sequence.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * check、replace、score共用的处理流程：方法检查、准入控制、读取请求体、写响应
+	 */
+	private abstract class ScanHandler implements HttpHandler {
+
+		abstract String scan(String text, HttpExchange exchange) throws InterruptedException;
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				respond(exchange, METHOD_NOT_ALLOWED, "只支持POST");
+				return;
+			}
+			if (!inFlight.tryAcquire()) {
+				rejectedCount.incrementAndGet();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				respond(exchange, UNAVAILABLE, "请求过多");
+				return;
+			}
+			// 名额只覆盖读取和扫描，写响应前归还：客户端收到响应后立即发出的下一个请求不会被拒绝，读得慢的客户端也不占名额
+			int status;
+			String body;
+			try {
+				String text = readBody(exchange);
+				if (null == text) {
+					status = TOO_LARGE;
+					body = "请求体超过" + maxBodyLength + "字节";
+				} else {
+					body = scan(text, exchange);
+					status = OK;
+					requestCount.incrementAndGet();
+				}
+			} catch (NotFoundException e) {
+				status = NOT_FOUND;
+				body = e.getMessage();
+			} catch (IllegalArgumentException e) {
+				status = BAD_REQUEST;
+				body = e.getMessage();
+			} catch (IllegalStateException e) {
+				// 服务正在停止
+				status = UNAVAILABLE;
+				body = e.getMessage();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				status = UNAVAILABLE;
+				body = "服务已停止";
+			} catch (RuntimeException e) {
+				status = INTERNAL_ERROR;
+				body = String.valueOf(e);
+			} finally {
+				inFlight.release();
+			}
+			respond(exchange, status, body);
+		}
+	}
+
+	private static final class NotFoundException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		NotFoundException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * @return 请求体文本，超过maxBodyLength时返回null
+	 */
+	private String readBody(HttpExchange exchange) throws IOException {
+		InputStream in = exchange.getRequestBody();
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				if (bytes.size() + n > maxBodyLength) {
+					return null;
+				}
+				bytes.write(buffer, 0, n);
+			}
+			return new String(bytes.toByteArray(), UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String getParameter(HttpExchange exchange, String name) {
+		String query = exchange.getRequestURI().getRawQuery();
+		if (null == query) {
+			return null;
+		}
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq > 0 && pair.substring(0, eq).equals(name)) {
+				try {
+					return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return null;
+	}
+
+	private void checkNotStarted() {
+		if (null != server) {
+			throw new IllegalStateException("服务已启动，不能再修改设置");
+		}
+	}
+
+	private static void checkPositive(int value, String name) {
+		if (value <= 0) {
+			throw new IllegalArgumentException(name + "必须大于0: " + value);
+		}
+	}
+
+	private static void checkNotNull(Object o, String msg) {
+		if (null == o) {
+			throw new NullPointerException(msg);
+		}
+	}
+
+	/**
+	 * 独立运行：KeywordFilterService 端口 词库文件 [跳过字符]
+	 *
+	 * 词库文件为UTF-8，每行一个关键字，可以用制表符分隔附上分类编号和权重(默认分类0、权重1)，空行忽略。
+	 * POST /reload重新读取词库文件。
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("用法: KeywordFilterService 端口 词库文件 [跳过字符]");
+			System.exit(1);
+		}
+		int port = Integer.parseInt(args[0]);
+		final File file = new File(args[1]);
+		final String skipChars = args.length > 2 ? args[2] : "";
+		Callable<KeywordFilter> loader = new Callable<KeywordFilter>() {
+			@Override
+			public KeywordFilter call() throws IOException {
+				return load(file, skipChars);
+			}
+		};
+		KeywordFilterService service = new KeywordFilterService(new ReloadableKeywordFilter(loader.call()), port);
+		service.setReloader(loader);
+		service.start();
+		System.out.println("listening on " + InetAddress.getLoopbackAddress().getHostAddress() + ":" + service.getPort()
+				+ (service.isVirtualThreads() ? " (virtual threads)" : ""));
+	}
+
+	private static WeightedKeywordFilter load(File file, String skipChars) throws IOException {
+		List<String> keywords = new ArrayList<String>();
+		List<int[]> metas = new ArrayList<int[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+		try {
+			String line;
+			while (null != (line = reader.readLine())) {
+				String[] fields = line.split("\t");
+				if (fields[0].isEmpty()) {
+					continue;
+				}
+				keywords.add(fields[0]);
+				metas.add(new int[] { fields.length > 1 ? Integer.parseInt(fields[1].trim()) : 0,
+						fields.length > 2 ? Integer.parseInt(fields[2].trim()) : 1 });
+			}
+		} finally {
+			reader.close();
+		}
+		int[] categories = new int[keywords.size()];
+		int[] weights = new int[keywords.size()];
+		for (int i = 0; i < categories.length; i++) {
+			categories[i] = metas.get(i)[0];
+			weights[i] = metas.get(i)[1];
+		}
+		List<Character> skips = new ArrayList<Character>();
+		for (char c : skipChars.toCharArray()) {
+			skips.add(c);
+		}
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(skips);
+		builder.setKeywordMeta(categories, weights);
+		return builder.buildWeighted();
+	}
+}
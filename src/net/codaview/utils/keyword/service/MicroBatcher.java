@@ -0,0 +1,220 @@
+package net.codaview.utils.keyword.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * 把多个请求线程提交的短文本合并成一批，由少数几个工作线程一次处理。
+ *
+ * 请求线程调用{@link #submit(String)}后阻塞等待结果(虚拟线程阻塞时不占用平台线程)；
+ * 工作线程取出第一个请求后，把队列中已有的请求一起取出，最多maxBatch个，
+ * maxDelayNanos大于0时还会再等待这么长时间凑批。整批交给{@link #process(List)}，
+ * 过滤器对整批使用同一个版本和同一份扫描缓冲区。
+ * 负载低时每批只有一个请求，不增加延迟；负载高时批次自然变大，分摊每次调用的开销。
+ * </pre>
+ *
+ * @author lianxh
+ */
+abstract class MicroBatcher<R> {
+
+	private static final long POLL_MILLIS = 100;
+
+	private final BlockingQueue<Pending<R>> queue = new LinkedBlockingQueue<Pending<R>>();
+
+	private final int maxBatch;
+
+	private final long maxDelayNanos;
+
+	private final Thread[] workers;
+
+	private volatile boolean running = false;
+
+	private final AtomicLong batchCount = new AtomicLong();
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	/**
+	 * @param name
+	 *            工作线程的名字前缀
+	 * @param threads
+	 *            工作线程个数，扫描是CPU密集的，一般不超过CPU个数
+	 * @param maxBatch
+	 *            每批最多的请求个数
+	 * @param maxDelayNanos
+	 *            取到第一个请求后最多再等待多久凑批，0表示只合并已经在排队的请求
+	 */
+	MicroBatcher(String name, int threads, int maxBatch, long maxDelayNanos) {
+		if (threads < 1 || maxBatch < 1 || maxDelayNanos < 0) {
+			throw new IllegalArgumentException("工作线程个数和批大小必须大于0，等待时间不能小于0");
+		}
+		this.maxBatch = maxBatch;
+		this.maxDelayNanos = maxDelayNanos;
+		this.workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, name + "-" + i);
+			workers[i].setDaemon(true);
+		}
+	}
+
+	/**
+	 * 处理一批文本，返回的结果与texts按下标一一对应
+	 */
+	protected abstract List<R> process(List<String> texts);
+
+	void start() {
+		running = true;
+		for (Thread worker : workers) {
+			worker.start();
+		}
+	}
+
+	/**
+	 * 停止工作线程，还在排队的请求以IllegalStateException结束
+	 */
+	void stop() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		List<Pending<R>> rest = new ArrayList<Pending<R>>();
+		queue.drainTo(rest);
+		fail(rest, new IllegalStateException("服务已停止"));
+	}
+
+	/**
+	 * 提交一个文本并等待所在批次处理完
+	 *
+	 * @throws InterruptedException
+	 *             等待时被中断
+	 */
+	R submit(String text) throws InterruptedException {
+		if (!running) {
+			throw new IllegalStateException("服务已停止");
+		}
+		Pending<R> pending = new Pending<R>(text);
+		queue.add(pending);
+		// 与stop()交错时可能已经没有工作线程取这个请求
+		if (!running && queue.remove(pending)) {
+			throw new IllegalStateException("服务已停止");
+		}
+		pending.done.await();
+		if (null != pending.error) {
+			if (pending.error instanceof RuntimeException) {
+				throw (RuntimeException) pending.error;
+			}
+			throw (Error) pending.error;
+		}
+		return pending.result;
+	}
+
+	/**
+	 * 已处理的批次数
+	 */
+	long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * 已处理的请求数，除以批次数即平均批大小
+	 */
+	long getRequestCount() {
+		return requestCount.get();
+	}
+
+	private void work() {
+		List<Pending<R>> batch = new ArrayList<Pending<R>>(maxBatch);
+		List<String> texts = new ArrayList<String>(maxBatch);
+		while (running) {
+			try {
+				Pending<R> first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				if (null == first) {
+					continue;
+				}
+				batch.add(first);
+				collect(batch);
+			} catch (InterruptedException e) {
+				// stop()已经处理了排队的请求，这里只处理已经取出的
+				fail(batch, new IllegalStateException("服务已停止"));
+				return;
+			}
+
+			for (Pending<R> pending : batch) {
+				texts.add(pending.text);
+			}
+			try {
+				List<R> results = process(texts);
+				for (int i = 0; i < batch.size(); i++) {
+					Pending<R> pending = batch.get(i);
+					pending.result = results.get(i);
+					pending.done.countDown();
+				}
+			} catch (RuntimeException e) {
+				fail(batch, e);
+			} catch (Error e) {
+				fail(batch, e);
+			}
+			batchCount.incrementAndGet();
+			requestCount.addAndGet(batch.size());
+			batch.clear();
+			texts.clear();
+		}
+	}
+
+	private void collect(List<Pending<R>> batch) throws InterruptedException {
+		if (0 == maxDelayNanos) {
+			queue.drainTo(batch, maxBatch - batch.size());
+			return;
+		}
+		long deadline = System.nanoTime() + maxDelayNanos;
+		while (batch.size() < maxBatch) {
+			Pending<R> pending = queue.poll();
+			if (null == pending) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				pending = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				if (null == pending) {
+					break;
+				}
+			}
+			batch.add(pending);
+		}
+	}
+
+	private void fail(List<Pending<R>> batch, Throwable error) {
+		for (Pending<R> pending : batch) {
+			pending.error = error;
+			pending.done.countDown();
+		}
+	}
+
+	private static final class Pending<R> {
+
+		final String text;
+
+		final CountDownLatch done = new CountDownLatch(1);
+
+		/**
+		 * 在done.countDown()之前写入，await()返回后可见
+		 */
+		R result;
+
+		Throwable error;
+
+		Pending(String text) {
+			this.text = text;
+		}
+	}
+}
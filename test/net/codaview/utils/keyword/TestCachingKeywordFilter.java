@@ -0,0 +1,149 @@
+package net.codaview.utils.keyword;
+
+import java.util.Arrays;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestCachingKeywordFilter {
+
+	private final ReplaceStrategy strategy = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keyword) {
+			return "**";
+		}
+	};
+
+	private KeywordFilter build(String... keywords) {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList(keywords));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		return builder.buildDoubleArrayTrie();
+	}
+
+	@Test
+	public void testHitAndMiss() {
+		KeywordFilter raw = build("心情", "哈哈", "心事重重");
+		CachingKeywordFilter filter = new CachingKeywordFilter(raw);
+
+		String text = "心*情不好，哈哈，心事重 重";
+		for (int i = 0; i < 3; i++) {
+			Assert.assertEquals(raw.replace(text, strategy), filter.replace(text, strategy));
+			Assert.assertTrue(filter.hasKeywords(text));
+			Assert.assertFalse(filter.hasKeywords("天气真好"));
+		}
+		Assert.assertEquals(3, filter.getMissCount());
+		Assert.assertEquals(6, filter.getHitCount());
+		Assert.assertEquals(3, filter.size());
+
+		// 不同的ReplaceStrategy分别缓存
+		ReplaceStrategy other = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "##";
+			}
+		};
+		Assert.assertEquals(raw.replace(text, other), filter.replace(text, other));
+		Assert.assertEquals(4, filter.getMissCount());
+
+		Assert.assertEquals(Arrays.asList("天气", "**"), filter.replaceAll(Arrays.asList("天气", "哈哈"), strategy));
+		Assert.assertEquals(Arrays.asList("天气", "**"), filter.replaceAll(Arrays.asList("天气", "哈哈"), strategy));
+		Assert.assertEquals(6, filter.getMissCount());
+		Assert.assertEquals(8, filter.getHitCount());
+
+		filter.invalidateAll();
+		Assert.assertEquals(0, filter.size());
+		Assert.assertEquals(0, filter.weight());
+		Assert.assertTrue(filter.hasKeywords(text));
+		Assert.assertEquals(7, filter.getMissCount());
+	}
+
+	@Test
+	public void testReload() {
+		ReloadableKeywordFilter reloadable = new ReloadableKeywordFilter(build("心情"));
+		CachingKeywordFilter filter = new CachingKeywordFilter(reloadable);
+
+		Assert.assertFalse(filter.hasKeywords("哈哈"));
+		Assert.assertFalse(filter.hasKeywords("哈哈"));
+		Assert.assertEquals(1, filter.getHitCount());
+
+		// 换了词库后不再返回旧的结果
+		reloadable.reload(build("心情", "哈哈"));
+		Assert.assertTrue(filter.hasKeywords("哈哈"));
+		Assert.assertEquals("**", filter.replace("哈哈", strategy));
+		Assert.assertEquals(1, filter.getHitCount());
+		Assert.assertTrue(filter.hasKeywords("哈哈"));
+		Assert.assertEquals(2, filter.getHitCount());
+	}
+
+	@Test
+	public void testConcurrentReload() throws Exception {
+		final ReloadableKeywordFilter reloadable = new ReloadableKeywordFilter(build("心情"));
+		final CachingKeywordFilter filter = new CachingKeywordFilter(reloadable);
+		final KeywordFilter[] versions = new KeywordFilter[8];
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] = build("心情", "版本" + i);
+		}
+		final int rounds = 2000;
+		final CyclicBarrier barrier = new CyclicBarrier(4);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int id = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int round = 0; round < rounds; round++) {
+							barrier.await();
+							// 多个线程同时发现版本变化，各自切换缓存
+							reloadable.reload(versions[(round * 4 + id) % versions.length]);
+							filter.hasKeywords("文本" + round % 64);
+						}
+					} catch (Exception e) {
+						throw new IllegalStateException(e);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		// 并发切换之后，所有段都应使用最新的版本：第二遍全部命中
+		for (int i = 0; i < 256; i++) {
+			filter.hasKeywords("探测" + i);
+		}
+		long hits = filter.getHitCount();
+		for (int i = 0; i < 256; i++) {
+			filter.hasKeywords("探测" + i);
+		}
+		Assert.assertEquals(hits + 256, filter.getHitCount());
+	}
+
+	@Test
+	public void testEviction() {
+		KeywordFilter raw = build("心情", "哈哈");
+		long maxWeight = 16 * 1000;
+		CachingKeywordFilter filter = new CachingKeywordFilter(raw, maxWeight);
+
+		String hot = "今天心情不好，哈哈";
+		for (int i = 0; i < 10; i++) {
+			filter.replace(hot, strategy);
+		}
+		// 大量只出现一次的文本
+		for (int i = 0; i < 10000; i++) {
+			String text = "第" + i + "条消息";
+			Assert.assertEquals(raw.replace(text, strategy), filter.replace(text, strategy));
+			Assert.assertTrue(filter.weight() <= maxWeight);
+		}
+		Assert.assertTrue(filter.getEvictionCount() > 0);
+
+		// 常用的文本没有被挤出
+		long hits = filter.getHitCount();
+		filter.replace(hot, strategy);
+		Assert.assertEquals(hits + 1, filter.getHitCount());
+	}
+
+}
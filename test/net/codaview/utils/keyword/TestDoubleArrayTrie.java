@@ -0,0 +1,445 @@
+package net.codaview.utils.keyword;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDoubleArrayTrie {
+	
+	private List<String> keywords;
+
+	private String text;
+
+	@Before
+	public void setUp() throws IOException {
+		text = read("文章-12150字");
+		keywords = getKeywords("敏感词库-1063字");
+	}
+
+	@Test
+	public void testHasKeyword() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心情也好!"));
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心*情也好!"));
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心**情也好!"));
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心 情也好!"));
+		Assert.assertFalse("不包含关键字", filter.hasKeywords("天气真好!情也好!"));
+		Assert.assertFalse("不包含关键字", filter.hasKeywords("好天气!真心是好天气!"));
+		Assert.assertFalse("不包含关键字", filter.hasKeywords("天气真好!我们出门去玩吧。"));
+		Assert.assertFalse("不包含关键字", filter.hasKeywords("天气真好!心_情也好!"));
+	}
+
+	@Test
+	public void testSimpleReplace() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keywords) {
+				return "*";
+			}
+		};
+
+		Assert.assertEquals("大家的*都很好", filter.replace("大家的心情都很好", ss));
+		Assert.assertEquals("大家的心都很好", filter.replace("大家的心都很好", ss));
+	}
+
+	@Test
+	public void testSamePrefixReplace() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重", "心事重重"));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keywords) {
+				return "*";
+			}
+		};
+
+		Assert.assertEquals("毛人凤正*地在地毯上来回走着",
+				filter.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+	}
+
+	@Test
+	public void testSamePrefixReplaceWithSkipChar() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重", "心事重重"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keywords) {
+				return "*";
+			}
+		};
+
+		Assert.assertEquals("毛人凤正*地在地毯上来回走着",
+				filter.replace("毛人凤正心*事重重地在地毯上来回走着", ss));
+	}
+
+	@Test
+	public void testReplace() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keywords) {
+				return "文明用语";
+			}
+		};
+		Assert.assertEquals("天气真好!文明用语也好!", filter.replace("天气真好!心情也好!", ss));
+		Assert.assertEquals("文明用语", filter.replace("心情", ss));
+		Assert.assertEquals("文明用语", filter.replace("心*情", ss));
+		Assert.assertEquals("文明用语", filter.replace("心 情", ss));
+		Assert.assertEquals("我的文明用语不好", filter.replace("我的心 情不好", ss));
+	}
+	
+	@Test
+	public void testHighLight() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+		
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<font color='red'>" + keyword +  "</font>";
+			}
+		};
+		Assert.assertEquals("我的<font color='red'>心情</font>不好",
+				filter.replace("我的心 情不好", ss));
+	}
+
+	@Test
+	public void testCount() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		Assert.assertEquals(2, filter.count("心情好,好心情", "心情"));
+
+		String text2 = "无论你来自哪里，有什么兴趣爱好，都能在这里找到和你一样特别的人。";
+		Assert.assertEquals(1, filter.count(text2, "无论"));
+		Assert.assertEquals(2, filter.count(text2, "你"));
+		Assert.assertEquals(2, filter.count(text2, "里"));
+		Assert.assertEquals(1, filter.count(text2, "特别的人"));
+
+		String text = "老龙恼怒闹老农，老农恼怒闹老龙。农怒龙恼农更怒，龙恼农怒龙怕农 。";
+		Assert.assertEquals(2, filter.count(text, "老龙"));
+		Assert.assertEquals(5, filter.count(text, "龙"));
+		Assert.assertEquals(2, filter.count(text, "恼怒"));
+	}
+
+	@Test
+	public void testCountWithSkipChar() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		Assert.assertEquals(2, filter.count("心*情好,好心情", "心情"));
+		Assert.assertEquals(2, filter.count("心*情好,好心 情", "心情"));
+		Assert.assertEquals(1, filter.count("心*情好,好心 情", "心 情"));
+
+		Assert.assertEquals(0, filter.count("心*情好,好心 情", "心X情"));
+		Assert.assertEquals(0, filter.count("心*情好,好心 情", "心   情"));
+
+		Assert.assertEquals(1, filter.count("老*龙恼怒闹老农", "老龙"));
+		Assert.assertEquals(1, filter.count("老**龙恼怒闹老农", "老龙"));
+		Assert.assertEquals(1, filter.count("老       龙恼怒闹老农", "老龙"));
+		Assert.assertEquals(1, filter.count("老   *  龙恼怒闹老农", "老龙"));
+		Assert.assertEquals(1, filter.count("老龙恼怒闹老农", "恼怒"));
+	}
+	
+	@Test
+	public void testCountWithSamePrefix() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重", "心事重重"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		String text2 = "毛人凤正心事重重地在地毯上来回走着。";
+		Assert.assertEquals(1, filter.count(text2, "心事重重"));
+		Assert.assertEquals(1, filter.count(text2, "心事重"));
+		Assert.assertEquals(1, filter.count(text2, "心事"));
+		Assert.assertEquals(0, filter.count(text2, "毛毯"));
+	}
+	
+	@Test(timeout = 2500)
+	public void testLargeText() throws IOException {
+		// 临时创建一个唯一的关键词
+		final String uniqueWordHead = "关键词2" + System.currentTimeMillis();
+		keywords.add(0, uniqueWordHead);
+		final String uniqueWordTail = "关键词1" + System.currentTimeMillis();
+		keywords.add(uniqueWordTail);
+		// 构建过滤器
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-', '，'));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+		
+		Assert.assertTrue(keywords.size() > 1000);
+		Assert.assertTrue(text.length() > 10000);
+		Assert.assertTrue("之前不包含临时创建的关键词", text.indexOf(uniqueWordTail) == -1);
+
+		// 替换
+		final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		
+		String result = "";
+		String text = uniqueWordHead + this.text + uniqueWordTail;
+		for (int i = 0; i < 2000; i++) {
+			result = filter.replace(text, hightlightStrategy);
+		}
+		
+		Assert.assertTrue("替换成功", result.indexOf("<b>" + uniqueWordHead + "</b>") > -1);
+		Assert.assertTrue("替换成功", result.indexOf("<b>" + uniqueWordTail + "</b>") > -1);
+	}
+
+	@Test
+	public void testSameResultAsTrieTree() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-'));
+		KeywordFilter tree = builder.build();
+		KeywordFilter trie = builder.buildDoubleArrayTrie();
+
+		final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		Assert.assertEquals(tree.hasKeywords(text), trie.hasKeywords(text));
+		Assert.assertEquals(tree.replace(text, hightlightStrategy),
+				trie.replace(text, hightlightStrategy));
+		for (String keyword : keywords.subList(0, 100)) {
+			Assert.assertEquals(tree.count(text, keyword), trie.count(text, keyword));
+		}
+	}
+
+	@Test
+	public void testSnapshot() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-'));
+		DoubleArrayTrie trie = builder.buildDoubleArrayTrie();
+
+		Path path = Files.createTempFile("keyword", ".dat");
+		try {
+			trie.writeTo(path);
+			DoubleArrayTrie loaded = DoubleArrayTrie.load(path);
+
+			final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+				@Override
+				public String replaceWith(String keyword) {
+					return "<b>" + keyword + "</b>";
+				}
+			};
+			Assert.assertEquals(trie.replace(text, hightlightStrategy), loaded.replace(text, hightlightStrategy));
+			Assert.assertArrayEquals(trie.countAll(text), loaded.countAll(text));
+			Assert.assertEquals(trie.getKeywordCount(), loaded.getKeywordCount());
+			Assert.assertEquals(trie.getKeyword(10), loaded.getKeyword(10));
+			// 跳过字符也保存在快照中
+			Assert.assertTrue(loaded.hasKeywords("天气真好!" + keywords.get(0).charAt(0) + "*"
+					+ keywords.get(0).substring(1)));
+
+			// 写出的内容与原快照一致
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			loaded.writeTo(out);
+			Assert.assertArrayEquals(Files.readAllBytes(path), out.toByteArray());
+			Assert.assertEquals(trie.replace(text, hightlightStrategy),
+					DoubleArrayTrie.load(new ByteArrayInputStream(out.toByteArray())).replace(text, hightlightStrategy));
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testParallelCompile() throws IOException {
+		List<String> all = new ArrayList<String>(keywords);
+		// 足够多的关键字使每层的节点多于并行的阈值，并带有规范化后重复的关键字
+		Random random = new Random(20);
+		for (int i = 0; i < 30000; i++) {
+			StringBuilder sb = new StringBuilder();
+			for (int j = 2 + random.nextInt(5); j > 0; j--) {
+				sb.append((char) ('一' + random.nextInt(500)));
+			}
+			all.add(sb.toString());
+		}
+		all.addAll(Arrays.asList("abc", "ABC", "Ａbc", "bcd"));
+		CharNormalizer normalizer = new CharNormalizer();
+		normalizer.addFullWidthFolding();
+		normalizer.addCaseFolding();
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(all);
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		builder.setNormalizer(normalizer);
+
+		TrieTree sequential = (TrieTree) builder.build();
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		builder.buildDoubleArrayTrie().writeTo(expected);
+
+		builder.setCompilePool(new ForkJoinPool(4));
+		TrieTree parallel = (TrieTree) builder.build();
+		Assert.assertEquals(sequential.keywords(), parallel.keywords());
+		TrieNode[] a = sequential.states();
+		TrieNode[] b = parallel.states();
+		Assert.assertEquals(a.length, b.length);
+		for (int i = 1; i < a.length; i++) {
+			Assert.assertEquals(a[i].getKeywordId(), b[i].getKeywordId());
+			Assert.assertEquals(a[i].getDepth(), b[i].getDepth());
+			Assert.assertEquals(a[i].getFail().getId(), b[i].getFail().getId());
+			Assert.assertEquals(null == a[i].getOutputLink() ? -1 : a[i].getOutputLink().getId(),
+					null == b[i].getOutputLink() ? -1 : b[i].getOutputLink().getId());
+			Assert.assertEquals(new String(a[i].keys()), new String(b[i].keys()));
+		}
+		// 双数组逐字节相同
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		builder.buildDoubleArrayTrie().writeTo(actual);
+		Assert.assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	@Test
+	public void testSnapshotWithNormalizer() throws IOException {
+		CharNormalizer normalizer = new CharNormalizer();
+		normalizer.addFullWidthFolding();
+		normalizer.addCaseFolding();
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("abc", "心情"));
+		builder.setSkipChars(Arrays.asList('*'));
+		builder.setNormalizer(normalizer);
+
+		Path path = Files.createTempFile("keyword", ".dat");
+		try {
+			builder.buildDoubleArrayTrie().writeTo(path);
+			for (KeywordFilter loaded : new KeywordFilter[] { DoubleArrayTrie.load(path),
+					MappedDoubleArrayTrie.open(path) }) {
+				// 规范化表保存在快照中，全角的跳过字符也被跳过
+				Assert.assertTrue(loaded.hasKeywords("ＡＢＣ"));
+				Assert.assertTrue(loaded.hasKeywords("心＊情"));
+				Assert.assertFalse(loaded.hasKeywords("ＡＢ"));
+				Assert.assertEquals("x**y", loaded.replace("xAｂCy", new ReplaceStrategy() {
+					@Override
+					public String replaceWith(String keyword) {
+						return "**";
+					}
+				}));
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testLoadInvalidSnapshot() throws IOException {
+		DoubleArrayTrie.load(new ByteArrayInputStream("not a snapshot".getBytes()));
+	}
+
+	@Test
+	public void testLoadCorruptSnapshot() throws IOException {
+		DoubleArrayTrie trie = new DoubleArrayTrie();
+		for (String keyword : Arrays.asList("他们", "她们", "们", "他们好")) {
+			trie.add(keyword);
+		}
+		trie.compile();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		trie.writeTo(out);
+		byte[] snapshot = out.toByteArray();
+		int size = trie.capacity();
+		int states = statesOffset(snapshot);
+		int offsets = states + 4 * 6 * size + 4;
+
+		List<int[]> corruptions = new ArrayList<int[]>();
+		for (int s = 0; s < size; s++) {
+			// 失败指针、关键字编号、输出链接越界，失败指针指向自己
+			corruptions.add(new int[] { states + 4 * (2 * size + s), size });
+			corruptions.add(new int[] { states + 4 * (3 * size + s), 4 });
+			corruptions.add(new int[] { states + 4 * (4 * size + s), size });
+			if (s != 0 && trie.depth(s) > 0) {
+				corruptions.add(new int[] { states + 4 * (2 * size + s), s });
+			}
+		}
+		// 关键字的起点越界
+		corruptions.add(new int[] { offsets + 4, 100 });
+		for (int[] corruption : corruptions) {
+			byte[] bytes = snapshot.clone();
+			ByteBuffer.wrap(bytes).putInt(corruption[0], corruption[1]);
+			try {
+				DoubleArrayTrie.load(new ByteArrayInputStream(bytes));
+				Assert.fail("损坏的快照应加载失败: " + Arrays.toString(corruption));
+			} catch (IOException e) {
+				Assert.assertEquals("快照文件已损坏", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * 快照中base等状态数组的起点
+	 */
+	static int statesOffset(byte[] snapshot) {
+		ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+		buffer.position(8);
+		// 跳过字符、规范化映射的两段、字符表
+		for (int i = 0; i < 4; i++) {
+			int n = buffer.getInt();
+			buffer.position(buffer.position() + 2 * n);
+		}
+		return buffer.position() + 4;
+	}
+
+	private List<String> getKeywords(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		
+		List<String> keywords = new LinkedList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			keywords.add(line);
+		}
+		return keywords;
+	}
+
+	private String read(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,160 @@
+package net.codaview.utils.keyword;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestIncrementalKeywordFilter {
+
+	private final ReplaceStrategy ss = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keywords) {
+			return "*";
+		}
+	};
+
+	@Test
+	public void testAddAndRemove() {
+		IncrementalKeywordFilter filter = new IncrementalKeywordFilter(Arrays.asList("心事", "心事重"),
+				Arrays.asList('*', ' '), null);
+		Assert.assertEquals("毛人凤正*重地在地毯上来回走着", filter.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+
+		// 新增的关键字与基础词库中的关键字共享前缀，仍然是最左最长匹配
+		Assert.assertTrue(filter.add("心事重重"));
+		Assert.assertFalse(filter.add("心事重重"));
+		Assert.assertEquals("毛人凤正*地在地毯上来回走着", filter.replace("毛人凤正心*事重重地在地毯上来回走着", ss));
+		Assert.assertTrue(filter.add("地毯"));
+		Assert.assertEquals("毛人凤正*地在*上来回走着", filter.replace("毛人凤正心事重重地在地 毯上来回走着", ss));
+		Assert.assertEquals(4, filter.getKeywordCount());
+		Assert.assertEquals(2, filter.getPendingChanges());
+
+		// 删除基础词库和增量中的关键字
+		Assert.assertTrue(filter.remove("心事重重"));
+		Assert.assertTrue(filter.remove("心事重"));
+		Assert.assertFalse(filter.remove("心事重"));
+		Assert.assertEquals("毛人凤正*重重地在*上来回走着", filter.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+		Assert.assertEquals(1, filter.count("毛人凤正心事重重地在地毯上来回走着", "心事重"));
+		Assert.assertTrue(filter.hasKeywords("心 事"));
+
+		// 恢复已删除的关键字
+		Assert.assertTrue(filter.add("心事重"));
+		Assert.assertEquals("毛人凤正*重地在*上来回走着", filter.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+
+		filter.compact();
+		Assert.assertEquals(0, filter.getPendingChanges());
+		Assert.assertEquals(3, filter.getKeywordCount());
+		Assert.assertEquals("毛人凤正*重地在*上来回走着", filter.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+	}
+
+	@Test
+	public void testCountAllWithDelta() {
+		IncrementalKeywordFilter filter = new IncrementalKeywordFilter(Arrays.asList("老龙", "恼怒"), null, null);
+		filter.add("龙");
+		filter.remove("恼怒");
+		KeywordFilter current = filter.current();
+		int[] counts = current.countAll("老龙恼怒闹老农，老农恼怒闹老龙。");
+		Assert.assertEquals(3, counts.length);
+		Assert.assertEquals("龙", current.getKeyword(2));
+		Assert.assertArrayEquals(new int[] { 2, 0, 2 }, counts);
+	}
+
+	@Test(timeout = 10000)
+	public void testBackgroundCompact() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			IncrementalKeywordFilter filter = new IncrementalKeywordFilter(Arrays.asList("关键字0"), null, executor);
+			filter.setCompactThreshold(10);
+			for (int i = 1; i < 100; i++) {
+				filter.add("关键字" + i);
+			}
+			// 等待后台重新编译
+			while (filter.getPendingChanges() >= 10) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(100, filter.getKeywordCount());
+			for (int i = 0; i < 100; i++) {
+				Assert.assertTrue(filter.hasKeywords("这是关键字" + i));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 5000)
+	public void testManyAddsWithoutCompact() {
+		// 基础词库的状态数乘以增量字典树的节点数远超int范围，增量仍然只追加，不会同步重新编译
+		List<String> keywords = new ArrayList<String>();
+		for (int i = 0; i < 20000; i++) {
+			keywords.add("基础" + i);
+		}
+		IncrementalKeywordFilter filter = new IncrementalKeywordFilter(keywords, Arrays.asList('*'), null);
+		filter.setCompactThreshold(Integer.MAX_VALUE);
+		for (int i = 0; i < 5000; i++) {
+			filter.add("增量" + i + "号");
+		}
+		Assert.assertEquals(5000, filter.getPendingChanges());
+		Assert.assertEquals(25000, filter.getKeywordCount());
+		for (int i = 0; i < 5000; i += 7) {
+			Assert.assertTrue(filter.hasKeywords("这是增*量" + i + "号"));
+			Assert.assertEquals("这是*和*", filter.replace("这是基础" + i + "和增量" + i + "号", ss));
+		}
+		Assert.assertFalse(filter.hasKeywords("增量5000号"));
+	}
+
+	@Test(timeout = 60000)
+	public void testChangesDuringCompact() throws Exception {
+		List<String> keywords = new ArrayList<String>();
+		for (int i = 0; i < 20000; i++) {
+			keywords.add("基础" + i);
+		}
+		final IncrementalKeywordFilter filter = new IncrementalKeywordFilter(keywords, null, null);
+		filter.setCompactThreshold(Integer.MAX_VALUE);
+		filter.remove("基础0");
+		Thread compactor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				filter.compact();
+			}
+		});
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		// 已返回的增删操作在重新编译的任何时刻都保持生效
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!done.get() && null == failure.get()) {
+					int n = added.get();
+					for (int i = 0; i < n; i++) {
+						if (!filter.hasKeywords("增量" + i + "号") || filter.hasKeywords("基础1号")) {
+							failure.set("第" + i + "个");
+						}
+					}
+				}
+			}
+		});
+		compactor.start();
+		reader.start();
+		for (int i = 0; compactor.isAlive() || i < 2000; i++) {
+			filter.add("增量" + i + "号");
+			if (i == 0) {
+				filter.remove("基础1");
+			}
+			added.set(i + 1);
+		}
+		compactor.join();
+		filter.compact();
+		done.set(true);
+		reader.join();
+		Assert.assertNull(failure.get());
+		Assert.assertFalse(filter.hasKeywords("基础0"));
+	}
+}
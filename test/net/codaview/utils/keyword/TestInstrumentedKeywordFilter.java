@@ -0,0 +1,93 @@
+package net.codaview.utils.keyword;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import net.codaview.utils.keyword.KeywordFilterMetrics.Operation;
+import net.codaview.utils.keyword.KeywordFilterMetrics.Snapshot;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestInstrumentedKeywordFilter {
+
+	private final ReplaceStrategy strategy = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keyword) {
+			return "**";
+		}
+	};
+
+	@Test
+	public void testMetrics() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情", "哈哈", "心事重重"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter raw = builder.buildDoubleArrayTrie();
+		// 每次调用都抽样
+		InstrumentedKeywordFilter filter = new InstrumentedKeywordFilter(raw, new KeywordFilterMetrics(), 1);
+
+		String text = "心*情不好，哈哈，心事重 重，哈哈";
+		Assert.assertEquals(raw.replace(text, strategy), filter.replace(text, strategy));
+		Assert.assertTrue(filter.hasKeywords(text));
+		Assert.assertFalse(filter.hasKeywords("天气真好"));
+		Assert.assertEquals(2, filter.count(text, "哈哈"));
+		StringWriter writer = new StringWriter();
+		filter.replace(new StringReader(text), writer, strategy);
+		Assert.assertEquals(raw.replace(text, strategy), writer.toString());
+		Assert.assertEquals(Arrays.asList("天气", "**"), filter.replaceAll(Arrays.asList("天气", "哈哈"), strategy));
+
+		Snapshot snapshot = filter.getMetrics().snapshot();
+		Assert.assertEquals(1, snapshot.getScanCount(Operation.REPLACE));
+		Assert.assertEquals(2, snapshot.getScanCount(Operation.HAS_KEYWORDS));
+		Assert.assertEquals(1, snapshot.getScanCount(Operation.COUNT));
+		Assert.assertEquals(1, snapshot.getScanCount(Operation.STREAM_REPLACE));
+		Assert.assertEquals(1, snapshot.getScanCount(Operation.BATCH_REPLACE));
+		Assert.assertEquals(6, snapshot.getScanCount());
+		Assert.assertEquals(4 * text.length() + "天气真好".length() + "天气哈哈".length(), snapshot.getCharsScanned());
+
+		// replace、流式replace、replaceAll中的匹配
+		Assert.assertEquals(9, snapshot.getMatchCount());
+		Assert.assertEquals(Long.valueOf(5), snapshot.getKeywordMatches().get("哈哈"));
+		Assert.assertEquals(Long.valueOf(2), snapshot.getKeywordMatches().get("心情"));
+		Assert.assertEquals(Long.valueOf(2), snapshot.getKeywordMatches().get("心事重重"));
+
+		long calls = 0;
+		for (long n : snapshot.getLatencyHistogram(Operation.HAS_KEYWORDS)) {
+			calls += n;
+		}
+		Assert.assertEquals(2, calls);
+		Assert.assertTrue(snapshot.getLatencyPercentile(Operation.HAS_KEYWORDS, 50) > 0);
+		Assert.assertEquals(0, snapshot.getLatencyPercentile(Operation.MATCH, 99));
+
+		// 抽样了replace和两次hasKeywords，每个非跳过字符一次转移
+		long transitions = 0;
+		for (long n : snapshot.getFailDepthHistogram()) {
+			transitions += n;
+		}
+		Assert.assertEquals(2 * (text.length() - 2) + "天气真好".length(), transitions);
+	}
+
+	@Test
+	public void testMatch() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重重", "事重"));
+		final InstrumentedKeywordFilter filter = new InstrumentedKeywordFilter(builder.build());
+
+		final StringBuilder sb = new StringBuilder();
+		filter.match("心事重重，事重", MatchMode.OVERLAPPING, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				sb.append(filter.getKeyword(keywordId)).append(' ');
+				return true;
+			}
+		});
+		Assert.assertEquals("心事 事重 心事重重 事重 ", sb.toString());
+		Snapshot snapshot = filter.getMetrics().snapshot();
+		Assert.assertEquals(1, snapshot.getScanCount(Operation.MATCH));
+		Assert.assertEquals(4, snapshot.getMatchCount());
+		Assert.assertEquals(Long.valueOf(2), snapshot.getKeywordMatches().get("事重"));
+	}
+}
@@ -1,10 +1,18 @@
 package net.codaview.utils.keyword;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -183,6 +191,29 @@ public class TestKeywordFilter {
 		Assert.assertEquals(0, filter.count(text2, "毛毯"));
 	}
 	
+	@Test
+	public void testCountAll() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-', '，'));
+		KeywordFilter filter = builder.build();
+
+		int[] counts = filter.countAll(text);
+		Assert.assertEquals(filter.getKeywordCount(), counts.length);
+		for (int id = 0; id < counts.length; id++) {
+			Assert.assertEquals(filter.getKeyword(id), filter.count(text, filter.getKeyword(id)), counts[id]);
+		}
+
+		builder.setKeywords(Arrays.asList("老龙", "龙", "恼怒", "哈哈"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		filter = builder.build();
+		counts = filter.countAll("老*龙恼怒闹老农，老农恼怒闹老 龙。农怒龙恼农更怒，龙恼农怒龙怕农 。");
+		Assert.assertArrayEquals(new int[] { 2, 5, 2, 0 }, counts);
+		// 同一关键字的多次出现互不重叠
+		Assert.assertEquals(2, filter.count("哈哈哈哈哈", "哈哈"));
+		Assert.assertEquals(2, filter.countAll("哈哈哈哈哈")[3]);
+	}
+
 	@Test(timeout = 2500)
 	public void testLargeText() throws IOException {
 		// 临时创建一个唯一的关键词
@@ -218,6 +249,230 @@ public class TestKeywordFilter {
 		Assert.assertTrue("替换成功", result.indexOf("<b>" + uniqueWordTail + "</b>") > -1);
 	}
 
+	@Test
+	public void testDeterministicCompile() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-'));
+		KeywordFilter filter = builder.build();
+		builder.setDeterministic(true);
+		KeywordFilter dfa = builder.build();
+
+		final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		Assert.assertEquals(filter.hasKeywords(text), dfa.hasKeywords(text));
+		Assert.assertEquals(filter.replace(text, hightlightStrategy),
+				dfa.replace(text, hightlightStrategy));
+	}
+
+	@Test
+	public void testDeterministicRepeatedPrefix() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("aaaaaaaab", "aab", "ab"));
+		builder.setDeterministic(true);
+		KeywordFilter filter = builder.build();
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append('a');
+		}
+		Assert.assertFalse(filter.hasKeywords(sb.toString()));
+		sb.append('b');
+		Assert.assertTrue(filter.hasKeywords(sb.toString()));
+		Assert.assertTrue(filter.hasKeywords("xaby"));
+	}
+
+	@Test
+	public void testReplaceCharSequence() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.build();
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keywords) {
+				return "*";
+			}
+		};
+		// 不包含关键字时返回原对象
+		String clean = "天气真好!心_情也好!";
+		Assert.assertSame(clean, filter.replace(clean, ss));
+		CharBuffer buffer = CharBuffer.wrap("天气真好!我们出门去玩吧。");
+		Assert.assertSame(buffer, filter.replace(buffer, ss));
+
+		Assert.assertEquals("天气真好!*也好!",
+				filter.replace(CharBuffer.wrap("天气真好!心 情也好!"), ss).toString());
+
+		StringBuilder out = new StringBuilder("> ");
+		Assert.assertTrue(filter.replace(new StringBuilder("我的心*情不好"), out, ss));
+		Assert.assertEquals("> 我的*不好", out.toString());
+		out.setLength(0);
+		Assert.assertFalse(filter.replace("我的心_情不好", out, ss));
+		Assert.assertEquals("我的心_情不好", out.toString());
+
+		StringWriter writer = new StringWriter();
+		Assert.assertTrue(filter.replace("心情心情", (Appendable) writer, ss));
+		Assert.assertEquals("**", writer.toString());
+	}
+
+	@Test
+	public void testStreamHasKeywords() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.build();
+
+		// 每次只读入1个字符，关键字必然跨越缓冲区
+		Assert.assertTrue(filter.hasKeywords(chunked("天气真好!心**情也好!", 1)));
+		Assert.assertFalse(filter.hasKeywords(chunked("天气真好!心_情也好!", 1)));
+	}
+
+	@Test
+	public void testStreamReplace() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-', '，'));
+		KeywordFilter filter = builder.build();
+
+		final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		String expected = filter.replace(text, hightlightStrategy);
+		for (int size : new int[] { 1, 3, 7, 8192 }) {
+			StringWriter writer = new StringWriter();
+			filter.replace(chunked(text, size), writer, hightlightStrategy);
+			Assert.assertEquals(expected, writer.toString());
+		}
+
+		builder.setKeywords(Arrays.asList("心事", "心事重", "心事重重"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		filter = builder.build();
+		StringWriter writer = new StringWriter();
+		filter.replace(chunked("毛人凤正心*事重重地在地毯上来回走着", 2), writer, new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "*";
+			}
+		});
+		Assert.assertEquals("毛人凤正*地在地毯上来回走着", writer.toString());
+	}
+
+	@Test
+	public void testMatch() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重重", "事重"));
+		builder.setSkipChars(Arrays.asList('*'));
+		KeywordFilter filter = builder.build();
+		String text = "他心*事重重";
+
+		Assert.assertEquals("[1-4:0, 3-5:2, 1-6:1]", match(filter, text, MatchMode.OVERLAPPING));
+		Assert.assertEquals("[1-6:1]", match(filter, text, MatchMode.LEFTMOST_LONGEST));
+		Assert.assertEquals("[1-4:0]", match(filter, text, MatchMode.LEFTMOST_FIRST));
+		Assert.assertEquals("心事重重", filter.getKeyword(1));
+		Assert.assertEquals(3, filter.getKeywordCount());
+
+		// 返回false时停止匹配
+		final List<Integer> ids = new LinkedList<Integer>();
+		filter.match("心事，事重", MatchMode.OVERLAPPING, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				ids.add(keywordId);
+				return false;
+			}
+		});
+		Assert.assertEquals(Arrays.asList(0), ids);
+	}
+
+	@Test
+	public void testBatch() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情", "哈哈", "心事重重"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		ReplaceStrategy strategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "**";
+			}
+		};
+		List<String> texts = Arrays.asList("天气真好!", "心*情也好!", "", "心事重 重，哈哈", "心事");
+		for (KeywordFilter filter : new KeywordFilter[] { builder.build(), builder.buildDoubleArrayTrie() }) {
+			BitSet expected = new BitSet();
+			List<String> replaced = new ArrayList<String>();
+			for (int i = 0; i < texts.size(); i++) {
+				expected.set(i, filter.hasKeywords(texts.get(i)));
+				replaced.add(filter.replace(texts.get(i), strategy));
+			}
+			Assert.assertEquals(expected, filter.hasKeywords(texts));
+			Assert.assertEquals(expected, filter.hasKeywords(new LinkedList<CharSequence>(texts)));
+			Assert.assertEquals(replaced, filter.replaceAll(texts, strategy));
+			Assert.assertEquals(Arrays.asList("**也好!", "", "**，**"), filter.replaceAll(texts.subList(1, 4), strategy));
+			// 不包含关键字的文本原样返回
+			Assert.assertSame(texts.get(0), filter.replaceAll(texts, strategy).get(0));
+			Assert.assertTrue(filter.hasKeywords(new ArrayList<String>()).isEmpty());
+		}
+	}
+
+	@Test
+	public void testNormalizer() throws IOException {
+		CharNormalizer normalizer = new CharNormalizer();
+		normalizer.addFullWidthFolding();
+		normalizer.addCaseFolding();
+		normalizer.addMappings(new StringReader("# 繁简转换\n萬\t万\n與 与 與\n"));
+		Assert.assertEquals("abc万与", normalizer.normalize("ＡbＣ萬與"));
+
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("abc", "万事如意"));
+		builder.setSkipChars(Arrays.asList('*'));
+		builder.setNormalizer(normalizer);
+		ReplaceStrategy strategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "[" + keyword + "]";
+			}
+		};
+		for (KeywordFilter filter : new KeywordFilter[] { builder.build(), builder.buildDoubleArrayTrie() }) {
+			Assert.assertTrue(filter.hasKeywords("ＡＢＣ"));
+			Assert.assertTrue(filter.hasKeywords("萬事＊如意"));
+			Assert.assertFalse(filter.hasKeywords("ＡＢ"));
+			// 改写的是原文本中对应位置的字符，其余字符保持原样
+			Assert.assertEquals("Ｘ[abc]Ｙ[万事如意]Ｚ", filter.replace("ＸａBｃＹ萬事*如意Ｚ", strategy));
+			Assert.assertEquals(2, filter.count("ABC，ａｂｃ", "aBc"));
+			Assert.assertEquals("[1-4:0]", match(filter, "ＸａBｃＹ", MatchMode.LEFTMOST_LONGEST));
+		}
+	}
+
+	private String match(KeywordFilter filter, String text, MatchMode mode) {
+		final List<String> spans = new LinkedList<String>();
+		filter.match(text, mode, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				spans.add(start + "-" + end + ":" + keywordId);
+				return true;
+			}
+		});
+		return spans.toString();
+	}
+
+	/**
+	 * 每次最多只读出size个字符的Reader
+	 */
+	private Reader chunked(String text, final int size) {
+		return new StringReader(text) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, size));
+			}
+		};
+	}
+
 	private List<String> getKeywords(String fileName) throws IOException {
 		InputStream is = this.getClass().getResourceAsStream(fileName);
 		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
@@ -242,4 +497,89 @@ public class TestKeywordFilter {
 		return sb.toString();
 	}
 
+	@Test
+	public void testSkipAhead() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		// “情”既是关键字的首字符，也在另一个关键字中间
+		builder.setKeywords(Arrays.asList("心情", "情人节"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		StringBuilder clean = new StringBuilder();
+		for (int i = 0; i < AbstractKeywordFilter.BUFFER_SIZE - 1; i++) {
+			clean.append("今天天气不错".charAt(i % 6));
+		}
+		for (KeywordFilter filter : new KeywordFilter[] { builder.build(), builder.buildDoubleArrayTrie() }) {
+			Assert.assertFalse(filter.hasKeywords(clean.toString()));
+			Assert.assertTrue(filter.hasKeywords(clean + "心 情"));
+			Assert.assertTrue(filter.hasKeywords(clean + "心情人节"));
+			// 跨缓冲区的关键字
+			Assert.assertTrue(filter.hasKeywords(new StringReader(clean + "情*人节")));
+			Assert.assertFalse(filter.hasKeywords(new StringReader(clean + "情*人")));
+			Assert.assertEquals(clean + "**", filter.replace(clean + "心情", new ReplaceStrategy() {
+				@Override
+				public String replaceWith(String keyword) {
+					return "**";
+				}
+			}));
+		}
+	}
+
+	@Test
+	public void testAllowedPhrase() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("乌鲁", "木齐", "乌鲁木齐市长"));
+		builder.setAllowedPhrases(Arrays.asList("乌鲁木齐"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		ReplaceStrategy stars = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "**";
+			}
+		};
+		DoubleArrayTrie trie = builder.buildDoubleArrayTrie();
+		ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+		trie.writeTo(snapshot);
+		for (KeywordFilter filter : new KeywordFilter[] { builder.build(), trie,
+				DoubleArrayTrie.load(new ByteArrayInputStream(snapshot.toByteArray())) }) {
+			Assert.assertEquals(3, filter.getKeywordCount());
+			Assert.assertEquals("去乌鲁木齐的**", filter.replace("去乌鲁木齐的木齐", stars));
+			Assert.assertEquals("乌鲁 木齐", filter.replace("乌鲁 木齐", stars));
+			Assert.assertEquals("比他大的**", filter.replace("比他大的乌鲁木齐市长", stars));
+			Assert.assertFalse(filter.hasKeywords("去乌鲁*木齐"));
+			Assert.assertTrue(filter.hasKeywords("去乌鲁*木齐，木齐"));
+			Assert.assertFalse(filter.hasKeywords(new StringReader("去乌鲁木齐")));
+			Assert.assertTrue(filter.hasKeywords(new StringReader("去乌鲁")));
+
+			// 最左优先时允许短语也优先于它覆盖的关键字
+			final List<String> spans = new ArrayList<String>();
+			MatchListener listener = new MatchListener() {
+				@Override
+				public boolean onMatch(int start, int end, int keywordId) {
+					spans.add(start + "-" + end + ":" + keywordId);
+					return true;
+				}
+			};
+			filter.match("乌鲁木齐乌鲁", MatchMode.LEFTMOST_FIRST, listener);
+			Assert.assertEquals("[4-6:0]", spans.toString());
+
+			// 重叠匹配和统计报告关键字的全部出现，不包括允许短语
+			spans.clear();
+			filter.match("乌鲁木齐", MatchMode.OVERLAPPING, listener);
+			Assert.assertEquals("[0-2:0, 2-4:1]", spans.toString());
+			Assert.assertEquals("[1, 1, 0]", Arrays.toString(filter.countAll("乌鲁木齐")));
+		}
+	}
+
+	@Test
+	public void testCompileTwice() {
+		TrieTree tree = new TrieTree();
+		tree.add("乌鲁");
+		tree.add("木齐");
+		tree.addAllowedPhrase("乌鲁木齐");
+		tree.compile();
+		tree.compile();
+		Assert.assertEquals(2, tree.getKeywordCount());
+		Assert.assertFalse(tree.hasKeywords("去乌鲁木齐"));
+		Assert.assertTrue(tree.hasKeywords("去乌鲁"));
+	}
+
 }
@@ -0,0 +1,149 @@
+package net.codaview.utils.keyword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedDoubleArrayTrie {
+
+	private List<String> keywords;
+
+	private String text;
+
+	private Path file;
+
+	@Before
+	public void setUp() throws IOException {
+		text = read("文章-12150字");
+		keywords = getKeywords("敏感词库-1063字");
+		file = Files.createTempFile("keyword", ".dat");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Test
+	public void testHasKeyword() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情"));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		KeywordFilter filter = builder.buildMapped(file);
+
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心情也好!"));
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心*情也好!"));
+		Assert.assertTrue("包含关键字", filter.hasKeywords("天气真好!心 情也好!"));
+		Assert.assertFalse("不包含关键字", filter.hasKeywords("天气真好!情也好!"));
+		Assert.assertFalse("不包含关键字", filter.hasKeywords("天气真好!心_情也好!"));
+	}
+
+	@Test
+	public void testSameResultAsDoubleArrayTrie() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-'));
+		KeywordFilter trie = builder.buildDoubleArrayTrie();
+		KeywordFilter mapped = builder.buildMapped(file);
+
+		final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		Assert.assertEquals(trie.hasKeywords(text), mapped.hasKeywords(text));
+		Assert.assertEquals(trie.replace(text, hightlightStrategy), mapped.replace(text, hightlightStrategy));
+		Assert.assertArrayEquals(trie.countAll(text), mapped.countAll(text));
+		Assert.assertEquals(trie.getKeywordCount(), mapped.getKeywordCount());
+		for (int id = 0; id < trie.getKeywordCount(); id++) {
+			Assert.assertEquals(trie.getKeyword(id), mapped.getKeyword(id));
+		}
+
+		StringWriter writer = new StringWriter();
+		mapped.replace(new StringReader(text), writer, hightlightStrategy);
+		Assert.assertEquals(trie.replace(text, hightlightStrategy), writer.toString());
+	}
+
+	@Test
+	public void testOpenSharedFile() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重", "心事重重"));
+		builder.buildDoubleArrayTrie().writeTo(file);
+
+		// 同一个文件可以被多次映射
+		KeywordFilter first = MappedDoubleArrayTrie.open(file);
+		KeywordFilter second = MappedDoubleArrayTrie.open(file);
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "*";
+			}
+		};
+		Assert.assertEquals("毛人凤正*地在地毯上来回走着", first.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+		Assert.assertEquals("毛人凤正*地在地毯上来回走着", second.replace("毛人凤正心事重重地在地毯上来回走着", ss));
+	}
+
+	@Test(expected = IOException.class)
+	public void testOpenTruncatedFile() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.buildDoubleArrayTrie().writeTo(file);
+		byte[] bytes = Files.readAllBytes(file);
+		Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+
+		MappedDoubleArrayTrie.open(file);
+	}
+
+	@Test(expected = IOException.class)
+	public void testOpenCorruptFile() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		DoubleArrayTrie trie = builder.buildDoubleArrayTrie();
+		trie.writeTo(file);
+		byte[] bytes = Files.readAllBytes(file);
+		// 第一个状态的失败指针越界
+		ByteBuffer.wrap(bytes).putInt(TestDoubleArrayTrie.statesOffset(bytes) + 4 * 2 * trie.capacity(), -5);
+		Files.write(file, bytes);
+
+		MappedDoubleArrayTrie.open(file);
+	}
+
+	private List<String> getKeywords(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		List<String> keywords = new LinkedList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			keywords.add(line);
+		}
+		return keywords;
+	}
+
+	private String read(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,135 @@
+package net.codaview.utils.keyword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestParallelKeywordFilter {
+
+	private List<String> keywords;
+
+	private String text;
+
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+
+	@Before
+	public void setUp() throws IOException {
+		text = read("文章-12150字");
+		keywords = getKeywords("敏感词库-1063字");
+	}
+
+	@Test
+	public void testSameResultAsSequential() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-', '，'));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		final ReplaceStrategy hightlightStrategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		String expected = filter.replace(text, hightlightStrategy);
+		for (int chunkSize : new int[] { 1, 7, 100, 1000 }) {
+			KeywordFilter parallel = new ParallelKeywordFilter(filter, pool, chunkSize);
+			Assert.assertEquals(expected, parallel.replace(text, hightlightStrategy));
+			Assert.assertEquals(filter.hasKeywords(text), parallel.hasKeywords(text));
+			Assert.assertTrue(parallel.hasKeywords(text + keywords.get(0)));
+		}
+	}
+
+	@Test
+	public void testMatchAcrossChunks() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心事", "心事重重", "事重"));
+		builder.setSkipChars(Arrays.asList('*'));
+		KeywordFilter filter = new ParallelKeywordFilter(builder.build(), pool, 2);
+
+		// 跳过字符使匹配跨越了多个块
+		final List<String> spans = new LinkedList<String>();
+		filter.match("他心****事重重，心事", MatchMode.LEFTMOST_LONGEST, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				spans.add(start + "-" + end + ":" + keywordId);
+				return true;
+			}
+		});
+		Assert.assertEquals("[1-9:1, 10-12:0]", spans.toString());
+		Assert.assertTrue(filter.hasKeywords("他心****事"));
+		Assert.assertFalse(filter.hasKeywords("他心**，事，重心*"));
+		Assert.assertEquals("他*，*", filter.replace("他心***事重重，心*事", new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "*";
+			}
+		}));
+	}
+
+	@Test
+	public void testBatch() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(keywords);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-', '，'));
+		KeywordFilter filter = builder.buildDoubleArrayTrie();
+
+		// 把文章切成长短不一的消息，部分消息末尾加上关键字
+		List<String> texts = new ArrayList<String>();
+		for (int i = 0, n = 0; i < text.length(); n++) {
+			int end = Math.min(text.length(), i + 1 + n % 50);
+			texts.add(n % 3 == 0 ? text.substring(i, end) + keywords.get(n % keywords.size()) : text.substring(i, end));
+			i = end;
+		}
+		ReplaceStrategy strategy = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "[" + keyword + "]";
+			}
+		};
+		BitSet expected = filter.hasKeywords(texts);
+		List<String> replaced = filter.replaceAll(texts, strategy);
+		Assert.assertFalse(expected.isEmpty());
+		for (int chunkSize : new int[] { 1, 100, 1000, 100000 }) {
+			KeywordFilter parallel = new ParallelKeywordFilter(filter, pool, chunkSize);
+			Assert.assertEquals(expected, parallel.hasKeywords(texts));
+			Assert.assertEquals(expected, parallel.hasKeywords(new LinkedList<String>(texts)));
+			Assert.assertEquals(replaced, parallel.replaceAll(texts, strategy));
+		}
+	}
+
+	private List<String> getKeywords(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		List<String> keywords = new LinkedList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			keywords.add(line);
+		}
+		return keywords;
+	}
+
+	private String read(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+}
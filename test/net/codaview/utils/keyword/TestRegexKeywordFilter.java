@@ -216,6 +216,127 @@ public class TestRegexKeywordFilter {
 				result.indexOf("<b>" + uniqueWordTail + "</b>") > -1);
 	}
 
+	@Test
+	public void testMatch() {
+		RegexKeywordFilter filter = new RegexKeywordFilter();
+		filter.add(Arrays.asList("心事", "心事重重", "事重"));
+		filter.addSkipChar('*');
+		filter.compile();
+
+		final List<String> spans = new LinkedList<String>();
+		MatchListener listener = new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				spans.add(start + "-" + end + ":" + keywordId);
+				return true;
+			}
+		};
+		filter.match("他心*事重重", MatchMode.LEFTMOST_LONGEST, listener);
+		Assert.assertEquals("[1-6:1]", spans.toString());
+
+		spans.clear();
+		filter.match("他心*事重重", MatchMode.LEFTMOST_FIRST, listener);
+		Assert.assertEquals("[1-4:0]", spans.toString());
+
+		spans.clear();
+		filter.match("他心*事重重", MatchMode.OVERLAPPING, listener);
+		Assert.assertEquals("[1-4:0, 3-5:2, 1-6:1]", spans.toString());
+	}
+
+	@Test
+	public void testRegexMatch() {
+		RegexKeywordFilter filter = new RegexKeywordFilter();
+		filter.add(Arrays.asList("心事", "(\\d)(\\d)\\d", "(a)(b)(c)\\d+", "\\d+号"));
+		filter.compile();
+
+		final List<String> spans = new LinkedList<String>();
+		MatchListener listener = new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				spans.add(start + "-" + end + ":" + keywordId);
+				return true;
+			}
+		};
+		// 每个正则表达式在每个起点取首选匹配，按结束位置回调
+		filter.match("心事1234号abc5", MatchMode.OVERLAPPING, listener);
+		Assert.assertEquals("[0-2:0, 2-5:1, 3-6:1, 2-7:3, 3-7:3, 4-7:3, 5-7:3, 7-11:2]", spans.toString());
+
+		spans.clear();
+		filter.match("心事1234号abc5", MatchMode.LEFTMOST_LONGEST, listener);
+		Assert.assertEquals("[0-2:0, 2-7:3, 7-11:2]", spans.toString());
+
+		spans.clear();
+		filter.match("心事1234号abc5", MatchMode.LEFTMOST_FIRST, listener);
+		Assert.assertEquals("[0-2:0, 2-5:1, 5-7:3, 7-11:2]", spans.toString());
+	}
+
+	@Test
+	public void testRegexKeyword() {
+		RegexKeywordFilter filter = new RegexKeywordFilter();
+		filter.add(Arrays.asList("心情", "代\\d+开票", "加[vV]信?\\d{5,}"));
+		filter.addSkipChar('*');
+		filter.compile();
+
+		Assert.assertTrue(filter.hasKeywords("专业代123开票"));
+		Assert.assertTrue(filter.hasKeywords("请加V12345678"));
+		Assert.assertFalse("必需的字面量没有出现", filter.hasKeywords("代开发票"));
+		Assert.assertFalse("字面量出现但表达式不匹配", filter.hasKeywords("代a开票，加v123"));
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<" + keyword + ">";
+			}
+		};
+		Assert.assertEquals("好<心*情>，<代88开票>，<加v信123456>", filter.replace("好心*情，代88开票，加v信123456", ss));
+
+		int[] counts = filter.countAll("代1开票代2开票心情");
+		Assert.assertEquals("[1, 2, 0]", Arrays.toString(counts));
+		Assert.assertEquals(2, filter.count("代1开票代2开票", "代\\d+开票"));
+		Assert.assertEquals("不在词库中的正则表达式", 1, filter.count("代1开票", "代\\d开."));
+	}
+
+	@Test
+	public void testRegexConsistency() {
+		RegexKeywordFilter filter = new RegexKeywordFilter();
+		filter.add(Arrays.asList("(ab)\\1cd", "x*", "[0-9]{3}|no\\d"));
+		filter.compile();
+
+		final ReplaceStrategy ss = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<" + keyword + ">";
+			}
+		};
+		// 反向引用按关键字本身的分组编号解释
+		Assert.assertTrue(filter.hasKeywords("ababcd"));
+		Assert.assertEquals("<ababcd>", filter.replace("ababcd", ss));
+		// 长度为0的匹配在查找和替换中都忽略
+		Assert.assertFalse(filter.hasKeywords("天气真好"));
+		Assert.assertEquals("天<xx>气<x>", filter.replace("天xx气x", ss));
+		Assert.assertEquals("[0, 2, 0]", Arrays.toString(filter.countAll("天xx气x")));
+		Assert.assertEquals(2, filter.count("天aa气a", "a*"));
+		Assert.assertEquals("<123>4<no5>", filter.replace("1234no5", ss));
+	}
+
+	@Test
+	public void testRegexFactor() {
+		RegexFactor factor = RegexFactor.extract("代\\d+开票");
+		Assert.assertEquals("开票", factor.literal);
+		Assert.assertEquals(RegexFactor.UNBOUNDED, factor.before);
+		Assert.assertEquals(0, factor.after);
+
+		factor = RegexFactor.extract("[abc]x\\.y.{2,3}");
+		Assert.assertEquals("x.y", factor.literal);
+		Assert.assertEquals(1, factor.before);
+		Assert.assertEquals(3, factor.after);
+
+		Assert.assertNull("最外层有|", RegexFactor.extract("ab|cd"));
+		Assert.assertNull("内联标志", RegexFactor.extract("(?i)abc"));
+		Assert.assertNull("没有字面量", RegexFactor.extract("\\d+[a-z]*"));
+		Assert.assertNull("反向引用之后最外层有|", RegexFactor.extract("xyz(a)\\1|ab"));
+	}
+
 	private List<String> getKeywords(String fileName) throws IOException {
 		InputStream is = this.getClass().getResourceAsStream(fileName);
 		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
@@ -0,0 +1,115 @@
+package net.codaview.utils.keyword;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestReloadableKeywordFilter {
+
+	private final ReplaceStrategy ss = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keywords) {
+			return "*";
+		}
+	};
+
+	@Test
+	public void testReload() throws Exception {
+		ReloadableKeywordFilter filter = new ReloadableKeywordFilter(build("心情"));
+		Assert.assertEquals(1, filter.getVersion());
+		Assert.assertEquals("大家的*都很好", filter.replace("大家的心情都很好", ss));
+
+		long version = filter.reload(new Callable<KeywordFilter>() {
+			@Override
+			public KeywordFilter call() {
+				return build("都很好");
+			}
+		});
+		Assert.assertEquals(2, version);
+		Assert.assertEquals(2, filter.getVersion());
+		Assert.assertEquals(1, filter.getReloadCount());
+		Assert.assertTrue(filter.getLastReloadNanos() > 0);
+		Assert.assertEquals("大家的心情*", filter.replace("大家的心情都很好", ss));
+	}
+
+	@Test
+	public void testReloadFailureKeepsOldVersion() {
+		ReloadableKeywordFilter filter = new ReloadableKeywordFilter(build("心情"));
+		try {
+			filter.reload(new Callable<KeywordFilter>() {
+				@Override
+				public KeywordFilter call() {
+					throw new IllegalArgumentException("词库错误");
+				}
+			});
+			Assert.fail();
+		} catch (Exception e) {
+			Assert.assertEquals("词库错误", e.getMessage());
+		}
+		Assert.assertEquals(1, filter.getVersion());
+		Assert.assertEquals(1, filter.getReloadFailureCount());
+		Assert.assertEquals("大家的*都很好", filter.replace("大家的心情都很好", ss));
+	}
+
+	@Test(timeout = 10000)
+	public void testReloadWhileScanning() throws Exception {
+		final ReloadableKeywordFilter filter = new ReloadableKeywordFilter(build("心情"));
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicInteger errors = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int i = 0; i < 3; i++) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						while (running.get()) {
+							// 每个版本都只替换一个关键字，无论扫描时读到哪个版本结果都一致
+							String replaced = filter.replace("大家的心情很好", ss);
+							if (!"大家的*很好".equals(replaced) && !"大家的心*好".equals(replaced)) {
+								errors.incrementAndGet();
+							}
+						}
+					}
+				});
+			}
+			for (int i = 0; i < 50; i++) {
+				final String keyword = i % 2 == 0 ? "情很" : "心情";
+				Future<Long> future = filter.reloadAsync(new Callable<KeywordFilter>() {
+					@Override
+					public KeywordFilter call() {
+						return build(keyword);
+					}
+				}, executor);
+				Assert.assertEquals(Long.valueOf(i + 2), future.get());
+			}
+		} finally {
+			running.set(false);
+			executor.shutdown();
+		}
+		Assert.assertEquals(0, errors.get());
+		Assert.assertEquals(51, filter.getVersion());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddSkipCharAfterCompile() {
+		TrieTree tree = new TrieTree();
+		tree.add("心情");
+		tree.compile();
+		tree.addSkipChar('*');
+	}
+
+	private KeywordFilter build(String... keywords) {
+		List<String> list = Arrays.asList(keywords);
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(list);
+		return builder.buildDoubleArrayTrie();
+	}
+}
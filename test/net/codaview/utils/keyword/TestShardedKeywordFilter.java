@@ -0,0 +1,127 @@
+package net.codaview.utils.keyword;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestShardedKeywordFilter {
+
+	private List<String> keywords;
+
+	private String text;
+
+	private final ForkJoinPool pool = new ForkJoinPool(4);
+
+	private final ReplaceStrategy strategy = new ReplaceStrategy() {
+		@Override
+		public String replaceWith(String keyword) {
+			return "[" + keyword + "]";
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		text = read("文章-12150字");
+		keywords = getKeywords("敏感词库-1063字");
+	}
+
+	@Test
+	public void testSameResultAsDoubleArrayTrie() throws IOException {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		List<String> all = new ArrayList<String>(keywords);
+		// 同一起点上长短不一的关键字，以及跨越其它分片匹配的关键字
+		all.addAll(Arrays.asList("心事", "心事重重", "事重", "重重", "重重叠叠"));
+		builder.setKeywords(all);
+		builder.setSkipChars(Arrays.asList('*', ' ', '_', '-', '，'));
+		KeywordFilter expected = builder.buildDoubleArrayTrie();
+		String text = this.text + "心事重 重叠*叠" + keywords.get(0);
+
+		for (int shards : new int[] { 1, 3, 16 }) {
+			ShardedKeywordFilter filter = builder.buildSharded(shards, pool);
+			Assert.assertEquals(expected.getKeywordCount(), filter.getKeywordCount());
+			Assert.assertEquals(expected.getKeyword(7), filter.getKeyword(7));
+			Assert.assertEquals(expected.hasKeywords(text), filter.hasKeywords(text));
+			Assert.assertEquals(expected.hasKeywords(new StringReader(text)), filter.hasKeywords(new StringReader(text)));
+			Assert.assertEquals(expected.replace(text, strategy), filter.replace(text, strategy));
+			Assert.assertArrayEquals(expected.countAll(text), filter.countAll(text));
+			for (MatchMode mode : MatchMode.values()) {
+				Assert.assertEquals(match(expected, text, mode), match(filter, text, mode));
+			}
+			StringWriter writer = new StringWriter();
+			filter.replace(new StringReader(text), writer, strategy);
+			Assert.assertEquals(expected.replace(text, strategy), writer.toString());
+		}
+
+		// 每次只编译一个分片，结果不变
+		ShardedKeywordFilter filter = builder.buildSharded(16, pool, 1);
+		Assert.assertEquals(expected.replace(text, strategy), filter.replace(text, strategy));
+		Assert.assertArrayEquals(expected.countAll(text), filter.countAll(text));
+	}
+
+	@Test
+	public void testSmallDictionary() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("abc", "ABC", "bcd", "万事如意"));
+		CharNormalizer normalizer = new CharNormalizer();
+		normalizer.addCaseFolding();
+		builder.setNormalizer(normalizer);
+		// 分片数多于关键字，空分片被去掉
+		ShardedKeywordFilter filter = builder.buildSharded(64, pool);
+		Assert.assertTrue(filter.getShardCount() <= 3);
+		// 规范化后重复的关键字只保留第一个
+		Assert.assertEquals(3, filter.getKeywordCount());
+		Assert.assertEquals("万事如意", filter.getKeyword(2));
+		Assert.assertFalse(filter.hasKeywords("ab万事"));
+		Assert.assertEquals("[abc]d", filter.replace("ABcd", strategy));
+		Assert.assertEquals("x[bcd]", filter.replace("xBCD", strategy));
+		Assert.assertEquals("[0-3:0][1-4:1]", match(filter, "abcd", MatchMode.OVERLAPPING));
+	}
+
+	private String match(KeywordFilter filter, String text, MatchMode mode) {
+		final StringBuilder sb = new StringBuilder();
+		filter.match(text, mode, new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				sb.append('[').append(start).append('-').append(end).append(':').append(keywordId).append(']');
+				return true;
+			}
+		});
+		return sb.toString();
+	}
+
+	private List<String> getKeywords(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		List<String> keywords = new LinkedList<String>();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			keywords.add(line);
+		}
+		return keywords;
+	}
+
+	private String read(String fileName) throws IOException {
+		InputStream is = this.getClass().getResourceAsStream(fileName);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = reader.readLine()) != null) {
+			sb.append(line);
+		}
+		return sb.toString();
+	}
+}
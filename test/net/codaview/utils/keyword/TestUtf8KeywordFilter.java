@@ -0,0 +1,96 @@
+package net.codaview.utils.keyword;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestUtf8KeywordFilter {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private Utf8KeywordFilter build() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList("心情", "心事", "心事重重", "abc"));
+		builder.setSkipChars(Arrays.asList('*', ' ', '，'));
+		return builder.buildUtf8();
+	}
+
+	/**
+	 * position不为0的堆内或堆外ByteBuffer
+	 */
+	private ByteBuffer wrap(String text, boolean direct) {
+		byte[] bytes = text.getBytes(UTF_8);
+		ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bytes.length + 3) : ByteBuffer.allocate(bytes.length + 3);
+		buffer.put(new byte[] { 'x', 'y', 'z' });
+		buffer.put(bytes);
+		buffer.flip();
+		buffer.position(3);
+		return buffer;
+	}
+
+	@Test
+	public void testHasKeywords() {
+		Utf8KeywordFilter filter = build();
+		for (boolean direct : new boolean[] { false, true }) {
+			Assert.assertTrue(filter.hasKeywords(wrap("天气真好!心情也好!", direct)));
+			Assert.assertTrue(filter.hasKeywords(wrap("天气真好!心*情也好!", direct)));
+			Assert.assertTrue("多字节的跳过字符", filter.hasKeywords(wrap("天气真好!心，情也好!", direct)));
+			Assert.assertTrue(filter.hasKeywords(wrap("a b*c", direct)));
+			Assert.assertFalse(filter.hasKeywords(wrap("天气真好!心_情也好!", direct)));
+			Assert.assertFalse(filter.hasKeywords(wrap("", direct)));
+		}
+	}
+
+	@Test
+	public void testMatch() {
+		Utf8KeywordFilter filter = build();
+		final List<String> spans = new ArrayList<String>();
+		MatchListener listener = new MatchListener() {
+			@Override
+			public boolean onMatch(int start, int end, int keywordId) {
+				spans.add(start + "-" + end + ":" + keywordId);
+				return true;
+			}
+		};
+		// 起止位置是字节偏移，汉字占3个字节，“，”也占3个字节
+		ByteBuffer text = wrap("他心，事重重abc", false);
+		filter.match(text, MatchMode.LEFTMOST_LONGEST, listener);
+		Assert.assertEquals("[3-18:2, 18-21:3]", spans.toString());
+		Assert.assertEquals(3, text.position());
+
+		spans.clear();
+		filter.match(text, MatchMode.LEFTMOST_FIRST, listener);
+		Assert.assertEquals("[3-12:1, 18-21:3]", spans.toString());
+
+		spans.clear();
+		filter.match(text, MatchMode.OVERLAPPING, listener);
+		Assert.assertEquals("[3-12:1, 3-18:2, 18-21:3]", spans.toString());
+	}
+
+	@Test
+	public void testReplace() {
+		Utf8KeywordFilter filter = build();
+		ReplaceStrategy highlight = new ReplaceStrategy() {
+			@Override
+			public String replaceWith(String keyword) {
+				return "<b>" + keyword + "</b>";
+			}
+		};
+		for (boolean direct : new boolean[] { false, true }) {
+			ByteBuffer out = ByteBuffer.allocate(256);
+			Assert.assertTrue(filter.replace(wrap("我的心 情不好，心事重重", direct), out, highlight));
+			out.flip();
+			Assert.assertEquals("我的<b>心情</b>不好，<b>心事重重</b>", UTF_8.decode(out).toString());
+
+			out.clear();
+			Assert.assertFalse(filter.replace(wrap("天气真好", direct), out, highlight));
+			out.flip();
+			Assert.assertEquals("天气真好", UTF_8.decode(out).toString());
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package net.codaview.utils.keyword;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestWeightedKeywordFilter {
+
+	private WeightedKeywordFilter build() {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		// 0: 广告，1: 辱骂
+		builder.setKeywords(Arrays.asList("加微信", "代开发票", "发票", "笨蛋", "加微信"));
+		builder.setKeywordMeta(new int[] { 0, 0, 0, 1, 1 }, new int[] { 3, 5, 1, 2, 100 });
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		return builder.buildWeighted();
+	}
+
+	@Test
+	public void testScore() {
+		WeightedKeywordFilter filter = build();
+		Assert.assertEquals(4, filter.getKeywordCount());
+		Assert.assertEquals(2, filter.getCategoryCount());
+		// 重复的关键字以第一次出现时为准
+		Assert.assertEquals(0, filter.getCategory(0));
+		Assert.assertEquals(3, filter.getWeight(0));
+
+		// 最左最长，“代开发票”中的“发票”不重复计分
+		Assert.assertEquals("[9, 4]", Arrays.toString(filter.score("加*微信，代开发票，笨蛋笨蛋，发票")));
+		Assert.assertEquals("[0, 0]", Arrays.toString(filter.score("天气真好")));
+	}
+
+	@Test
+	public void testEarlyExit() {
+		WeightedKeywordFilter filter = build();
+		String text = "笨蛋加微信笨蛋加微信笨蛋加微信";
+		Assert.assertEquals("[9, 6]", Arrays.toString(filter.score(text)));
+		// 第二个“加微信”后广告分达到6，不再扫描
+		Assert.assertEquals("[6, 4]", Arrays.toString(filter.score(text, 6)));
+		// 第一个“笨蛋”就达到辱骂的阈值
+		Assert.assertEquals("[0, 2]", Arrays.toString(filter.score(text, new int[] { 100, 2 })));
+	}
+}
@@ -0,0 +1,164 @@
+package net.codaview.utils.keyword.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.codaview.utils.keyword.DoubleArrayTrie;
+import net.codaview.utils.keyword.KeywordFilter;
+import net.codaview.utils.keyword.KeywordFilterBuilder;
+import net.codaview.utils.keyword.ReloadableKeywordFilter;
+
+public class TestKeywordFilterService {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private KeywordFilter build(String... keywords) {
+		KeywordFilterBuilder builder = new KeywordFilterBuilder();
+		builder.setKeywords(Arrays.asList(keywords));
+		builder.setSkipChars(Arrays.asList('*', ' '));
+		int[] categories = new int[keywords.length];
+		int[] weights = new int[keywords.length];
+		for (int i = 0; i < keywords.length; i++) {
+			categories[i] = i % 2;
+			weights[i] = i + 1;
+		}
+		builder.setKeywordMeta(categories, weights);
+		return builder.buildWeighted();
+	}
+
+	/**
+	 * @return 状态码和响应体，如“200 true”
+	 */
+	private String post(KeywordFilterService service, String path, String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + service.getPort() + path)
+				.openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		out.write(body.getBytes(UTF_8));
+		out.close();
+		int status = connection.getResponseCode();
+		InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return status + " " + new String(bytes.toByteArray(), UTF_8);
+	}
+
+	@Test
+	public void testEndpoints() throws Exception {
+		KeywordFilterService service = new KeywordFilterService(new ReloadableKeywordFilter(build("心情", "笨蛋", "发票")), 0);
+		// 超过8个字符的文本不合并，两条路径都要覆盖；替换策略收到的是关键字本身，不含跳过字符
+		service.setBatching(8, 16, 0, 2);
+		service.start();
+		try {
+			Assert.assertEquals("200 true", post(service, "/check", "心*情"));
+			Assert.assertEquals("200 false", post(service, "/check", "天气真好"));
+			Assert.assertEquals("200 true", post(service, "/check", "今天天气真好，心 情也很好"));
+			Assert.assertEquals("200 **不好", post(service, "/replace", "心情不好"));
+			Assert.assertEquals("200 今天天气真好，**也很好，不开**", post(service, "/replace", "今天天气真好，心情也很好，不开发*票"));
+			// 分类0: 心情(1)、发票(3)，分类1: 笨蛋(2)
+			Assert.assertEquals("200 4,4", post(service, "/score", "心情笨蛋发票笨蛋"));
+			Assert.assertEquals("200 1,2", post(service, "/score?threshold=2", "心情笨蛋发票笨蛋"));
+			Assert.assertTrue(post(service, "/score?threshold=x", "心情").startsWith("400 "));
+			Assert.assertTrue("未设置reloader", post(service, "/reload", "").startsWith("404 "));
+			Assert.assertEquals(7, service.getRequestCount());
+		} finally {
+			service.stop();
+		}
+	}
+
+	@Test
+	public void testReload() throws Exception {
+		final ReloadableKeywordFilter filter = new ReloadableKeywordFilter(build("心情"));
+		KeywordFilterService service = new KeywordFilterService(filter, 0);
+		service.setReloader(new Callable<KeywordFilter>() {
+			@Override
+			public KeywordFilter call() {
+				return build("天气");
+			}
+		});
+		service.start();
+		try {
+			Assert.assertEquals("200 false", post(service, "/check", "天气真好"));
+			Assert.assertEquals("200 2", post(service, "/reload", ""));
+			Assert.assertEquals("200 true", post(service, "/check", "天气真好"));
+			Assert.assertEquals("200 false", post(service, "/check", "心情"));
+
+			// 不带分类和权重的词库不能计分
+			filter.reload(new KeywordFilterBuilder().buildDoubleArrayTrie());
+			Assert.assertTrue(post(service, "/score", "天气").startsWith("404 "));
+		} finally {
+			service.stop();
+		}
+	}
+
+	@Test
+	public void testBackpressure() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		DoubleArrayTrie slow = new DoubleArrayTrie() {
+			@Override
+			public BitSet hasKeywords(List<? extends CharSequence> texts) {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.hasKeywords(texts);
+			}
+		};
+		slow.add("心情");
+		slow.compile();
+		final KeywordFilterService service = new KeywordFilterService(new ReloadableKeywordFilter(slow), 0);
+		service.setMaxInFlight(1);
+		service.start();
+		try {
+			final String[] first = new String[1];
+			Thread blocked = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						first[0] = post(service, "/check", "心情");
+					} catch (IOException e) {
+						first[0] = String.valueOf(e);
+					}
+				}
+			});
+			blocked.start();
+			Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+			// 唯一的名额被占用，立即拒绝而不是排队
+			Assert.assertTrue(post(service, "/check", "心情").startsWith("503 "));
+			Assert.assertTrue(post(service, "/replace", "心情").startsWith("503 "));
+			Assert.assertEquals(2, service.getRejectedCount());
+
+			release.countDown();
+			blocked.join(10000);
+			Assert.assertEquals("200 true", first[0]);
+			Assert.assertEquals("200 false", post(service, "/check", "天气"));
+		} finally {
+			release.countDown();
+			service.stop();
+		}
+	}
+}